@@ -1,21 +1,29 @@
 package com.example.iotserver.config;
 
+import lombok.extern.slf4j.Slf4j;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
 import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.integration.channel.DirectChannel;
+import org.springframework.integration.channel.PartitionedChannel;
 import org.springframework.integration.core.MessageProducer;
 import org.springframework.integration.mqtt.core.DefaultMqttPahoClientFactory;
 import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
 import org.springframework.integration.mqtt.inbound.MqttPahoMessageDrivenChannelAdapter;
 import org.springframework.integration.mqtt.outbound.MqttPahoMessageHandler;
 import org.springframework.integration.mqtt.support.DefaultPahoMessageConverter;
+import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.MessageHandler;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ThreadFactory;
 
 @Configuration
+@Slf4j
 public class MqttConfig {
 
     @Value("${mqtt.broker-url}")
@@ -30,6 +38,18 @@ public class MqttConfig {
     @Value("${mqtt.password:}")
     private String password;
 
+    // Số worker xử lý message inbound (mỗi worker giữ thứ tự cho các device của nó)
+    @Value("${mqtt.inbound.workers:8}")
+    private int inboundWorkers;
+
+    // Số message tối đa đang chờ/đang xử lý trước khi tạm dừng đọc từ Paho
+    @Value("${mqtt.inbound.queue-capacity:2000}")
+    private int inboundQueueCapacity;
+
+    // Chỉ có hiệu lực khi chạy trên Java 21+
+    @Value("${mqtt.inbound.virtual-threads:false}")
+    private boolean inboundVirtualThreads;
+
     @Bean
     public MqttPahoClientFactory mqttClientFactory() {
         DefaultMqttPahoClientFactory factory = new DefaultMqttPahoClientFactory();
@@ -50,9 +70,43 @@ public class MqttConfig {
         return factory;
     }
 
+    /**
+     * Kênh inbound được chia partition theo deviceId trong topic
+     * (sensor/{id}/data, device/{id}/status): message của cùng một thiết bị
+     * luôn xử lý tuần tự trên cùng worker, các thiết bị khác chạy song song.
+     */
     @Bean
     public MessageChannel mqttInputChannel() {
-        return new DirectChannel();
+        PartitionedChannel channel = new PartitionedChannel(inboundWorkers, MqttConfig::deviceIdPartitionKey);
+        channel.setThreadFactory(inboundThreadFactory());
+        channel.addInterceptor(mqttInboundBackpressure());
+        return channel;
+    }
+
+    @Bean
+    public MqttInboundBackpressure mqttInboundBackpressure() {
+        return new MqttInboundBackpressure(inboundQueueCapacity);
+    }
+
+    private ThreadFactory inboundThreadFactory() {
+        if (inboundVirtualThreads) {
+            try {
+                return new VirtualThreadTaskExecutor("mqtt-inbound-").getVirtualThreadFactory();
+            } catch (UnsupportedOperationException e) {
+                log.warn("Virtual threads are not available on this JVM, using platform threads for MQTT inbound");
+            }
+        }
+        return new CustomizableThreadFactory("mqtt-inbound-");
+    }
+
+    private static Object deviceIdPartitionKey(Message<?> message) {
+        String topic = (String) message.getHeaders().get("mqtt_receivedTopic");
+        if (topic == null) {
+            return "";
+        }
+        int start = topic.indexOf('/') + 1;
+        int end = topic.indexOf('/', start);
+        return end > start ? topic.substring(start, end) : topic;
     }
 
     @Bean
@@ -62,11 +116,16 @@ public class MqttConfig {
                 clientId + "_inbound",
                 mqttClientFactory(),
                 "sensor/+/data", // Subscribe to all sensor data
+                "sensor/+/bin", // Sensor data in compact binary format (SensorBinaryCodec)
+                "sensor/+/batch", // Batched readings from gateways (SensorPayloadDecoder.decodeBatch)
                 "device/+/status" // Subscribe to device status
         );
 
         adapter.setCompletionTimeout(5000);
-        adapter.setConverter(new DefaultPahoMessageConverter());
+        // Giữ payload dạng byte[] để decoder đọc thẳng, không tạo String trung gian
+        DefaultPahoMessageConverter converter = new DefaultPahoMessageConverter();
+        converter.setPayloadAsBytes(true);
+        adapter.setConverter(converter);
         adapter.setQos(1);
         adapter.setOutputChannel(mqttInputChannel());
 
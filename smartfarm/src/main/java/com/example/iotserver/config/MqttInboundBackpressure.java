@@ -0,0 +1,63 @@
+package com.example.iotserver.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.lang.Nullable;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Giới hạn số message MQTT đang chờ/đang xử lý trên kênh inbound.
+ *
+ * preSend() chạy trên thread callback của Paho: khi hết permit nó sẽ chặn lại,
+ * Paho ngừng đọc socket và broker tự giữ message (QoS 1) thay vì server làm rơi.
+ * Permit được trả lại sau khi worker xử lý xong message.
+ */
+@Slf4j
+public class MqttInboundBackpressure implements ExecutorChannelInterceptor {
+
+    private final Semaphore permits;
+    private final int capacity;
+
+    public MqttInboundBackpressure(int capacity) {
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity);
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (!permits.tryAcquire()) {
+            log.warn("MQTT inbound queue is full ({} messages), pausing consumption", capacity);
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessageDeliveryException(message, "Interrupted while waiting for inbound capacity");
+            }
+        }
+        return message;
+    }
+
+    @Override
+    public void afterSendCompletion(Message<?> message, MessageChannel channel, boolean sent,
+            @Nullable Exception ex) {
+        // Message không vào được hàng đợi của worker -> afterMessageHandled sẽ không chạy
+        if (!sent || ex != null) {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler,
+            @Nullable Exception ex) {
+        permits.release();
+    }
+
+    public int getInFlight() {
+        return capacity - permits.availablePermits();
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.iotserver.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class RedisPubSubConfig {
+
+    // Kênh báo các instance xóa cache cục bộ khi cài đặt hệ thống thay đổi
+    public static final String SETTINGS_INVALIDATION_CHANNEL = "smartfarm:settings:invalidate";
+
+    // Kênh báo các instance nạp lại quy tắc (payload: ruleId) khi quy tắc được tạo/sửa/xóa/bật tắt
+    public static final String RULES_CHANGED_CHANNEL = "smartfarm:rules:changed";
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.iotserver.config;
 
 import com.example.iotserver.security.JwtAuthenticationFilter;
+import jakarta.servlet.DispatcherType;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -29,6 +30,9 @@ public class SecurityConfig {
 
                                 // Configure authorization
                                 .authorizeHttpRequests(auth -> auth
+                                                // Async dispatch (endpoint trả DeferredResult) đã được
+                                                // kiểm tra quyền ở request gốc; JWT filter không chạy lại
+                                                .dispatcherTypeMatchers(DispatcherType.ASYNC).permitAll()
                                                 // Public endpoints - không cần authentication
                                                 .requestMatchers(
                                                                 "/actuator/**",
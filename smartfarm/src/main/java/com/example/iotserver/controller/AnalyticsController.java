@@ -1,7 +1,9 @@
 package com.example.iotserver.controller;
 
+import com.example.iotserver.dto.ColumnarSeriesDTO;
 import com.example.iotserver.dto.SensorDataDTO;
 import com.example.iotserver.dto.response.ApiResponse;
+import com.example.iotserver.service.Lttb;
 import com.example.iotserver.service.SensorDataService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
@@ -19,15 +21,26 @@ public class AnalyticsController {
     private final SensorDataService sensorDataService;
 
     @GetMapping("/history")
-    public ResponseEntity<ApiResponse<Map<String, List<SensorDataDTO>>>> getHistoricalData(
+    public ResponseEntity<ApiResponse<?>> getHistoricalData(
             @RequestParam List<String> deviceIds,
             @RequestParam List<String> fields,
             @RequestParam Instant start,
             @RequestParam Instant end,
-            @RequestParam(defaultValue = "1h") String window) {
+            @RequestParam(defaultValue = "1h") String window,
+            @RequestParam(required = false) Integer maxPoints,
+            @RequestParam(defaultValue = "false") boolean columnar) {
+        if (maxPoints != null) {
+            Lttb.checkMaxPoints(maxPoints);
+        }
 
+        if (columnar) {
+            // Mỗi chuỗi dạng {timestamps:[epochMs...], avgValue:[...]}
+            Map<String, ColumnarSeriesDTO> data = sensorDataService.getMultiSeriesColumnar(deviceIds, fields, start,
+                    end, window, maxPoints);
+            return ResponseEntity.ok(ApiResponse.success("Lấy dữ liệu lịch sử thành công", data));
+        }
         Map<String, List<SensorDataDTO>> data = sensorDataService.getMultiSeriesData(deviceIds, fields, start, end,
-                window);
+                window, maxPoints);
         return ResponseEntity.ok(ApiResponse.success("Lấy dữ liệu lịch sử thành công", data));
     }
-}
\ No newline at end of file
+}
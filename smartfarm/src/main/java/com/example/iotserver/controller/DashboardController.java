@@ -1,6 +1,7 @@
 package com.example.iotserver.controller;
 
 import com.example.iotserver.service.DeviceService;
+import com.example.iotserver.service.FarmRollingAggregates;
 import com.example.iotserver.service.SensorDataService;
 import com.example.iotserver.repository.DeviceRepository;
 import com.example.iotserver.enums.*;
@@ -12,6 +13,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 @RestController
@@ -23,6 +25,7 @@ public class DashboardController {
         private final DeviceService deviceService;
         private final SensorDataService sensorDataService;
         private final DeviceRepository deviceRepository;
+        private final FarmRollingAggregates farmAggregates;
 
         /**
          * Get dashboard overview for a farm
@@ -63,44 +66,31 @@ public class DashboardController {
                         @Parameter(description = "ID nông trại") @RequestParam Long farmId) {
                 Map<String, Object> stats = new HashMap<>();
 
-                // Calculate averages from latest data
-                Map<String, Map<String, Object>> latestData = sensorDataService.getFarmLatestData(farmId);
-
-                double avgTemperature = latestData.values().stream()
-                                .filter(data -> data.containsKey("temperature"))
-                                .mapToDouble(data -> (Double) data.get("temperature"))
-                                .average()
-                                .orElse(0.0);
-
-                double avgHumidity = latestData.values().stream()
-                                .filter(data -> data.containsKey("humidity"))
-                                .mapToDouble(data -> (Double) data.get("humidity"))
-                                .average()
-                                .orElse(0.0);
-
-                double avgSoilMoisture = latestData.values().stream()
-                                .filter(data -> data.containsKey("soil_moisture"))
-                                .mapToDouble(data -> (Double) data.get("soil_moisture"))
-                                .average()
-                                .orElse(0.0);
-                double avgLightIntensity = latestData.values().stream()
-                                .filter(data -> data.containsKey("light_intensity"))
-                                .mapToDouble(data -> (Double) data.get("light_intensity"))
-                                .average()
-                                .orElse(0.0);
-                double avgSoilPH = latestData.values().stream()
-                                .filter(data -> data.containsKey("soilPH"))
-                                .mapToDouble(data -> (Double) data.get("soilPH"))
-                                .average()
-                                .orElse(0.0);
-
-                stats.put("avgTemperature", Math.round(avgTemperature * 10) / 10.0);
-                stats.put("avgHumidity", Math.round(avgHumidity * 10) / 10.0);
-                stats.put("avgSoilMoisture", Math.round(avgSoilMoisture * 10) / 10.0);
-                stats.put("avgLightIntensity", Math.round(avgLightIntensity * 10) / 10.0);
-                stats.put("avgSoilPH", Math.round(avgSoilPH * 10) / 10.0);
+                // Trung bình 1 giờ qua từ thống kê trượt, không query InfluxDB
+                Map<String, FarmRollingAggregates.FieldStats> hourStats = farmAggregates.getStats(farmId,
+                                FarmRollingAggregates.Window.ONE_HOUR);
+
+                stats.put("avgTemperature", roundedMean(hourStats.get("temperature")));
+                stats.put("avgHumidity", roundedMean(hourStats.get("humidity")));
+                stats.put("avgSoilMoisture", roundedMean(hourStats.get("soil_moisture")));
+                stats.put("avgLightIntensity", roundedMean(hourStats.get("light_intensity")));
+                stats.put("avgSoilPH", roundedMean(hourStats.get("soilPH")));
+
+                // mean/min/max/count theo field cho từng cửa sổ 1m, 1h, 24h
+                Map<String, Object> windows = new LinkedHashMap<>();
+                for (FarmRollingAggregates.Window window : FarmRollingAggregates.Window.values()) {
+                        Map<String, Object> fields = new LinkedHashMap<>();
+                        farmAggregates.getStats(farmId, window)
+                                        .forEach((field, fieldStats) -> fields.put(field, fieldStats.toMap()));
+                        windows.put(window.getLabel(), fields);
+                }
+                stats.put("windows", windows);
                 stats.put("timestamp", System.currentTimeMillis());
 
                 return ResponseEntity.ok(stats);
         }
+
+        private static double roundedMean(FarmRollingAggregates.FieldStats fieldStats) {
+                return fieldStats != null ? Math.round(fieldStats.mean() * 10) / 10.0 : 0.0;
+        }
 }
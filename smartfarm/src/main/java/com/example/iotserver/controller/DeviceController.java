@@ -4,6 +4,7 @@ import com.example.iotserver.dto.DeviceDTO;
 import com.example.iotserver.dto.SensorDataDTO;
 import com.example.iotserver.dto.response.ApiResponse;
 import com.example.iotserver.service.DeviceService;
+import com.example.iotserver.service.Lttb;
 import com.example.iotserver.service.SensorDataService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -158,14 +159,23 @@ public class DeviceController {
      */
     @GetMapping("/{deviceId}/data")
     @Operation(summary = "Lấy dữ liệu cảm biến theo khoảng thời gian")
-    public ResponseEntity<ApiResponse<List<SensorDataDTO>>> getSensorDataRange(
+    public ResponseEntity<ApiResponse<?>> getSensorDataRange(
             @PathVariable String deviceId,
             @Parameter(description = "Thời gian bắt đầu (ISO format)") @RequestParam String start,
-            @Parameter(description = "Thời gian kết thúc (ISO format)") @RequestParam String end) {
+            @Parameter(description = "Thời gian kết thúc (ISO format)") @RequestParam String end,
+            @Parameter(description = "Số điểm tối đa mỗi field (giảm bằng LTTB), bỏ trống để lấy toàn bộ") @RequestParam(required = false) Integer maxPoints,
+            @Parameter(description = "Trả về dạng cột {timestamps:[epochMs], temperature:[...], ...}") @RequestParam(defaultValue = "false") boolean columnar) {
         Instant startTime = Instant.parse(start);
         Instant endTime = Instant.parse(end);
+        if (maxPoints != null) {
+            Lttb.checkMaxPoints(maxPoints);
+        }
 
-        List<SensorDataDTO> data = sensorDataService.getSensorDataRange(deviceId, startTime, endTime);
+        if (columnar) {
+            return ResponseEntity.ok(ApiResponse.success(
+                    sensorDataService.getSensorDataRangeColumnar(deviceId, startTime, endTime, maxPoints)));
+        }
+        List<SensorDataDTO> data = sensorDataService.getSensorDataRange(deviceId, startTime, endTime, maxPoints);
         return ResponseEntity.ok(ApiResponse.success(data));
     }
 
@@ -195,13 +205,18 @@ public class DeviceController {
      */
     @GetMapping("/{deviceId}/data/aggregated")
     @Operation(summary = "Lấy dữ liệu tổng hợp cho biểu đồ")
-    public ResponseEntity<ApiResponse<List<SensorDataDTO>>> getAggregatedData(
+    public ResponseEntity<ApiResponse<?>> getAggregatedData(
             @PathVariable String deviceId,
             @Parameter(description = "Trường dữ liệu (temperature, humidity,...)") @RequestParam String field,
             @Parameter(description = "Hàm tổng hợp (mean, max, min)") @RequestParam(defaultValue = "mean") String aggregation,
-            @Parameter(description = "Cửa sổ thời gian (1h, 1d,...)") @RequestParam(defaultValue = "1h") String window) {
+            @Parameter(description = "Cửa sổ thời gian (1h, 1d,...)") @RequestParam(defaultValue = "1h") String window,
+            @Parameter(description = "Trả về dạng cột {timestamps:[epochMs], <field>:[...]}") @RequestParam(defaultValue = "false") boolean columnar) {
 
         try {
+            if (columnar) {
+                return ResponseEntity.ok(ApiResponse.success(
+                        sensorDataService.getAggregatedDataColumnar(deviceId, field, aggregation, window)));
+            }
             List<SensorDataDTO> data = sensorDataService.getAggregatedData(
                     deviceId, field, aggregation, window);
 
@@ -1,22 +1,35 @@
 package com.example.iotserver.controller;
 
+import com.example.iotserver.dto.ReportJobDTO;
 import com.example.iotserver.dto.response.ApiResponse;
+import com.example.iotserver.enums.ReportFormat;
+import com.example.iotserver.service.ReportExecutor;
+import com.example.iotserver.service.ReportJobService;
 import com.example.iotserver.service.ReportService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @RestController
 @RequestMapping("/api/reports")
@@ -25,6 +38,11 @@ import java.util.Map;
 public class ReportController {
 
     private final ReportService reportService;
+    private final ReportExecutor reportExecutor;
+    private final ReportJobService reportJobService;
+
+    @Value("${report.pdf.timeout-ms:120000}")
+    private long pdfTimeoutMs;
 
     /**
      * Lấy dữ liệu tóm tắt cho dashboard hoặc báo cáo
@@ -46,23 +64,70 @@ public class ReportController {
     @PreAuthorize("isAuthenticated()") // Yêu cầu đăng nhập
     public void exportSensorDataToCsv(
             HttpServletResponse response,
-            @Parameter(description = "ID của thiết bị", required = true) @RequestParam String deviceId,
+            @Parameter(description = "ID của thiết bị (lặp lại hoặc phân tách bằng dấu phẩy để xuất nhiều thiết bị)", required = true) @RequestParam List<String> deviceId,
             @Parameter(description = "Thời gian bắt đầu (ISO 8601 format, e.g., 2023-10-27T00:00:00Z)", required = true) @RequestParam Instant start,
-            @Parameter(description = "Thời gian kết thúc (ISO 8601 format, e.g., 2023-10-28T00:00:00Z)", required = true) @RequestParam Instant end)
+            @Parameter(description = "Thời gian kết thúc (ISO 8601 format, e.g., 2023-10-28T00:00:00Z)", required = true) @RequestParam Instant end,
+            @Parameter(description = "Nén file bằng gzip") @RequestParam(defaultValue = "false") boolean gzip)
             throws IOException {
-        reportService.writeSensorDataToCsv(response, deviceId, start, end);
+        reportService.writeSensorDataToCsv(response, deviceId, start, end, gzip);
     }
 
     // --- ENDPOINT MỚI CHO PDF ---
+    // PDF được tạo trên pool báo cáo riêng (có giới hạn), không giữ thread request của Tomcat
     @GetMapping("/export/pdf")
     @Operation(summary = "Xuất báo cáo dữ liệu cảm biến ra file PDF")
     @PreAuthorize("isAuthenticated()") // Yêu cầu đăng nhập
-    public void exportSensorDataToPdf(
+    public DeferredResult<Void> exportSensorDataToPdf(
             HttpServletResponse response,
             @Parameter(description = "ID của thiết bị", required = true) @RequestParam String deviceId,
             @Parameter(description = "Thời gian bắt đầu (ISO 8601 format, e.g., 2023-10-27T00:00:00Z)", required = true) @RequestParam Instant start,
-            @Parameter(description = "Thời gian kết thúc (ISO 8601 format, e.g., 2023-10-28T00:00:00Z)", required = true) @RequestParam Instant end)
-            throws IOException {
-        reportService.createSensorDataPdf(response, deviceId, start, end);
+            @Parameter(description = "Thời gian kết thúc (ISO 8601 format, e.g., 2023-10-28T00:00:00Z)", required = true) @RequestParam Instant end) {
+        // Timeout riêng cho PDF thay vì timeout async mặc định; quá hạn thì hủy task và query InfluxDB
+        DeferredResult<Void> result = new DeferredResult<>(pdfTimeoutMs);
+        CompletableFuture<Void> task = reportExecutor
+                .submit(() -> reportService.createSensorDataPdf(response, deviceId, start, end));
+        result.onTimeout(() -> task.cancel(true));
+        task.whenComplete((ignored, error) -> {
+            if (error == null) {
+                result.setResult(null);
+            } else if (!task.isCancelled()) {
+                result.setErrorResult(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            }
+        });
+        return result;
+    }
+
+    // --- JOB BÁO CÁO BẤT ĐỒNG BỘ: submit -> poll -> download ---
+    @PostMapping("/jobs")
+    @Operation(summary = "Tạo job xuất báo cáo (CSV, CSV_GZIP, PDF) chạy nền")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<ApiResponse<ReportJobDTO>> submitReportJob(
+            Authentication authentication,
+            @Parameter(description = "ID của thiết bị (PDF chỉ hỗ trợ một thiết bị)", required = true) @RequestParam List<String> deviceId,
+            @Parameter(description = "Thời gian bắt đầu (ISO 8601 format)", required = true) @RequestParam Instant start,
+            @Parameter(description = "Thời gian kết thúc (ISO 8601 format)", required = true) @RequestParam Instant end,
+            @Parameter(description = "Định dạng báo cáo") @RequestParam(defaultValue = "CSV") ReportFormat format) {
+        ReportJobDTO job = reportJobService.submit(authentication.getName(), deviceId, start, end, format);
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(ApiResponse.success("Đã tạo job báo cáo", job));
+    }
+
+    @GetMapping("/jobs/{jobId}")
+    @Operation(summary = "Xem trạng thái job báo cáo")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<ApiResponse<ReportJobDTO>> getReportJob(
+            Authentication authentication,
+            @PathVariable String jobId) {
+        return ResponseEntity.ok(ApiResponse.success(reportJobService.getJob(authentication.getName(), jobId)));
+    }
+
+    @GetMapping("/jobs/{jobId}/download")
+    @Operation(summary = "Tải file kết quả của job báo cáo")
+    @PreAuthorize("isAuthenticated()")
+    public void downloadReportJob(
+            Authentication authentication,
+            @PathVariable String jobId,
+            HttpServletResponse response) throws IOException {
+        reportJobService.sendResult(authentication.getName(), jobId, response);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,103 @@
+package com.example.iotserver.dto;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Chuỗi thời gian dạng cột cho biểu đồ:
+ * {"timestamps":[epochMs...], "temperature":[...], "humidity":[...]}.
+ *
+ * Dữ liệu nằm trong mảng nguyên thủy và được ghi thẳng bằng JsonGenerator,
+ * không tạo object cho từng điểm. Ô không có giá trị được ghi là null.
+ */
+public final class ColumnarSeriesDTO extends JsonSerializable.Base {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final String[] columns;
+    private long[] timestamps;
+    private double[][] values; // [cột][dòng], NaN = không có giá trị
+    private int size;
+
+    public ColumnarSeriesDTO(String... columns) {
+        this.columns = columns;
+        this.timestamps = new long[INITIAL_CAPACITY];
+        this.values = new double[columns.length][INITIAL_CAPACITY];
+    }
+
+    /**
+     * Thêm một dòng (mọi cột chưa có giá trị), trả về chỉ số dòng.
+     */
+    public int addRow(long epochMillis) {
+        if (size == timestamps.length) {
+            int capacity = size * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            for (int c = 0; c < values.length; c++) {
+                values[c] = Arrays.copyOf(values[c], capacity);
+            }
+        }
+        timestamps[size] = epochMillis;
+        for (double[] column : values) {
+            column[size] = Double.NaN;
+        }
+        return size++;
+    }
+
+    public void set(int row, int column, double value) {
+        values[column][row] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long timestamp(int row) {
+        return timestamps[row];
+    }
+
+    /**
+     * Giá trị của ô, NaN nếu ô không có giá trị.
+     */
+    public double get(int row, int column) {
+        return values[column][row];
+    }
+
+    /**
+     * Thời điểm của dòng cuối, hoặc Long.MIN_VALUE nếu chưa có dòng nào.
+     */
+    public long lastTimestamp() {
+        return size == 0 ? Long.MIN_VALUE : timestamps[size - 1];
+    }
+
+    @Override
+    public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        gen.writeStartObject();
+        gen.writeFieldName("timestamps");
+        gen.writeArray(timestamps, 0, size);
+        for (int c = 0; c < columns.length; c++) {
+            gen.writeFieldName(columns[c]);
+            gen.writeStartArray();
+            double[] column = values[c];
+            for (int r = 0; r < size; r++) {
+                if (Double.isNaN(column[r])) {
+                    gen.writeNull();
+                } else {
+                    gen.writeNumber(column[r]);
+                }
+            }
+            gen.writeEndArray();
+        }
+        gen.writeEndObject();
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer)
+            throws IOException {
+        serialize(gen, serializers);
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.iotserver.dto;
+
+import com.example.iotserver.enums.ReportFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ReportJobDTO {
+
+    private String jobId;
+    private String status; // PENDING, RUNNING, COMPLETED, FAILED
+    private ReportFormat format;
+    private List<String> deviceIds;
+    private Instant start;
+    private Instant end;
+    private Boolean cached; // Kết quả lấy từ cache, không tạo lại
+    private Instant createdAt;
+    private Instant finishedAt;
+    private Long sizeBytes;
+    private String errorMessage;
+    private String downloadUrl; // Chỉ có khi status = COMPLETED
+}
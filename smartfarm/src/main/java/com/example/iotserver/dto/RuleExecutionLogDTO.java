@@ -29,4 +29,8 @@ public class RuleExecutionLogDTO {
     private String actionsPerformed; // Hành động đã thực hiện (JSON)
     private String errorMessage; // Lỗi (nếu có)
     private Long executionTimeMs; // Thời gian thực thi (ms)
+    private Integer repeatCount; // Số lần SKIPPED liên tiếp được gộp
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    private LocalDateTime lastExecutedAt; // Lần cuối trong khoảng gộp
 }
\ No newline at end of file
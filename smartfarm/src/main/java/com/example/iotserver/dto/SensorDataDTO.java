@@ -9,6 +9,7 @@ import lombok.NoArgsConstructor;
 
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.HashMap;
 import java.util.Map;
 import java.io.Serializable; // <-- THÊM IMPORT NÀY
@@ -55,30 +56,30 @@ public class SensorDataDTO implements Serializable { // <-- THÊM "implements Se
     @Builder.Default
     private Map<String, Object> additionalValues = new HashMap<>();
 
-    // Helper method to create from MQTT payload
-    public static SensorDataDTO fromMqttPayload(String deviceId, Map<String, Object> payload) {
+    // Tạo DTO từ reading đã được SensorPayloadDecoder đọc sẵn.
+    // Dùng thời gian của thiết bị nếu payload có, ngược lại lấy thời gian server.
+    public static SensorDataDTO fromReading(String deviceId, SensorReading reading) {
+        Instant timestamp = reading.hasTimestamp() ? Instant.ofEpochMilli(reading.getTimestampMillis()) : Instant.now();
         SensorDataDTOBuilder builder = SensorDataDTO.builder()
                 .deviceId(deviceId)
-                .timestamp(Instant.now())
-                .localTime(LocalDateTime.now());
+                .timestamp(timestamp)
+                .localTime(LocalDateTime.ofInstant(timestamp, ZoneId.systemDefault()))
+                .sensorType(reading.getSensorType());
 
-        if (payload.containsKey("temperature")) {
-            builder.temperature(parseDouble(payload.get("temperature")));
+        if (reading.has(SensorReading.TEMPERATURE)) {
+            builder.temperature(reading.getTemperature());
         }
-        if (payload.containsKey("humidity")) {
-            builder.humidity(parseDouble(payload.get("humidity")));
+        if (reading.has(SensorReading.HUMIDITY)) {
+            builder.humidity(reading.getHumidity());
         }
-        if (payload.containsKey("soilMoisture")) {
-            builder.soilMoisture(parseDouble(payload.get("soilMoisture")));
+        if (reading.has(SensorReading.SOIL_MOISTURE)) {
+            builder.soilMoisture(reading.getSoilMoisture());
         }
-        if (payload.containsKey("lightIntensity")) {
-            builder.lightIntensity(parseDouble(payload.get("lightIntensity")));
+        if (reading.has(SensorReading.LIGHT_INTENSITY)) {
+            builder.lightIntensity(reading.getLightIntensity());
         }
-        if (payload.containsKey("soilPH")) {
-            builder.soilPH(parseDouble(payload.get("soilPH")));
-        }
-        if (payload.containsKey("sensorType")) {
-            builder.sensorType(payload.get("sensorType").toString());
+        if (reading.has(SensorReading.SOIL_PH)) {
+            builder.soilPH(reading.getSoilPH());
         }
 
         return builder.build();
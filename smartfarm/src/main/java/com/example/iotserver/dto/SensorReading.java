@@ -0,0 +1,104 @@
+package com.example.iotserver.dto;
+
+/**
+ * Một bản ghi cảm biến dạng primitive, dùng làm bộ đệm cho decoder MQTT.
+ *
+ * Không boxing và có thể tái sử dụng giữa các message (gọi reset() trước khi
+ * decode). Trường nào có mặt trong payload được đánh dấu bằng bitmask.
+ */
+public class SensorReading {
+
+    public static final int TEMPERATURE = 1;
+    public static final int HUMIDITY = 1 << 1;
+    public static final int SOIL_MOISTURE = 1 << 2;
+    public static final int LIGHT_INTENSITY = 1 << 3;
+    public static final int SOIL_PH = 1 << 4;
+
+    private int present;
+    private double temperature;
+    private double humidity;
+    private double soilMoisture;
+    private double lightIntensity;
+    private double soilPH;
+    private String sensorType;
+    // Chỉ có trong payload batch / payload có thời gian từ thiết bị
+    private String deviceId;
+    private long timestampMillis;
+    private boolean hasTimestamp;
+
+    public void reset() {
+        present = 0;
+        sensorType = null;
+        deviceId = null;
+        hasTimestamp = false;
+    }
+
+    public boolean has(int field) {
+        return (present & field) != 0;
+    }
+
+    public boolean isEmpty() {
+        return present == 0;
+    }
+
+    public void set(int field, double value) {
+        switch (field) {
+            case TEMPERATURE -> temperature = value;
+            case HUMIDITY -> humidity = value;
+            case SOIL_MOISTURE -> soilMoisture = value;
+            case LIGHT_INTENSITY -> lightIntensity = value;
+            case SOIL_PH -> soilPH = value;
+            default -> throw new IllegalArgumentException("Unknown sensor field: " + field);
+        }
+        present |= field;
+    }
+
+    public double getTemperature() {
+        return temperature;
+    }
+
+    public double getHumidity() {
+        return humidity;
+    }
+
+    public double getSoilMoisture() {
+        return soilMoisture;
+    }
+
+    public double getLightIntensity() {
+        return lightIntensity;
+    }
+
+    public double getSoilPH() {
+        return soilPH;
+    }
+
+    public String getSensorType() {
+        return sensorType;
+    }
+
+    public void setSensorType(String sensorType) {
+        this.sensorType = sensorType;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public void setDeviceId(String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    public boolean hasTimestamp() {
+        return hasTimestamp;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public void setTimestampMillis(long timestampMillis) {
+        this.timestampMillis = timestampMillis;
+        this.hasTimestamp = true;
+    }
+}
@@ -52,6 +52,14 @@ public class RuleExecutionLog {
     @Column(name = "execution_time_ms")
     private Long executionTimeMs;
 
+    // Số lần thực thi được gộp vào dòng này (các lần SKIPPED liên tiếp); null ở log cũ = 1
+    @Column(name = "repeat_count")
+    private Integer repeatCount;
+
+    // Lần thực thi cuối được gộp (executedAt là lần đầu), null nếu dòng chỉ có một lần
+    @Column(name = "last_executed_at")
+    private LocalDateTime lastExecutedAt;
+
     public enum ExecutionStatus {
         SUCCESS, // Thành công
         FAILED, // Thất bại
@@ -0,0 +1,23 @@
+package com.example.iotserver.enums;
+
+public enum ReportFormat {
+    CSV("csv", "text/csv; charset=UTF-8"),
+    CSV_GZIP("csv.gz", "application/gzip"),
+    PDF("pdf", "application/pdf");
+
+    private final String extension;
+    private final String contentType;
+
+    ReportFormat(String extension, String contentType) {
+        this.extension = extension;
+        this.contentType = contentType;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+}
@@ -26,6 +26,29 @@ public interface DeviceRepository extends JpaRepository<Device, Long> {
             "WHERE d.deviceId = :deviceId")
     Optional<Device> findByDeviceIdWithFarmAndOwner(@Param("deviceId") String deviceId);
 
+    // Dùng cho DeviceRegistry: deviceId, name, farmId, ownerId, status
+    @Query("SELECT d.deviceId, d.name, f.id, o.id, d.status FROM Device d " +
+            "LEFT JOIN d.farm f " +
+            "LEFT JOIN f.owner o")
+    List<Object[]> findAllForRegistry();
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE Device d SET d.status = :status, d.lastSeen = :lastSeen WHERE d.deviceId = :deviceId")
+    int updateStatusAndLastSeen(@Param("deviceId") String deviceId, @Param("status") DeviceStatus status,
+            @Param("lastSeen") LocalDateTime lastSeen);
+
+    // Chỉ đổi trạng thái khi lastSeen trong DB vẫn cũ hơn threshold; không ghi lại lastSeen
+    @Modifying
+    @Query("UPDATE Device d SET d.status = :newStatus WHERE d.deviceId = :deviceId AND d.status = :currentStatus"
+            + " AND d.lastSeen < :threshold")
+    int updateStatusIfStale(@Param("deviceId") String deviceId, @Param("currentStatus") DeviceStatus currentStatus,
+            @Param("newStatus") DeviceStatus newStatus, @Param("threshold") LocalDateTime threshold);
+
+    @Modifying
+    @Query("UPDATE Device d SET d.lastOfflineNotificationAt = :at WHERE d.deviceId = :deviceId")
+    int updateLastOfflineNotificationAt(@Param("deviceId") String deviceId, @Param("at") LocalDateTime at);
+
     List<Device> findByFarmId(Long farmId);
 
     List<Device> findByFarmIdAndType(Long farmId, DeviceType type);
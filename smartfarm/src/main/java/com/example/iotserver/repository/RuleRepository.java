@@ -21,6 +21,17 @@ public interface RuleRepository extends JpaRepository<Rule, Long> {
     @Query("SELECT r FROM Rule r WHERE r.enabled = true ORDER BY r.priority DESC")
     List<Rule> findAllEnabledRules();
 
+    // Nạp sẵn điều kiện cho cache quy tắc đã biên dịch (tránh lazy load từng quy tắc)
+    @Query("SELECT DISTINCT r FROM Rule r LEFT JOIN FETCH r.conditions WHERE r.enabled = true")
+    List<Rule> findAllEnabledWithConditions();
+
+    // Nạp hành động cho các quy tắc đã có trong persistence context (không fetch hai bag trong một query)
+    @Query("SELECT DISTINCT r FROM Rule r LEFT JOIN FETCH r.actions WHERE r IN :rules")
+    List<Rule> fetchActions(List<Rule> rules);
+
+    @Query("SELECT r FROM Rule r LEFT JOIN FETCH r.conditions WHERE r.id = :id")
+    Optional<Rule> findByIdWithConditions(Long id);
+
     // Tìm quy tắc theo Farm và enabled, sắp xếp theo priority
     @Query("SELECT r FROM Rule r WHERE r.farm.id = :farmId AND r.enabled = true ORDER BY r.priority DESC")
     List<Rule> findEnabledRulesByFarmOrderByPriority(Long farmId);
@@ -1,6 +1,7 @@
 // src/main/java/com/example/iotserver/scheduler/DeviceScheduler.java
 package com.example.iotserver.scheduler;
 
+import com.example.iotserver.service.DeviceLastSeenTracker;
 import com.example.iotserver.service.DeviceService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -13,6 +14,7 @@ import org.springframework.stereotype.Component;
 public class DeviceScheduler {
 
     private final DeviceService deviceService;
+    private final DeviceLastSeenTracker lastSeenTracker;
 
     // Chạy mỗi phút để kiểm tra thiết bị offline
     @Scheduled(fixedRate = 60000)
@@ -20,4 +22,10 @@ public class DeviceScheduler {
         log.debug("Running scheduled task to check for stale devices...");
         deviceService.checkStaleDevices();
     }
+
+    // Ghi lastSeen đã gom trong bộ nhớ xuống MySQL (mặc định mỗi 10 giây)
+    @Scheduled(fixedDelayString = "${device.last-seen.flush-interval-ms:10000}")
+    public void flushLastSeen() {
+        lastSeenTracker.flush();
+    }
 }
\ No newline at end of file
@@ -14,7 +14,9 @@ public class RuleScheduler {
     private final RuleEngineService ruleEngineService;
 
     /**
-     * Chạy Rule Engine mỗi 30 giây
+     * Chạy Rule Engine mỗi 30 giây cho các quy tắc có điều kiện thời gian,
+     * thời tiết hoặc trạng thái thiết bị. Điều kiện cảm biến được đánh giá
+     * ngay khi có reading (RuleTriggerService).
      * 
      * fixedDelay = 30000 nghĩa là sau khi hoàn thành, đợi 30 giây rồi chạy lại
      */
@@ -0,0 +1,339 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.dto.WeatherDTO;
+import com.example.iotserver.entity.Rule;
+import com.example.iotserver.entity.RuleCondition;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Dạng đã biên dịch, bất biến của một quy tắc.
+ *
+ * Điều kiện được sắp theo orderIndex và gộp thành cây AND/OR một lần khi biên
+ * dịch; ngưỡng so sánh, khung giờ, trạng thái mong đợi và cách đọc field đều
+ * được parse sẵn. Điều kiện không hợp lệ (thiếu deviceId, giá trị không phải
+ * số, field không hỗ trợ...) được cảnh báo một lần và biên dịch thành lá luôn
+ * sai. Đối tượng không giữ tham chiếu tới entity JPA nên dùng được ngoài
+ * transaction và chia sẻ giữa các thread.
+ */
+@Slf4j
+public final class CompiledRule {
+
+    /**
+     * Dữ liệu đầu vào cho một lượt đánh giá.
+     */
+    public interface Inputs {
+        SensorDataDTO sensorData(String deviceId);
+
+        // Thiết bị có reading đủ mới (theo rules.sensor.max-age-hours)
+        boolean hasRecentData(String deviceId);
+
+        // Trạng thái hiện tại (ONLINE/OFFLINE...), null nếu không tìm thấy thiết bị
+        String deviceStatus(String deviceId);
+
+        WeatherDTO weather(Long farmId);
+
+        LocalTime now();
+    }
+
+    /**
+     * Nút của cây điều kiện. Chi tiết giá trị đã so sánh được ghi vào context
+     * (lưu vào execution log).
+     */
+    @FunctionalInterface
+    public interface Predicate {
+        boolean test(Inputs inputs, Map<String, Object> context);
+    }
+
+    // Nút đã đánh số: lá sai ghi chỉ số của mình (thứ tự orderIndex, từ 0) vào failed
+    private interface Node {
+        boolean test(Inputs inputs, Map<String, Object> context, BitSet failed);
+    }
+
+    /**
+     * Một cặp (thiết bị, field đã chuẩn hóa) mà quy tắc đọc từ cảm biến.
+     */
+    public record SensorInput(String deviceId, String field) {
+    }
+
+    private static final Predicate NEVER = (inputs, context) -> false;
+
+    private final Long id;
+    private final Long farmId;
+    private final String name;
+    private final int priority;
+    private final Node condition;
+    private final List<Rule.RuleAction> actions;
+    private final Set<SensorInput> sensorInputs;
+    private final boolean periodic;
+
+    private CompiledRule(Long id, Long farmId, String name, int priority, Node condition,
+            List<Rule.RuleAction> actions, Set<SensorInput> sensorInputs, boolean periodic) {
+        this.id = id;
+        this.farmId = farmId;
+        this.name = name;
+        this.priority = priority;
+        this.condition = condition;
+        this.actions = actions;
+        this.sensorInputs = sensorInputs;
+        this.periodic = periodic;
+    }
+
+    /**
+     * Biên dịch quy tắc. Phải gọi trong transaction (đọc conditions, actions).
+     */
+    public static CompiledRule compile(Rule rule) {
+        List<RuleCondition> sorted = rule.getConditions().stream()
+                .sorted(Comparator.comparing(RuleCondition::getOrderIndex,
+                        Comparator.nullsFirst(Comparator.naturalOrder())))
+                .toList();
+
+        Node root = null;
+        RuleCondition.LogicalOperator nextOperator = RuleCondition.LogicalOperator.AND;
+        Set<SensorInput> sensorInputs = new HashSet<>();
+        boolean periodic = false;
+        int leafCount = 0;
+        Long farmId = rule.getFarm().getId();
+
+        for (RuleCondition condition : sorted) {
+            Node leaf = leaf(compileCondition(rule, farmId, condition), leafCount++);
+            if (root == null) {
+                root = leaf;
+            } else {
+                Node left = root;
+                // Dùng & và | (không short-circuit) để mọi điều kiện đều ghi chi tiết vào context
+                root = nextOperator == RuleCondition.LogicalOperator.OR
+                        ? (inputs, context, failed) -> left.test(inputs, context, failed)
+                                | leaf.test(inputs, context, failed)
+                        : (inputs, context, failed) -> left.test(inputs, context, failed)
+                                & leaf.test(inputs, context, failed);
+            }
+            nextOperator = condition.getLogicalOperator();
+
+            if (condition.getType() == RuleCondition.ConditionType.SENSOR_VALUE) {
+                if (condition.getDeviceId() != null && condition.getField() != null) {
+                    sensorInputs.add(new SensorInput(condition.getDeviceId(), normalizeField(condition.getField())));
+                }
+            } else {
+                periodic = true;
+            }
+        }
+        if (root == null) {
+            log.warn("Quy tắc '{}' không có điều kiện nào", rule.getName());
+            root = leaf(NEVER, 0);
+        }
+
+        List<Rule.RuleAction> actions = new ArrayList<>();
+        for (Rule.RuleAction action : rule.getActions()) {
+            actions.add(new Rule.RuleAction(action.getType(), action.getDeviceId(), action.getDurationSeconds(),
+                    action.getMessage()));
+        }
+
+        return new CompiledRule(rule.getId(), farmId, rule.getName(),
+                rule.getPriority() != null ? rule.getPriority() : 0, root, List.copyOf(actions),
+                Set.copyOf(sensorInputs), periodic);
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getFarmId() {
+        return farmId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public List<Rule.RuleAction> getActions() {
+        return actions;
+    }
+
+    public Set<SensorInput> getSensorInputs() {
+        return sensorInputs;
+    }
+
+    /**
+     * Có điều kiện không phải SENSOR_VALUE (thời gian, thời tiết, trạng thái
+     * thiết bị) nên cần lượt quét định kỳ.
+     */
+    public boolean needsPeriodicSweep() {
+        return periodic;
+    }
+
+    public boolean test(Inputs inputs, Map<String, Object> context) {
+        return test(inputs, context, new BitSet());
+    }
+
+    /**
+     * Như trên, đồng thời ghi vào failed chỉ số (theo orderIndex, từ 0) của
+     * các điều kiện sai. Hai lần đánh giá có cùng failed là cùng một kết quả
+     * dù giá trị đọc được (giờ hiện tại, giá trị cảm biến) khác nhau.
+     */
+    public boolean test(Inputs inputs, Map<String, Object> context, BitSet failed) {
+        return condition.test(inputs, context, failed);
+    }
+
+    private static Node leaf(Predicate predicate, int index) {
+        return (inputs, context, failed) -> {
+            boolean met = predicate.test(inputs, context);
+            if (!met) {
+                failed.set(index);
+            }
+            return met;
+        };
+    }
+
+    // Giống cách đọc field cảm biến trước đây: chữ thường, bỏ "_"
+    static String normalizeField(String field) {
+        return field.toLowerCase().replace("_", "");
+    }
+
+    private static Predicate compileCondition(Rule rule, Long farmId, RuleCondition condition) {
+        try {
+            return switch (condition.getType()) {
+                case SENSOR_VALUE -> compileSensor(condition);
+                case TIME_RANGE -> compileTimeRange(condition);
+                case DEVICE_STATUS -> compileDeviceStatus(condition);
+                case WEATHER -> compileWeather(farmId, condition);
+            };
+        } catch (RuntimeException e) {
+            log.warn("Quy tắc '{}': điều kiện {} {} {} không hợp lệ, luôn coi là sai ({})", rule.getName(),
+                    condition.getField(), condition.getOperator(), condition.getValue(), e.getMessage());
+            return NEVER;
+        }
+    }
+
+    private static Predicate compileSensor(RuleCondition condition) {
+        String deviceId = condition.getDeviceId();
+        if (deviceId == null || deviceId.isEmpty()) {
+            throw new IllegalArgumentException("thiếu deviceId cho điều kiện cảm biến");
+        }
+        String field = condition.getField();
+        Function<SensorDataDTO, Double> reader = switch (normalizeField(field)) {
+            case "temperature" -> SensorDataDTO::getTemperature;
+            case "humidity" -> SensorDataDTO::getHumidity;
+            case "soilmoisture" -> SensorDataDTO::getSoilMoisture;
+            case "lightintensity" -> SensorDataDTO::getLightIntensity;
+            case "soilph" -> SensorDataDTO::getSoilPH;
+            default -> throw new IllegalArgumentException("trường cảm biến không được hỗ trợ: " + field);
+        };
+        RuleCondition.Operator operator = condition.getOperator();
+        double expected = Double.parseDouble(condition.getValue().trim());
+
+        return (inputs, context) -> {
+            if (!inputs.hasRecentData(deviceId)) {
+                log.debug("Không có dữ liệu cảm biến đủ mới cho device: {}", deviceId);
+                return false;
+            }
+            SensorDataDTO data = inputs.sensorData(deviceId);
+            Double actual = data != null ? reader.apply(data) : null;
+            if (actual == null) {
+                log.debug("Không có giá trị {} cho thiết bị: {}", field, deviceId);
+                return false;
+            }
+            context.put(field, actual);
+            context.put(field + "_expected", expected);
+            boolean result = compareValues(actual, operator, expected);
+            log.debug("  {} {}: {} {} {} = {}", deviceId, field, actual, operator, expected, result);
+            return result;
+        };
+    }
+
+    // Format: "06:00-18:00" hoặc "06:00"
+    private static Predicate compileTimeRange(RuleCondition condition) {
+        String value = condition.getValue();
+        if (value.contains("-")) {
+            String[] parts = value.split("-");
+            LocalTime start = LocalTime.parse(parts[0].trim());
+            LocalTime end = LocalTime.parse(parts[1].trim());
+            return (inputs, context) -> {
+                LocalTime now = inputs.now();
+                boolean inRange = now.isAfter(start) && now.isBefore(end);
+                context.put("current_time", now.toString());
+                context.put("time_range", value);
+                context.put("in_time_range", inRange);
+                return inRange;
+            };
+        }
+        LocalTime target = LocalTime.parse(value.trim());
+        return (inputs, context) -> {
+            LocalTime now = inputs.now();
+            context.put("current_time", now.toString());
+            return !now.isBefore(target);
+        };
+    }
+
+    private static Predicate compileDeviceStatus(RuleCondition condition) {
+        String deviceId = condition.getDeviceId();
+        if (deviceId == null || deviceId.isEmpty()) {
+            throw new IllegalArgumentException("thiếu deviceId cho điều kiện trạng thái");
+        }
+        String expected = condition.getValue().trim().toUpperCase();
+        return (inputs, context) -> {
+            String current = inputs.deviceStatus(deviceId);
+            if (current == null) {
+                log.warn("Không tìm thấy thiết bị với ID '{}' cho điều kiện trạng thái.", deviceId);
+                return false;
+            }
+            context.put("device_" + deviceId + "_status", current);
+            context.put("device_" + deviceId + "_expected_status", expected);
+            return current.equals(expected);
+        };
+    }
+
+    private static Predicate compileWeather(Long farmId, RuleCondition condition) {
+        String field = condition.getField().toLowerCase();
+        Function<WeatherDTO, Double> reader = switch (field) {
+            case "rain_amount", "rain" -> WeatherDTO::getRainAmount;
+            case "temperature" -> WeatherDTO::getTemperature;
+            case "humidity" -> WeatherDTO::getHumidity;
+            case "wind_speed" -> WeatherDTO::getWindSpeed;
+            default -> throw new IllegalArgumentException("trường thời tiết không được hỗ trợ: " + field);
+        };
+        RuleCondition.Operator operator = condition.getOperator();
+        double expected = Double.parseDouble(condition.getValue().trim());
+
+        return (inputs, context) -> {
+            WeatherDTO weather = inputs.weather(farmId);
+            if (weather == null) {
+                log.warn("Không có dữ liệu thời tiết cho farm {}", farmId);
+                return false;
+            }
+            Double actual = reader.apply(weather);
+            if (actual == null) {
+                return false;
+            }
+            context.put("weather_" + field, actual);
+            context.put("weather_" + field + "_expected", expected);
+            return compareValues(actual, operator, expected);
+        };
+    }
+
+    private static boolean compareValues(double actual, RuleCondition.Operator operator, double expected) {
+        return switch (operator) {
+            case EQUALS -> Math.abs(actual - expected) < 0.01;
+            case NOT_EQUALS -> Math.abs(actual - expected) >= 0.01;
+            case GREATER_THAN -> actual > expected;
+            case GREATER_THAN_OR_EQUAL -> actual >= expected;
+            case LESS_THAN -> actual < expected;
+            case LESS_THAN_OR_EQUAL -> actual <= expected;
+            default -> false;
+        };
+    }
+}
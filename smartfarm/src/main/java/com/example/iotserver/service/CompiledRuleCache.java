@@ -0,0 +1,232 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.config.RedisPubSubConfig;
+import com.example.iotserver.entity.Rule;
+import com.example.iotserver.repository.RuleRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Bộ nhớ đệm các quy tắc đang bật ở dạng đã biên dịch ({@link CompiledRule}).
+ *
+ * Lúc khởi động nạp toàn bộ bằng hai query fetch join (điều kiện, hành động)
+ * thay vì lazy load từng quy tắc. Sau đó chỉ quy tắc vừa được
+ * tạo/sửa/xóa/bật tắt được nạp và biên dịch lại (sau commit), rồi thay cả
+ * snapshot theo kiểu copy-on-write với version tăng dần. Người đọc lấy
+ * {@link #snapshot()} một lần và dùng trọn lượt, không cần khóa.
+ *
+ * Thay đổi được publish lên Redis để các instance khác cũng nạp lại quy tắc
+ * đó; ngoài ra toàn bộ cache được nạp lại định kỳ
+ * (rules.cache.reload-interval-ms) phòng khi lỡ mất message hoặc dữ liệu bị
+ * sửa trực tiếp trong DB.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class CompiledRuleCache {
+
+    /**
+     * Trạng thái bất biến của cache tại một version.
+     */
+    public static final class Snapshot {
+
+        private static final Comparator<CompiledRule> BY_PRIORITY =
+                Comparator.comparingInt(CompiledRule::getPriority).reversed();
+
+        // Khai báo sau BY_PRIORITY: constructor cần comparator đã được khởi tạo
+        static final Snapshot EMPTY = new Snapshot(0, Collections.emptyMap());
+
+        private final long version;
+        private final Map<Long, CompiledRule> rules;
+        private final List<CompiledRule> sweepRules;
+        // deviceId -> field (đã chuẩn hóa) -> id quy tắc
+        private final Map<String, Map<String, Set<Long>>> triggerIndex;
+
+        Snapshot(long version, Map<Long, CompiledRule> rules) {
+            this.version = version;
+            this.rules = rules;
+            this.sweepRules = rules.values().stream()
+                    .filter(CompiledRule::needsPeriodicSweep)
+                    .sorted(BY_PRIORITY)
+                    .toList();
+            Map<String, Map<String, Set<Long>>> index = new HashMap<>();
+            for (CompiledRule rule : rules.values()) {
+                for (CompiledRule.SensorInput input : rule.getSensorInputs()) {
+                    index.computeIfAbsent(input.deviceId(), id -> new HashMap<>())
+                            .computeIfAbsent(input.field(), f -> new HashSet<>())
+                            .add(rule.getId());
+                }
+            }
+            this.triggerIndex = index;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int size() {
+            return rules.size();
+        }
+
+        public CompiledRule get(Long ruleId) {
+            return rules.get(ruleId);
+        }
+
+        /**
+         * Các quy tắc (đã sắp theo priority giảm dần) trong ruleIds còn bật.
+         */
+        public List<CompiledRule> get(Iterable<Long> ruleIds) {
+            List<CompiledRule> result = new ArrayList<>();
+            for (Long ruleId : ruleIds) {
+                CompiledRule rule = rules.get(ruleId);
+                if (rule != null) {
+                    result.add(rule);
+                }
+            }
+            result.sort(BY_PRIORITY);
+            return result;
+        }
+
+        /**
+         * Quy tắc cần lượt quét định kỳ, theo priority giảm dần.
+         */
+        public List<CompiledRule> getSweepRules() {
+            return sweepRules;
+        }
+
+        /**
+         * field (đã chuẩn hóa) -> id quy tắc đọc field đó của thiết bị, hoặc null.
+         */
+        public Map<String, Set<Long>> getTriggers(String deviceId) {
+            return triggerIndex.get(deviceId);
+        }
+    }
+
+    private final RuleRepository ruleRepository;
+    private final PlatformTransactionManager transactionManager;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private volatile Snapshot current = Snapshot.EMPTY;
+    private TransactionTemplate readOnlyTx;
+
+    @PostConstruct
+    void init() {
+        readOnlyTx = new TransactionTemplate(transactionManager);
+        readOnlyTx.setReadOnly(true);
+        // Được gọi từ afterCommit của transaction khác nên luôn mở transaction mới
+        readOnlyTx.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                reloadRule(Long.valueOf(body));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring malformed rule change message: {}", body);
+            }
+        }, new ChannelTopic(RedisPubSubConfig.RULES_CHANGED_CHANNEL));
+    }
+
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void reload() {
+        try {
+            Map<Long, CompiledRule> compiled = readOnlyTx.execute(status -> {
+                List<Rule> rules = ruleRepository.findAllEnabledWithConditions();
+                if (!rules.isEmpty()) {
+                    ruleRepository.fetchActions(rules);
+                }
+                Map<Long, CompiledRule> result = new HashMap<>();
+                for (Rule rule : rules) {
+                    result.put(rule.getId(), CompiledRule.compile(rule));
+                }
+                return result;
+            });
+            current = new Snapshot(current.version + 1, Collections.unmodifiableMap(compiled));
+            log.info("Compiled rule cache loaded: {} rules (version {})", compiled.size(), current.version);
+        } catch (Exception e) {
+            log.error("Failed to load compiled rule cache: {}", e.getMessage(), e);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${rules.cache.reload-interval-ms:300000}",
+            fixedDelayString = "${rules.cache.reload-interval-ms:300000}")
+    public void periodicReload() {
+        reload();
+    }
+
+    /**
+     * Gọi khi quy tắc được tạo/sửa/xóa/bật tắt: nạp lại riêng quy tắc đó sau
+     * khi transaction hiện tại commit (hoặc ngay nếu không có transaction),
+     * rồi báo các instance khác làm theo.
+     */
+    public void refresh(Long ruleId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    reloadRule(ruleId);
+                    publishChange(ruleId);
+                }
+            });
+        } else {
+            reloadRule(ruleId);
+            publishChange(ruleId);
+        }
+    }
+
+    private void publishChange(Long ruleId) {
+        try {
+            redisTemplate.convertAndSend(RedisPubSubConfig.RULES_CHANGED_CHANNEL, String.valueOf(ruleId));
+        } catch (Exception e) {
+            log.warn("Could not publish change of rule {}: {}", ruleId, e.getMessage());
+        }
+    }
+
+    private synchronized void reloadRule(Long ruleId) {
+        try {
+            Optional<CompiledRule> compiled = readOnlyTx.execute(status -> ruleRepository
+                    .findByIdWithConditions(ruleId)
+                    .filter(rule -> Boolean.TRUE.equals(rule.getEnabled()))
+                    .map(CompiledRule::compile));
+            Map<Long, CompiledRule> rules = new HashMap<>(current.rules);
+            if (compiled.isPresent()) {
+                rules.put(ruleId, compiled.get());
+            } else {
+                rules.remove(ruleId);
+            }
+            current = new Snapshot(current.version + 1, Collections.unmodifiableMap(rules));
+            log.debug("Compiled rule cache: rule {} {} (version {})", ruleId,
+                    compiled.isPresent() ? "recompiled" : "removed", current.version);
+        } catch (Exception e) {
+            log.error("Failed to refresh compiled rule {}: {}", ruleId, e.getMessage(), e);
+        }
+    }
+}
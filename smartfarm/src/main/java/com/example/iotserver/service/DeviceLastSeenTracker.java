@@ -0,0 +1,118 @@
+package com.example.iotserver.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gom các lần cập nhật lastSeen của thiết bị trong bộ nhớ.
+ *
+ * Mỗi message MQTT chỉ ghi vào map; DeviceScheduler định kỳ gọi flush() để
+ * ghi tất cả thay đổi xuống MySQL bằng một câu UPDATE ... CASE cho mỗi lô.
+ * getLastSeen() luôn trả về giá trị mới nhất (kể cả khi chưa flush) để việc
+ * phát hiện thiết bị offline không bị trễ.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class DeviceLastSeenTracker {
+
+    // Giới hạn số thiết bị trong một câu UPDATE để không vượt quá số tham số JDBC
+    private static final int MAX_DEVICES_PER_STATEMENT = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final Map<String, LocalDateTime> lastSeen = new ConcurrentHashMap<>();
+    private final Map<String, LocalDateTime> pending = new ConcurrentHashMap<>();
+
+    public void touch(String deviceId, LocalDateTime at) {
+        lastSeen.merge(deviceId, at, DeviceLastSeenTracker::latest);
+        pending.merge(deviceId, at, DeviceLastSeenTracker::latest);
+    }
+
+    /**
+     * lastSeen mới nhất đã biết trong bộ nhớ, hoặc null nếu chưa nhận message nào
+     * từ thiết bị này kể từ khi khởi động.
+     */
+    public LocalDateTime getLastSeen(String deviceId) {
+        return lastSeen.get(deviceId);
+    }
+
+    /**
+     * Trả về giá trị mới hơn giữa lastSeen trong DB và trong bộ nhớ.
+     */
+    public LocalDateTime resolve(String deviceId, LocalDateTime persisted) {
+        LocalDateTime inMemory = lastSeen.get(deviceId);
+        if (inMemory == null) {
+            return persisted;
+        }
+        return persisted == null ? inMemory : latest(persisted, inMemory);
+    }
+
+    public void forget(String deviceId) {
+        lastSeen.remove(deviceId);
+        pending.remove(deviceId);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @PreDestroy
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<Map.Entry<String, LocalDateTime>> batch = new ArrayList<>();
+        for (Map.Entry<String, LocalDateTime> entry : pending.entrySet()) {
+            // Chỉ lấy ra nếu giá trị chưa bị touch() ghi đè trong lúc đang flush
+            if (pending.remove(entry.getKey(), entry.getValue())) {
+                batch.add(Map.entry(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        int updated = 0;
+        for (int from = 0; from < batch.size(); from += MAX_DEVICES_PER_STATEMENT) {
+            List<Map.Entry<String, LocalDateTime>> chunk = batch.subList(from,
+                    Math.min(from + MAX_DEVICES_PER_STATEMENT, batch.size()));
+            try {
+                updated += writeChunk(chunk);
+            } catch (Exception e) {
+                log.error("Failed to flush lastSeen for {} devices: {}", chunk.size(), e.getMessage());
+                chunk.forEach(entry -> pending.merge(entry.getKey(), entry.getValue(), DeviceLastSeenTracker::latest));
+            }
+        }
+        log.debug("Flushed lastSeen for {} devices ({} rows updated)", batch.size(), updated);
+    }
+
+    private int writeChunk(List<Map.Entry<String, LocalDateTime>> chunk) {
+        StringBuilder sql = new StringBuilder("UPDATE devices SET last_seen = CASE device_id");
+        List<Object> args = new ArrayList<>(chunk.size() * 3);
+        for (Map.Entry<String, LocalDateTime> entry : chunk) {
+            sql.append(" WHEN ? THEN ?");
+            args.add(entry.getKey());
+            args.add(Timestamp.valueOf(entry.getValue()));
+        }
+        sql.append(" ELSE last_seen END WHERE device_id IN (");
+        for (int i = 0; i < chunk.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+            args.add(chunk.get(i).getKey());
+        }
+        sql.append(')');
+        return jdbcTemplate.update(sql.toString(), args.toArray());
+    }
+
+    private static LocalDateTime latest(LocalDateTime a, LocalDateTime b) {
+        return a.isAfter(b) ? a : b;
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.entity.Device;
+import com.example.iotserver.enums.DeviceStatus;
+import com.example.iotserver.repository.DeviceRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bảng tra cứu thiết bị trong bộ nhớ cho luồng ingest MQTT.
+ *
+ * Giữ thông tin tối thiểu (farmId, ownerId, status, name) theo deviceId để
+ * MqttMessageHandler không phải chạy fetch join Device-Farm-User cho mỗi
+ * message. Nạp toàn bộ lúc khởi động, cache miss thì đọc DB một lần, và
+ * DeviceService/FarmService gọi evict() khi thiết bị thay đổi.
+ *
+ * Mỗi lần evict tăng generation; kết quả đọc DB chỉ được đưa vào cache nếu
+ * không có evict nào xảy ra trong lúc đọc, để bản ghi đọc trước commit không
+ * ghi đè lên lần evict sau commit.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class DeviceRegistry {
+
+    // Thiết bị lạ (chưa đăng ký) được nhớ trong 1 phút để tránh hit DB mỗi message
+    private static final long UNKNOWN_DEVICE_TTL_MS = 60_000;
+
+    private final DeviceRepository deviceRepository;
+
+    private final Map<String, CachedDevice> devices = new ConcurrentHashMap<>();
+    private final Map<String, Long> unknownUntil = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    @Getter
+    @AllArgsConstructor
+    @ToString
+    public static class CachedDevice {
+        private final String deviceId;
+        private final String name;
+        private final Long farmId;
+        private final Long ownerId;
+        private final DeviceStatus status;
+
+        CachedDevice withStatus(DeviceStatus newStatus) {
+            return new CachedDevice(deviceId, name, farmId, ownerId, newStatus);
+        }
+    }
+
+    @PostConstruct
+    void loadAll() {
+        List<Object[]> rows = deviceRepository.findAllForRegistry();
+        for (Object[] row : rows) {
+            CachedDevice device = new CachedDevice((String) row[0], (String) row[1], (Long) row[2],
+                    (Long) row[3], (DeviceStatus) row[4]);
+            devices.put(device.getDeviceId(), device);
+        }
+        log.info("Device registry loaded {} devices", devices.size());
+    }
+
+    /**
+     * Trả về thiết bị theo deviceId, hoặc null nếu thiết bị chưa được đăng ký.
+     */
+    public CachedDevice get(String deviceId) {
+        CachedDevice cached = devices.get(deviceId);
+        if (cached != null) {
+            return cached;
+        }
+
+        Long until = unknownUntil.get(deviceId);
+        if (until != null && until > System.currentTimeMillis()) {
+            return null;
+        }
+
+        long loadGeneration = generation.get();
+        CachedDevice loaded = deviceRepository.findByDeviceIdWithFarmAndOwner(deviceId)
+                .map(DeviceRegistry::toCached)
+                .orElse(null);
+        synchronized (generation) {
+            if (generation.get() != loadGeneration) {
+                // Thiết bị vừa thay đổi trong lúc đọc: dùng kết quả cho lần này nhưng không cache
+                return loaded;
+            }
+            if (loaded == null) {
+                unknownUntil.put(deviceId, System.currentTimeMillis() + UNKNOWN_DEVICE_TTL_MS);
+                return null;
+            }
+            unknownUntil.remove(deviceId);
+            CachedDevice existing = devices.putIfAbsent(deviceId, loaded);
+            return existing != null ? existing : loaded;
+        }
+    }
+
+    /**
+     * Cập nhật trạng thái kết nối sau khi đã ghi xuống DB (write-through).
+     */
+    public void updateStatus(String deviceId, DeviceStatus status) {
+        devices.computeIfPresent(deviceId, (id, device) -> device.withStatus(status));
+    }
+
+    /**
+     * Xóa thiết bị khỏi registry. Nếu đang trong transaction thì chờ commit
+     * xong mới xóa, tránh luồng MQTT nạp lại dữ liệu cũ trước khi commit.
+     */
+    public void evict(String deviceId) {
+        runAfterCommit(() -> {
+            synchronized (generation) {
+                generation.incrementAndGet();
+                devices.remove(deviceId);
+                unknownUntil.remove(deviceId);
+            }
+        });
+    }
+
+    public void evictFarm(Long farmId) {
+        runAfterCommit(() -> {
+            synchronized (generation) {
+                generation.incrementAndGet();
+                devices.values().removeIf(device -> farmId.equals(device.getFarmId()));
+            }
+        });
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    private static CachedDevice toCached(Device device) {
+        Long farmId = device.getFarm() != null ? device.getFarm().getId() : null;
+        Long ownerId = device.getFarm() != null && device.getFarm().getOwner() != null
+                ? device.getFarm().getOwner().getId()
+                : null;
+        return new CachedDevice(device.getDeviceId(), device.getName(), farmId, ownerId, device.getStatus());
+    }
+
+    private static void runAfterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+}
@@ -15,6 +15,8 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.time.LocalDateTime;
 import java.util.Arrays;
@@ -53,6 +55,10 @@ public class DeviceService {
     // ✅ THÊM: Inject MQTT Gateway
     private final MqttGateway mqttGateway;
 
+    private final DeviceRegistry deviceRegistry;
+    private final DeviceLastSeenTracker lastSeenTracker;
+    private final LatestSensorValueStore latestSensorValues;
+
     // VVVV--- SỬA LẠI PHƯƠNG THỨC `createDevice` ---VVVV
     @Transactional
     public DeviceDTO createDevice(Long farmId, DeviceDTO dto) {
@@ -93,6 +99,7 @@ public class DeviceService {
         }
 
         Device saved = deviceRepository.save(device);
+        deviceRegistry.evict(saved.getDeviceId());
         log.info("Đã tạo thiết bị thủ công: {} cho nông trại: {}", saved.getDeviceId(), farmId);
         return mapToDetailedDTO(saved);
     }
@@ -135,6 +142,7 @@ public class DeviceService {
         }
 
         Device updated = deviceRepository.save(device);
+        deviceRegistry.evict(updated.getDeviceId());
         log.info("Đã cập nhật thiết bị: {}", updated.getDeviceId());
         return mapToDetailedDTO(updated);
     }
@@ -160,6 +168,7 @@ public class DeviceService {
                     // Quan trọng: device.setFarm(null);
 
                     Device savedDevice = deviceRepository.save(newDevice);
+                    deviceRegistry.evict(standardizedId);
                     return mapToDetailedDTO(savedDevice);
                 });
     }
@@ -183,6 +192,9 @@ public class DeviceService {
         farmService.checkUserPermissionForFarm(currentUser.getId(), device.getFarm().getId(), FarmRole.OPERATOR);
 
         deviceRepository.delete(device);
+        deviceRegistry.evict(device.getDeviceId());
+        lastSeenTracker.forget(device.getDeviceId());
+        latestSensorValues.forget(device.getDeviceId());
         log.info("Deleted device: {}", device.getDeviceId());
     }
 
@@ -290,20 +302,44 @@ public class DeviceService {
         }
     }
 
-    // SỬA LẠI HÀM NÀY
+    /**
+     * Đánh dấu OFFLINE các thiết bị không gửi dữ liệu quá 5 phút và gửi thông
+     * báo (cooldown 6 tiếng).
+     *
+     * Trạng thái và thời điểm thông báo được ghi bằng UPDATE có điều kiện
+     * thay vì save() cả entity, để không ghi đè last_seen mới hơn vừa được
+     * DeviceLastSeenTracker flush. Registry và WebSocket chỉ được cập nhật sau
+     * commit, và chỉ khi UPDATE thực sự đổi trạng thái.
+     */
     @Transactional
     public void checkStaleDevices() {
         LocalDateTime threshold = LocalDateTime.now().minusMinutes(5);
         List<Device> staleDevices = deviceRepository.findStaleDevices(threshold);
 
         for (Device device : staleDevices) {
-            boolean statusChanged = false;
+            String deviceId = device.getDeviceId();
+            // lastSeen trong DB có thể trễ tối đa một chu kỳ flush, ưu tiên giá trị trong bộ nhớ
+            LocalDateTime lastSeen = lastSeenTracker.getLastSeen(deviceId);
+            if (lastSeen != null && !lastSeen.isBefore(threshold)) {
+                continue;
+            }
+
             // Bước 1: Cập nhật trạng thái nếu cần
             if (device.getStatus() == DeviceStatus.ONLINE) {
-                device.setStatus(DeviceStatus.OFFLINE);
-                statusChanged = true;
-                log.warn("Device {} marked as offline due to inactivity", device.getDeviceId());
-                webSocketService.sendDeviceStatus(device.getFarm().getId(), device.getDeviceId(), "OFFLINE");
+                if (deviceRepository.updateStatusIfStale(deviceId, DeviceStatus.ONLINE, DeviceStatus.OFFLINE,
+                        threshold) == 0) {
+                    // Thiết bị vừa gửi dữ liệu (lastSeen đã được flush) hoặc trạng thái đã đổi
+                    continue;
+                }
+                Long farmId = device.getFarm().getId();
+                log.warn("Device {} marked as offline due to inactivity", deviceId);
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCommit() {
+                        deviceRegistry.updateStatus(deviceId, DeviceStatus.OFFLINE);
+                        webSocketService.sendDeviceStatus(farmId, deviceId, "OFFLINE");
+                    }
+                });
             }
 
             // Bước 2: Logic quyết định có gửi thông báo hay không (COOLDOWN)
@@ -317,7 +353,7 @@ public class DeviceService {
                 User owner = device.getFarm().getOwner();
                 String title = String.format("Thiết bị '%s' đã offline", device.getName());
                 String message = String.format("Thiết bị '%s' (ID: %s) tại nông trại '%s' đã mất kết nối quá 5 phút.",
-                        device.getName(), device.getDeviceId(), device.getFarm().getName());
+                        device.getName(), deviceId, device.getFarm().getName());
                 String link = "/devices";
 
                 notificationService.createAndSendNotification(
@@ -329,15 +365,9 @@ public class DeviceService {
                         true // Gửi email
                 );
 
-                // Bước 3: Cập nhật thời gian đã gửi thông báo
-                device.setLastOfflineNotificationAt(LocalDateTime.now());
-                log.info("Đã gửi thông báo offline cho thiết bị {} và cập nhật cooldown.", device.getDeviceId());
-
-                // Lưu lại thay đổi (bao gồm cả status nếu có và thời gian thông báo)
-                deviceRepository.save(device);
-            } else if (statusChanged) {
-                // Nếu chỉ có status thay đổi mà không gửi thông báo, vẫn cần lưu lại
-                deviceRepository.save(device);
+                // Bước 3: Cập nhật thời gian đã gửi thông báo (không sửa entity để tránh ghi lại last_seen cũ)
+                deviceRepository.updateLastOfflineNotificationAt(deviceId, LocalDateTime.now());
+                log.info("Đã gửi thông báo offline cho thiết bị {} và cập nhật cooldown.", deviceId);
             }
         }
     }
@@ -394,7 +424,7 @@ public class DeviceService {
                 .description(device.getDescription())
                 .type(device.getType().name())
                 .status(device.getStatus().name())
-                .lastSeen(device.getLastSeen())
+                .lastSeen(lastSeenTracker.resolve(device.getDeviceId(), device.getLastSeen()))
                 .metadata(device.getMetadata())
                 .createdAt(device.getCreatedAt())
                 .updatedAt(device.getUpdatedAt());
@@ -0,0 +1,295 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.dto.SensorDataDTO;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thống kê trượt (mean/min/max/count) theo farm và theo field cho 3 cửa sổ
+ * 1 phút, 1 giờ, 24 giờ, cập nhật dần khi reading được ghi.
+ *
+ * Mỗi cửa sổ là một ring buffer gồm các ô thời gian cố định; đọc thống kê chỉ
+ * cộng dồn số ô của ring nên chi phí không phụ thuộc lượng dữ liệu.
+ *
+ * Lúc khởi động, cửa sổ 1 giờ và 24 giờ được nạp từ InfluxDB (count/sum/min/max
+ * theo phút, theo farm và field) cho khoảng trước mốc warm-cutoff; reading
+ * ghi trực tiếp có thời gian trước mốc đó bị bỏ qua cho tới khi nạp xong để
+ * không bị đếm hai lần. Cửa sổ 1 phút chỉ có dữ liệu từ lúc khởi động.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class FarmRollingAggregates {
+
+    public enum Window {
+        ONE_MINUTE("1m", 1_000, 60),
+        ONE_HOUR("1h", 60_000, 60),
+        ONE_DAY("24h", 600_000, 144);
+
+        private final String label;
+        private final long slotMillis;
+        private final int slots;
+
+        Window(String label, long slotMillis, int slots) {
+            this.label = label;
+            this.slotMillis = slotMillis;
+            this.slots = slots;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    public record FieldStats(double mean, double min, double max, long count) {
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("mean", mean);
+            map.put("min", min);
+            map.put("max", max);
+            map.put("count", count);
+            return map;
+        }
+    }
+
+    private static final String[] FIELDS = LatestSensorValueStore.FIELDS;
+    // Mỗi hàm gộp một query; kết quả của cùng (farm, field, phút) được ghép lại trước khi nạp
+    private static final List<String> WARM_AGGREGATES = List.of("count", "sum", "min", "max");
+    private static final long WARM_SLOT_MILLIS = 60_000;
+
+    private final InfluxQueryExecutor queryExecutor;
+    private final InfluxDBConfig influxDBConfig;
+
+    private final Map<Long, FarmWindows> farms = new ConcurrentHashMap<>();
+
+    // Đầu phút lúc bean được tạo (trước khi MQTT bắt đầu nhận): phần trước mốc này lấy từ InfluxDB
+    private final long warmCutoff = System.currentTimeMillis() / WARM_SLOT_MILLIS * WARM_SLOT_MILLIS;
+    private volatile boolean warmed;
+
+    @EventListener(ApplicationReadyEvent.class)
+    void warmUp() {
+        Instant stop = Instant.ofEpochMilli(warmCutoff);
+        Instant start = stop.minus(Duration.ofMillis(Window.ONE_DAY.slotMillis * Window.ONE_DAY.slots));
+        // (farmId, field, phút) -> {count, sum, min, max}
+        Map<WarmKey, double[]> buckets = new HashMap<>();
+        try {
+            for (int a = 0; a < WARM_AGGREGATES.size(); a++) {
+                int aggregate = a;
+                FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                        .range(start, stop)
+                        .measurement("sensor_data")
+                        .fieldIn(Arrays.asList(FIELDS))
+                        .group("farm_id", "_field")
+                        .aggregateWindow("1m", WARM_AGGREGATES.get(a), true);
+                queryExecutor.stream(query, (cancellable, record) -> {
+                    int field = indexOf(record.getField());
+                    Long farmId = parseFarmId(record.getValueByKey("farm_id"));
+                    if (field < 0 || farmId == null || record.getTime() == null
+                            || !(record.getValue() instanceof Number value)) {
+                        return;
+                    }
+                    buckets.computeIfAbsent(new WarmKey(farmId, field, record.getTime().toEpochMilli()),
+                            k -> new double[WARM_AGGREGATES.size()])[aggregate] = value.doubleValue();
+                });
+            }
+        } catch (Exception e) {
+            warmed = true;
+            log.warn("Could not warm farm rolling aggregates from InfluxDB: {}", e.getMessage());
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        buckets.forEach((key, agg) -> {
+            if (agg[0] <= 0) {
+                return;
+            }
+            FarmWindows windows = farms.computeIfAbsent(key.farmId(), id -> new FarmWindows());
+            synchronized (windows) {
+                windows.rings[Window.ONE_HOUR.ordinal()].add(now, key.time(), key.field(), (long) agg[0], agg[1],
+                        agg[2], agg[3]);
+                windows.rings[Window.ONE_DAY.ordinal()].add(now, key.time(), key.field(), (long) agg[0], agg[1],
+                        agg[2], agg[3]);
+            }
+        });
+        warmed = true;
+        log.info("Farm rolling aggregates warmed with {} minute buckets for {} farms", buckets.size(), farms.size());
+    }
+
+    private record WarmKey(Long farmId, int field, long time) {
+    }
+
+    public void record(SensorDataDTO data) {
+        if (data.getFarmId() == null || data.getTimestamp() == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long time = Math.min(data.getTimestamp().toEpochMilli(), now);
+        if (!warmed && time < warmCutoff) {
+            return; // sẽ được nạp từ InfluxDB
+        }
+        FarmWindows windows = farms.computeIfAbsent(data.getFarmId(), id -> new FarmWindows());
+        synchronized (windows) {
+            add(windows, now, time, 0, data.getTemperature());
+            add(windows, now, time, 1, data.getHumidity());
+            add(windows, now, time, 2, data.getSoilMoisture());
+            add(windows, now, time, 3, data.getLightIntensity());
+            add(windows, now, time, 4, data.getSoilPH());
+        }
+    }
+
+    /**
+     * Thống kê theo field (tên field InfluxDB) của farm trong cửa sổ; field
+     * không có reading nào bị bỏ qua.
+     */
+    public Map<String, FieldStats> getStats(Long farmId, Window window) {
+        FarmWindows windows = farms.get(farmId);
+        Map<String, FieldStats> result = new LinkedHashMap<>();
+        if (windows == null) {
+            return result;
+        }
+        FieldStats[] stats;
+        synchronized (windows) {
+            stats = windows.rings[window.ordinal()].read(System.currentTimeMillis());
+        }
+        for (int f = 0; f < FIELDS.length; f++) {
+            if (stats[f] != null) {
+                result.put(FIELDS[f], stats[f]);
+            }
+        }
+        return result;
+    }
+
+    public void forgetFarm(Long farmId) {
+        farms.remove(farmId);
+    }
+
+    private static void add(FarmWindows windows, long now, long time, int field, Double value) {
+        if (value == null) {
+            return;
+        }
+        for (Ring ring : windows.rings) {
+            ring.add(now, time, field, 1, value, value, value);
+        }
+    }
+
+    private static int indexOf(String field) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Long parseFarmId(Object value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return null; // tag farm_id = "null" của thiết bị chưa gán farm
+        }
+    }
+
+    private static final class FarmWindows {
+        private final Ring[] rings = Arrays.stream(Window.values()).map(Ring::new).toArray(Ring[]::new);
+    }
+
+    /**
+     * Ring buffer các ô thời gian; ô ở vị trí (slot % size) chứa tổng của ô
+     * tuyệt đối slotOf[pos] và được xóa khi bị một ô mới hơn chiếm chỗ.
+     */
+    private static final class Ring {
+        private final long slotMillis;
+        private final int size;
+        private final long[] slotOf;
+        private final long[] count;
+        private final double[] sum;
+        private final double[] min;
+        private final double[] max;
+
+        Ring(Window window) {
+            this.slotMillis = window.slotMillis;
+            this.size = window.slots;
+            this.slotOf = new long[size];
+            Arrays.fill(slotOf, -1);
+            this.count = new long[size * FIELDS.length];
+            this.sum = new double[size * FIELDS.length];
+            this.min = new double[size * FIELDS.length];
+            this.max = new double[size * FIELDS.length];
+        }
+
+        // Gộp n giá trị (tổng sum, nhỏ nhất lo, lớn nhất hi) vào ô chứa time
+        void add(long now, long time, int field, long n, double total, double lo, double hi) {
+            long slot = time / slotMillis;
+            if (slot <= now / slotMillis - size) {
+                return; // cũ hơn cửa sổ (dữ liệu backfill)
+            }
+            int pos = (int) (slot % size);
+            if (slotOf[pos] != slot) {
+                if (slotOf[pos] > slot) {
+                    return;
+                }
+                slotOf[pos] = slot;
+                int base = pos * FIELDS.length;
+                Arrays.fill(count, base, base + FIELDS.length, 0);
+                Arrays.fill(sum, base, base + FIELDS.length, 0);
+            }
+            int i = pos * FIELDS.length + field;
+            if (count[i] == 0) {
+                min[i] = lo;
+                max[i] = hi;
+            } else {
+                min[i] = Math.min(min[i], lo);
+                max[i] = Math.max(max[i], hi);
+            }
+            count[i] += n;
+            sum[i] += total;
+        }
+
+        FieldStats[] read(long now) {
+            long oldest = now / slotMillis - size;
+            long[] c = new long[FIELDS.length];
+            double[] s = new double[FIELDS.length];
+            double[] lo = new double[FIELDS.length];
+            double[] hi = new double[FIELDS.length];
+            for (int pos = 0; pos < size; pos++) {
+                if (slotOf[pos] <= oldest) {
+                    continue;
+                }
+                for (int f = 0; f < FIELDS.length; f++) {
+                    int i = pos * FIELDS.length + f;
+                    if (count[i] == 0) {
+                        continue;
+                    }
+                    lo[f] = c[f] == 0 ? min[i] : Math.min(lo[f], min[i]);
+                    hi[f] = c[f] == 0 ? max[i] : Math.max(hi[f], max[i]);
+                    c[f] += count[i];
+                    s[f] += sum[i];
+                }
+            }
+            FieldStats[] stats = new FieldStats[FIELDS.length];
+            for (int f = 0; f < FIELDS.length; f++) {
+                if (c[f] > 0) {
+                    stats[f] = new FieldStats(s[f] / c[f], lo[f], hi[f], c[f]);
+                }
+            }
+            return stats;
+        }
+    }
+}
@@ -37,6 +37,8 @@ public class FarmService {
     private final WeatherRepository weatherRepository;
     private final RuleRepository ruleRepository;
     private final DeviceRepository deviceRepository;
+    private final DeviceRegistry deviceRegistry;
+    private final FarmRollingAggregates farmAggregates;
     private final RuleService ruleService; // Dùng lại logic xóa Rule phức tạp
     private final FarmMemberRepository farmMemberRepository; // <<<< THÊM VÀO
     private final AuthenticationService authenticationService; // Thêm nếu chưa có
@@ -109,6 +111,8 @@ public class FarmService {
 
         // 3. Xóa tất cả các thiết bị thuộc farm
         deviceRepository.deleteByFarmId(farmId); // Cần thêm method này vào DeviceRepository
+        deviceRegistry.evictFarm(farmId);
+        farmAggregates.forgetFarm(farmId);
 
         // 4. Cuối cùng, xóa nông trại
         farmRepository.delete(farm);
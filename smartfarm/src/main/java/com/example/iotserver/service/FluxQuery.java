@@ -0,0 +1,248 @@
+package com.example.iotserver.service;
+
+import com.influxdb.client.domain.Dialect;
+import com.influxdb.client.domain.Query;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Builder cho câu Flux an toàn trước injection.
+ *
+ * Giá trị do người dùng/thiết bị cung cấp (bucket, deviceId, field...) được
+ * đưa vào câu query dưới dạng string literal đã escape (dấu \, dấu " và
+ * chuỗi ${ của string interpolation); thời gian là literal RFC3339 sinh từ
+ * Instant, duration và window phải khớp cú pháp duration của Flux, tên cột
+ * và hàm gộp đi qua whitelist. Không dùng {@code params} của Query API vì
+ * InfluxDB OSS (2.x) không hỗ trợ. Lọc theo nhiều giá trị dùng {@code contains(set:)} thay vì
+ * chuỗi {@code r.x == "a" or r.x == "b" ...}.
+ *
+ * <pre>
+ * FluxQuery.from(bucket)
+ *         .range(start, end)
+ *         .measurement("sensor_data")
+ *         .tagIn("device_id", deviceIds)
+ *         .aggregateWindow("1h", "mean")
+ * </pre>
+ */
+public final class FluxQuery {
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final Pattern DURATION = Pattern.compile("(\\d+(ns|us|µs|ms|s|mo|m|h|d|w|y))+");
+    private static final Set<String> AGGREGATES = Set.of("mean", "median", "min", "max", "sum", "count", "first",
+            "last", "spread", "stddev");
+    // Giống dialect mặc định của QueryApi khi query bằng String: CSV parser cần đủ annotation
+    private static final Dialect DIALECT = new Dialect()
+            .header(true)
+            .delimiter(",")
+            .commentPrefix("#")
+            .annotations(List.of(Dialect.AnnotationsEnum.DATATYPE, Dialect.AnnotationsEnum.GROUP,
+                    Dialect.AnnotationsEnum.DEFAULT));
+
+    private final StringBuilder pipeline = new StringBuilder();
+    private boolean absoluteRange;
+
+    private FluxQuery(String bucket) {
+        pipeline.append("from(bucket: ").append(string(bucket)).append(')');
+    }
+
+    public static FluxQuery from(String bucket) {
+        return new FluxQuery(bucket);
+    }
+
+    /**
+     * Khoảng thời gian tuyệt đối [start, stop). Query chỉ có khoảng tuyệt đối
+     * mới được coi là idempotent và được cache kết quả.
+     */
+    public FluxQuery range(Instant start, Instant stop) {
+        absoluteRange = true;
+        return pipe("range(start: " + start + ", stop: " + stop + ")");
+    }
+
+    /**
+     * Khoảng thời gian tương đối tính từ hiện tại, ví dụ lookback = 30 ngày.
+     */
+    public FluxQuery rangeLast(Duration lookback) {
+        return pipe("range(start: -" + lookback.toSeconds() + "s)");
+    }
+
+    public FluxQuery measurement(String measurement) {
+        return tagEquals("_measurement", measurement);
+    }
+
+    public FluxQuery field(String field) {
+        return tagEquals("_field", field);
+    }
+
+    public FluxQuery fieldIn(Collection<String> fields) {
+        return tagIn("_field", fields);
+    }
+
+    public FluxQuery tagEquals(String column, String value) {
+        return pipe("filter(fn: (r) => r[\"" + column(column) + "\"] == " + string(value) + ")");
+    }
+
+    public FluxQuery tagIn(String column, Collection<String> values) {
+        List<String> literals = new ArrayList<>();
+        // Sắp xếp để cùng một tập giá trị luôn cho cùng câu query (khóa cache)
+        for (String value : new TreeSet<>(values)) {
+            literals.add(string(value));
+        }
+        if (literals.isEmpty()) {
+            literals.add("\"\""); // Flux không suy được kiểu của mảng rỗng; không khớp giá trị nào thực tế
+        }
+        return pipe("filter(fn: (r) => contains(value: r[\"" + column(column) + "\"], set: ["
+                + String.join(", ", literals) + "]))");
+    }
+
+    public FluxQuery aggregateWindow(String every, String fn) {
+        return aggregateWindow(every, fn, false);
+    }
+
+    /**
+     * timeFromStart = true: gán _time của mỗi cửa sổ bằng thời điểm bắt đầu
+     * (mặc định của Flux là thời điểm kết thúc), dùng khi ghi rollup để gộp
+     * tiếp theo cửa sổ lớn hơn không bị lệch một cửa sổ.
+     */
+    public FluxQuery aggregateWindow(String every, String fn, boolean timeFromStart) {
+        if (!AGGREGATES.contains(fn)) {
+            throw new IllegalArgumentException("Unsupported aggregate function: " + fn);
+        }
+        return pipe("aggregateWindow(every: " + duration(every) + ", fn: " + fn + ", createEmpty: false"
+                + (timeFromStart ? ", timeSrc: \"_start\")" : ")"));
+    }
+
+    public FluxQuery first() {
+        return pipe("first()");
+    }
+
+    public FluxQuery last() {
+        return pipe("last()");
+    }
+
+    public FluxQuery mean() {
+        return pipe("mean()");
+    }
+
+    public FluxQuery count() {
+        return pipe("count()");
+    }
+
+    /**
+     * Gộp các bảng theo cột (group(columns: [])), ví dụ để lấy last() trên
+     * toàn bộ thiết bị.
+     */
+    public FluxQuery group(String... columns) {
+        return pipe("group(columns: " + columnList(columns) + ")");
+    }
+
+    public FluxQuery keep(String... columns) {
+        return pipe("keep(columns: " + columnList(columns) + ")");
+    }
+
+    public FluxQuery sortByTime(boolean desc) {
+        return pipe("sort(columns: [\"_time\"], desc: " + desc + ")");
+    }
+
+    public FluxQuery limit(int n) {
+        return pipe("limit(n: " + n + ")");
+    }
+
+    /**
+     * Gán cột column = value (kiểu string, sẽ thành tag khi ghi bằng to()).
+     */
+    public FluxQuery set(String column, String value) {
+        return pipe("set(key: \"" + column(column) + "\", value: " + string(value) + ")");
+    }
+
+    /**
+     * Ghi kết quả vào bucket khác ngay trên InfluxDB.
+     */
+    public FluxQuery to(String bucket, String org) {
+        return pipe("to(bucket: " + string(bucket) + ", org: " + string(org) + ")");
+    }
+
+    public FluxQuery pivotFields() {
+        return pipe("pivot(rowKey: [\"_time\"], columnKey: [\"_field\"], valueColumn: \"_value\")");
+    }
+
+    public boolean isCacheable() {
+        return absoluteRange;
+    }
+
+    public String text() {
+        return pipeline.toString();
+    }
+
+    public Query toQuery() {
+        return new Query().query(text()).dialect(DIALECT);
+    }
+
+    /**
+     * Khóa chuẩn hóa: câu query đã chứa mọi giá trị (tập giá trị đã sắp xếp).
+     */
+    public String cacheKey() {
+        return text();
+    }
+
+    @Override
+    public String toString() {
+        return cacheKey();
+    }
+
+    private FluxQuery pipe(String stage) {
+        pipeline.append("\n  |> ").append(stage);
+        return this;
+    }
+
+    private static String columnList(String... columns) {
+        List<String> quoted = new ArrayList<>();
+        for (String column : columns) {
+            quoted.add("\"" + column(column) + "\"");
+        }
+        return "[" + String.join(", ", quoted) + "]";
+    }
+
+    /**
+     * String literal của Flux, ví dụ a"b thành "a\"b".
+     */
+    static String string(String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Flux string value must not be null");
+        }
+        StringBuilder literal = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> literal.append("\\\\");
+                case '"' -> literal.append("\\\"");
+                case '\n' -> literal.append("\\n");
+                case '\r' -> literal.append("\\r");
+                case '\t' -> literal.append("\\t");
+                case '$' -> literal.append(i + 1 < value.length() && value.charAt(i + 1) == '{' ? "\\$" : "$");
+                default -> literal.append(c);
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    private static String duration(String duration) {
+        if (duration == null || !DURATION.matcher(duration).matches()) {
+            throw new IllegalArgumentException("Invalid duration: " + duration);
+        }
+        return duration;
+    }
+
+    private static String column(String column) {
+        if (!IDENTIFIER.matcher(column).matches()) {
+            throw new IllegalArgumentException("Invalid column name: " + column);
+        }
+        return column;
+    }
+}
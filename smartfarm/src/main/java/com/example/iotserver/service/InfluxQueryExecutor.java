@@ -0,0 +1,215 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.influxdb.Cancellable;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.service.QueryService;
+import com.influxdb.query.FluxRecord;
+import com.influxdb.query.FluxTable;
+import com.influxdb.query.internal.FluxCsvParser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.ResponseBody;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import retrofit2.Call;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Chạy {@link FluxQuery} và stream từng FluxRecord qua callback trên thread
+ * gọi, không dựng List&lt;FluxTable&gt; trung gian.
+ *
+ * Query có khoảng thời gian tuyệt đối có thể dùng cache kết quả ngắn hạn
+ * (influxdb.query.cache-ttl-ms), khóa theo text query đã chuẩn hóa.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class InfluxQueryExecutor {
+
+    private final InfluxDBClient influxDBClient;
+    private final InfluxDBConfig influxDBConfig;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${influxdb.query.cache-ttl-ms:10000}")
+    private long cacheTtlMs;
+
+    @Value("${influxdb.query.cache-max-entries:256}")
+    private int cacheMaxEntries;
+
+    private final Map<String, CachedResult> cache = new ConcurrentHashMap<>();
+    // Query đang chạy theo thread gọi, để thread khác hủy được (ví dụ báo cáo quá thời gian)
+    private final Map<Thread, Cancellable> running = new ConcurrentHashMap<>();
+
+    private final FluxCsvParser csvParser = new FluxCsvParser();
+
+    private QueryService queryService;
+    private Counter queryCounter;
+
+    private record CachedResult(Object value, long expiresAt) {
+    }
+
+    @PostConstruct
+    void init() {
+        queryService = influxDBClient.getService(QueryService.class);
+        queryCounter = Counter.builder("influx.queries")
+                .description("Số query đã gửi tới InfluxDB (không tính kết quả lấy từ cache)")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Stream kết quả ngay trên thread gọi (HTTP đồng bộ, parse CSV từng dòng),
+     * không chiếm dispatcher bất đồng bộ của OkHttp; trả về khi query kết
+     * thúc. Callback có thể gọi Cancellable.cancel() để dừng sớm; thread gọi
+     * bị interrupt cũng hủy query ở record kế tiếp.
+     *
+     * @throws IllegalStateException nếu query lỗi hoặc thread bị ngắt
+     */
+    public void stream(FluxQuery query, BiConsumer<Cancellable, FluxRecord> onRecord) {
+        log.debug("Executing Flux query: {}", query);
+        queryCounter.increment();
+
+        Call<ResponseBody> call = queryService.postQueryResponseBody(null, null, null, influxDBConfig.getOrg(),
+                null, query.toQuery());
+        Cancellable handle = new Cancellable() {
+            private volatile boolean cancelled;
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                call.cancel();
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return cancelled;
+            }
+        };
+
+        Thread caller = Thread.currentThread();
+        running.put(caller, handle);
+        try {
+            Response<ResponseBody> response = call.execute();
+            if (!response.isSuccessful()) {
+                String error;
+                try (ResponseBody errorBody = response.errorBody()) {
+                    error = errorBody != null ? errorBody.string() : "";
+                }
+                throw new IllegalStateException("InfluxDB query failed: HTTP " + response.code() + " " + error);
+            }
+            try (ResponseBody body = response.body()) {
+                csvParser.parseFluxResponse(body.source(), handle, new FluxCsvParser.FluxResponseConsumer() {
+                    @Override
+                    public void accept(int index, Cancellable cancellable, FluxTable table) {
+                    }
+
+                    @Override
+                    public void accept(int index, Cancellable cancellable, FluxRecord record) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            handle.cancel();
+                            return;
+                        }
+                        onRecord.accept(handle, record);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (!handle.isCancelled()) {
+                throw new IllegalStateException("InfluxDB query failed: " + e.getMessage(), e);
+            }
+        } finally {
+            running.remove(caller, handle);
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new IllegalStateException("Interrupted while waiting for InfluxDB query");
+        }
+    }
+
+    /**
+     * Hủy query mà thread đang chờ (nếu có), kể cả khi thread đang bị chặn
+     * đọc response.
+     */
+    public void cancel(Thread thread) {
+        Cancellable handle = running.get(thread);
+        if (handle != null) {
+            handle.cancel();
+        }
+    }
+
+    /**
+     * Decode từng record thành T; record decode ra null bị bỏ qua.
+     */
+    public <T> List<T> list(FluxQuery query, Function<FluxRecord, T> decoder) {
+        List<T> results = new ArrayList<>();
+        stream(query, (cancellable, record) -> {
+            T value = decoder.apply(record);
+            if (value != null) {
+                results.add(value);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Như {@link #list}, nhưng dùng cache nếu query có khoảng thời gian tuyệt đối.
+     * name phân biệt các decoder khác nhau trên cùng một query. Danh sách trả
+     * về là read-only.
+     */
+    public <T> List<T> cachedList(String name, FluxQuery query, Function<FluxRecord, T> decoder) {
+        return cached(name, query, () -> Collections.unmodifiableList(list(query, decoder)));
+    }
+
+    /**
+     * Cache một kết quả bất kỳ tính từ query (ví dụ kết quả đã gom nhóm).
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T cached(String name, FluxQuery query, Supplier<T> loader) {
+        if (!query.isCacheable() || cacheTtlMs <= 0) {
+            return loader.get();
+        }
+        String key = name + '\n' + query.cacheKey();
+        long now = System.currentTimeMillis();
+        CachedResult hit = cache.get(key);
+        if (hit != null && hit.expiresAt() > now) {
+            return (T) hit.value();
+        }
+
+        T value = loader.get();
+        if (cache.size() >= cacheMaxEntries) {
+            cache.values().removeIf(entry -> entry.expiresAt() <= now);
+            if (cache.size() >= cacheMaxEntries) {
+                cache.clear();
+            }
+        }
+        cache.put(key, new CachedResult(value, now + cacheTtlMs));
+        return value;
+    }
+
+    /**
+     * Giá trị số của record đầu tiên, hoặc null.
+     */
+    public Double firstDouble(FluxQuery query) {
+        AtomicReference<Double> result = new AtomicReference<>();
+        stream(query, (cancellable, record) -> {
+            if (record.getValue() instanceof Number value) {
+                result.set(value.doubleValue());
+                cancellable.cancel();
+            }
+        });
+        return result.get();
+    }
+}
@@ -0,0 +1,367 @@
+package com.example.iotserver.service;
+
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import com.influxdb.exceptions.BadRequestException;
+import com.influxdb.exceptions.UnprocessableEntityException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hàng đợi ghi InfluxDB có giới hạn, gom Point thành batch.
+ *
+ * Luồng ingest chỉ cần enqueue() rồi trả về ngay; một thread riêng sẽ flush
+ * khi đủ batch-size hoặc hết flush-interval, retry với backoff lũy thừa khi
+ * InfluxDB chậm/lỗi. Khi hàng đợi đầy, xử lý theo {@link OverflowPolicy}.
+ *
+ * Lỗi 400/422 (xung đột kiểu field, point ngoài retention...) là lỗi của dữ
+ * liệu chứ không phải sự cố InfluxDB: batch đó bị bỏ ngay (đếm là rejected),
+ * không retry và không spill.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class InfluxWriteBuffer {
+
+    public enum OverflowPolicy {
+        /** Chặn thread gọi cho tới khi có chỗ trống (backpressure về MQTT). */
+        BLOCK,
+        /** Bỏ Point cũ nhất để nhận Point mới. */
+        DROP_OLDEST,
+        /** Ghi Point ra file line protocol trên đĩa, phát lại khi InfluxDB ổn định. */
+        SPILL
+    }
+
+    private final WriteApiBlocking writeApi;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${influxdb.write.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${influxdb.write.batch-size:500}")
+    private int batchSize;
+
+    @Value("${influxdb.write.flush-interval-ms:1000}")
+    private long flushIntervalMs;
+
+    @Value("${influxdb.write.max-retries:5}")
+    private int maxRetries;
+
+    @Value("${influxdb.write.retry-initial-backoff-ms:200}")
+    private long retryInitialBackoffMs;
+
+    @Value("${influxdb.write.retry-max-backoff-ms:10000}")
+    private long retryMaxBackoffMs;
+
+    @Value("${influxdb.write.overflow-policy:BLOCK}")
+    private OverflowPolicy overflowPolicy;
+
+    @Value("${influxdb.write.spill-dir:./data/influx-spill}")
+    private String spillDir;
+
+    private final Object spillLock = new Object();
+
+    private BlockingQueue<Point> queue;
+    private Thread flusher;
+    private volatile boolean running;
+    private Path spillFile;
+
+    private Timer flushTimer;
+    private Counter writtenCounter;
+    private Counter droppedCounter;
+    private Counter spilledCounter;
+    private Counter failedCounter;
+    private Counter rejectedCounter;
+
+    @PostConstruct
+    void start() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        spillFile = Paths.get(spillDir, "sensor_data.lp");
+
+        Gauge.builder("influx.write.queue.size", queue, BlockingQueue::size)
+                .description("Số Point đang chờ ghi vào InfluxDB")
+                .register(meterRegistry);
+        flushTimer = Timer.builder("influx.write.flush")
+                .description("Thời gian một lần ghi batch vào InfluxDB")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        writtenCounter = pointCounter("written");
+        droppedCounter = pointCounter("dropped");
+        spilledCounter = pointCounter("spilled");
+        failedCounter = pointCounter("failed");
+        rejectedCounter = pointCounter("rejected");
+
+        running = true;
+        flusher = new Thread(this::runFlushLoop, "influx-write-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info("InfluxDB write buffer started: capacity={}, batchSize={}, flushInterval={}ms, overflow={}",
+                queueCapacity, batchSize, flushIntervalMs, overflowPolicy);
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        // Cho flusher ghi nốt những gì còn trong hàng đợi trước khi tắt
+        flusher.join(flushIntervalMs + retryMaxBackoffMs);
+        if (flusher.isAlive()) {
+            flusher.interrupt();
+            log.warn("InfluxDB write buffer stopped with {} points still queued", queue.size());
+        }
+    }
+
+    /**
+     * Đưa một Point vào hàng đợi ghi. Không ném lỗi khi InfluxDB chậm.
+     */
+    public void enqueue(Point point) {
+        switch (overflowPolicy) {
+            case BLOCK -> {
+                try {
+                    queue.put(point);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for InfluxDB write queue", e);
+                }
+            }
+            case DROP_OLDEST -> {
+                while (!queue.offer(point)) {
+                    if (queue.poll() != null) {
+                        droppedCounter.increment();
+                    }
+                }
+            }
+            case SPILL -> {
+                if (!queue.offer(point)) {
+                    spill(List.of(point));
+                }
+            }
+        }
+    }
+
+    /**
+     * Đưa cả lô (batch từ gateway) vào cùng hàng đợi, theo cùng overflow policy
+     * như từng Point: thread gọi không tự retry InfluxDB, và lô không bị mất âm
+     * thầm khi InfluxDB lỗi.
+     */
+    public void enqueueAll(List<Point> points) {
+        if (overflowPolicy != OverflowPolicy.SPILL) {
+            for (Point point : points) {
+                enqueue(point);
+            }
+            return;
+        }
+        int accepted = 0;
+        while (accepted < points.size() && queue.offer(points.get(accepted))) {
+            accepted++;
+        }
+        if (accepted < points.size()) {
+            // Phần không vừa hàng đợi được ghi ra đĩa một lần, giữ nguyên thứ tự
+            spill(points.subList(accepted, points.size()));
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void runFlushLoop() {
+        List<Point> batch = new ArrayList<>(batchSize);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+
+        while (running || !queue.isEmpty() || !batch.isEmpty()) {
+            try {
+                long remaining = deadline - System.nanoTime();
+                Point point = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                if (point != null) {
+                    batch.add(point);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+
+                boolean full = batch.size() >= batchSize;
+                boolean due = System.nanoTime() - deadline >= 0 || !running;
+                if (full || due) {
+                    if (!batch.isEmpty()) {
+                        if (writeWithRetry(batch)) {
+                            replaySpill();
+                        }
+                        batch = new ArrayList<>(batchSize);
+                    } else if (running) {
+                        replaySpill();
+                    }
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Unexpected error in InfluxDB write loop: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Ghi batch, retry với backoff lũy thừa. Trả về false nếu hết lượt retry.
+     */
+    private boolean writeWithRetry(List<Point> batch) throws InterruptedException {
+        long backoff = retryInitialBackoffMs;
+        for (int attempt = 0;; attempt++) {
+            long start = System.nanoTime();
+            try {
+                writeApi.writePoints(batch);
+                flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                writtenCounter.increment(batch.size());
+                log.debug("Flushed {} points to InfluxDB", batch.size());
+                return true;
+            } catch (Exception e) {
+                flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                if (isRejected(e)) {
+                    log.error("InfluxDB rejected batch of {} points, dropping it: {}", batch.size(), e.getMessage());
+                    rejectedCounter.increment(batch.size());
+                    // InfluxDB vẫn hoạt động, không chặn việc phát lại spill
+                    return true;
+                }
+                if (attempt >= maxRetries || !running) {
+                    log.error("Failed to write {} points to InfluxDB after {} attempts: {}",
+                            batch.size(), attempt + 1, e.getMessage());
+                    if (overflowPolicy == OverflowPolicy.SPILL) {
+                        spill(batch);
+                    } else {
+                        failedCounter.increment(batch.size());
+                    }
+                    return false;
+                }
+                log.warn("InfluxDB write failed (attempt {}/{}), retrying in {}ms: {}",
+                        attempt + 1, maxRetries + 1, backoff, e.getMessage());
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, retryMaxBackoffMs);
+            }
+        }
+    }
+
+    private void spill(List<Point> points) {
+        synchronized (spillLock) {
+            try {
+                Files.createDirectories(spillFile.getParent());
+                try (BufferedWriter writer = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    for (Point point : points) {
+                        writer.write(point.toLineProtocol());
+                        writer.newLine();
+                    }
+                }
+                spilledCounter.increment(points.size());
+            } catch (IOException e) {
+                log.error("Could not spill {} points to {}: {}", points.size(), spillFile, e.getMessage());
+                failedCounter.increment(points.size());
+            }
+        }
+    }
+
+    // Lỗi do dữ liệu (400/422): ghi lại bao nhiêu lần cũng bị từ chối
+    private static boolean isRejected(Exception e) {
+        return e instanceof BadRequestException || e instanceof UnprocessableEntityException;
+    }
+
+    /**
+     * Phát lại file spill sau khi InfluxDB ghi thành công trở lại. Ghi lặp cùng
+     * series + timestamp trong InfluxDB là ghi đè, nên phát lại dở dang vẫn an toàn.
+     * Chunk bị InfluxDB từ chối (400/422) được bỏ qua để không chặn phần sau của file.
+     */
+    private void replaySpill() {
+        Path replayFile = spillFile.resolveSibling(spillFile.getFileName() + ".replay");
+        synchronized (spillLock) {
+            if (!Files.exists(replayFile)) {
+                if (!Files.exists(spillFile)) {
+                    return;
+                }
+                try {
+                    Files.move(spillFile, replayFile, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    log.warn("Could not rotate spill file {}: {}", spillFile, e.getMessage());
+                    return;
+                }
+            }
+        }
+
+        int replayed = 0;
+        int rejected = 0;
+        try (BufferedReader reader = Files.newBufferedReader(replayFile, StandardCharsets.UTF_8)) {
+            List<String> chunk = new ArrayList<>(batchSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    chunk.add(line);
+                }
+                if (chunk.size() >= batchSize) {
+                    if (replayChunk(chunk)) {
+                        replayed += chunk.size();
+                    } else {
+                        rejected += chunk.size();
+                    }
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                if (replayChunk(chunk)) {
+                    replayed += chunk.size();
+                } else {
+                    rejected += chunk.size();
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Spill replay interrupted after {} points, will retry later: {}", replayed, e.getMessage());
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(replayFile);
+        } catch (IOException e) {
+            log.warn("Could not delete replayed spill file {}: {}", replayFile, e.getMessage());
+        }
+        writtenCounter.increment(replayed);
+        log.info("Replayed {} spilled points into InfluxDB ({} rejected)", replayed, rejected);
+    }
+
+    // false nếu InfluxDB từ chối chunk; lỗi khác (InfluxDB chưa ổn định) ném ra để dừng phát lại
+    private boolean replayChunk(List<String> chunk) {
+        try {
+            writeApi.writeRecords(WritePrecision.MS, chunk);
+            return true;
+        } catch (BadRequestException | UnprocessableEntityException e) {
+            log.warn("InfluxDB rejected {} spilled points, skipping them: {}", chunk.size(), e.getMessage());
+            rejectedCounter.increment(chunk.size());
+            return false;
+        }
+    }
+
+    private Counter pointCounter(String result) {
+        return Counter.builder("influx.write.points")
+                .description("Số Point theo kết quả ghi InfluxDB")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
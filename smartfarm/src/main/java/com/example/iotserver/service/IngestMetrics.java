@@ -0,0 +1,115 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.config.MqttInboundBackpressure;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics cho luồng ingest MQTT, xuất qua /actuator/metrics và /actuator/prometheus.
+ *
+ * <ul>
+ * <li>mqtt.ingest.stage{stage}: thời gian từng bước (tra thiết bị, parse, ghi
+ * InfluxDB, ghi MySQL, WebSocket, phân tích sức khỏe, kiểm tra cảnh báo)</li>
+ * <li>mqtt.ingest.latency{type}: tổng thời gian xử lý một message, có histogram</li>
+ * <li>mqtt.ingest.messages{type}, mqtt.ingest.readings{farm_id, mode}: lưu lượng</li>
+ * <li>mqtt.ingest.parse.failures, mqtt.ingest.unknown.devices: lỗi</li>
+ * </ul>
+ */
+@Component
+public class IngestMetrics {
+
+    public enum Stage {
+        DEVICE_LOOKUP, PARSE, INFLUX_WRITE, MYSQL, WEBSOCKET, PLANT_HEALTH, ALERTS, RULES;
+
+        private final String tag = name().toLowerCase();
+    }
+
+    private final MeterRegistry meterRegistry;
+    private final Map<Stage, Timer> stageTimers = new EnumMap<>(Stage.class);
+    private final Map<String, Timer> latencyTimers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> messageCounters = new ConcurrentHashMap<>();
+    private final Map<String, Counter> readingCounters = new ConcurrentHashMap<>();
+    private final Counter parseFailures;
+    private final Counter unknownDevices;
+    private final Counter foreignReadings;
+    private final Counter expiredReadings;
+
+    public IngestMetrics(MeterRegistry meterRegistry, MqttInboundBackpressure inboundBackpressure) {
+        this.meterRegistry = meterRegistry;
+        for (Stage stage : Stage.values()) {
+            stageTimers.put(stage, Timer.builder("mqtt.ingest.stage")
+                    .description("Thời gian xử lý từng bước của luồng ingest")
+                    .tag("stage", stage.tag)
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .register(meterRegistry));
+        }
+        parseFailures = Counter.builder("mqtt.ingest.parse.failures")
+                .description("Số payload không decode được")
+                .register(meterRegistry);
+        unknownDevices = Counter.builder("mqtt.ingest.unknown.devices")
+                .description("Số message từ thiết bị chưa đăng ký")
+                .register(meterRegistry);
+        foreignReadings = Counter.builder("mqtt.ingest.foreign.readings")
+                .description("Số reading trong batch của thiết bị không cùng farm với gateway")
+                .register(meterRegistry);
+        expiredReadings = Counter.builder("mqtt.ingest.expired.readings")
+                .description("Số reading bị bỏ vì thời gian đo cũ hơn ingest.max-backfill-age-ms")
+                .register(meterRegistry);
+        Gauge.builder("mqtt.inbound.in_flight", inboundBackpressure, MqttInboundBackpressure::getInFlight)
+                .description("Số message MQTT đang chờ hoặc đang xử lý")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Ghi nhận thời gian của một bước, tính từ startNanos (System.nanoTime()).
+     */
+    public void recordStage(Stage stage, long startNanos) {
+        stageTimers.get(stage).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordMessage(String type, long startNanos) {
+        messageCounters.computeIfAbsent(type, t -> Counter.builder("mqtt.ingest.messages")
+                .description("Số message MQTT đã nhận theo loại")
+                .tag("type", t)
+                .register(meterRegistry)).increment();
+        latencyTimers.computeIfAbsent(type, t -> Timer.builder("mqtt.ingest.latency")
+                .description("Tổng thời gian xử lý một message MQTT")
+                .tag("type", t)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry)).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordReadings(Long farmId, boolean live, int count) {
+        String key = farmId + (live ? ":live" : ":backfill");
+        readingCounters.computeIfAbsent(key, k -> Counter.builder("mqtt.ingest.readings")
+                .description("Số reading đã ghi theo farm")
+                .tag("farm_id", String.valueOf(farmId))
+                .tag("mode", live ? "live" : "backfill")
+                .register(meterRegistry)).increment(count);
+    }
+
+    public void parseFailure() {
+        parseFailures.increment();
+    }
+
+    public void unknownDevice() {
+        unknownDevices.increment();
+    }
+
+    public void foreignReadings(int count) {
+        foreignReadings.increment(count);
+    }
+
+    public void expiredReadings(int count) {
+        expiredReadings.increment(count);
+    }
+}
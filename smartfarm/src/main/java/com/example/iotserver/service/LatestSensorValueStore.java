@@ -0,0 +1,413 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.dto.SensorDataDTO;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Giá trị cảm biến mới nhất theo thiết bị và theo field, giữ trong bộ nhớ.
+ *
+ * Luồng ingest cập nhật qua SensorDataService, lúc khởi động nạp một lần từ
+ * InfluxDB (last() trong 30 ngày), nên các hàm "latest" đọc O(1) thay vì quét
+ * InfluxDB. Mỗi field giữ timestamp riêng, reading cũ hơn (backfill) không ghi
+ * đè giá trị mới hơn.
+ *
+ * Khi bật sensor.latest.redis-mirror, giá trị cũng được ghi vào hash Redis
+ * sensor:latest:{deviceId} để các node backend khác đọc chung. Việc ghi so
+ * timestamp từng field ngay trong Redis (script Lua) nên backfill từ node nào
+ * cũng không ghi đè giá trị mới hơn.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class LatestSensorValueStore {
+
+    // Tên field trong InfluxDB, thứ tự trùng với chỉ số trong mảng values/times
+    static final String[] FIELDS = { "temperature", "humidity", "soil_moisture", "light_intensity", "soilPH" };
+
+    private static final String REDIS_KEY_PREFIX = "sensor:latest:";
+    private static final String REDIS_FARM_KEY_PREFIX = "sensor:latest:farm:";
+    // ARGV: farm_id (rỗng nếu không có), rồi từng bộ ba field, "value|time", time.
+    // Chỉ ghi field khi time không cũ hơn giá trị đang có; farm_id chỉ ghi khi có field được ghi.
+    private static final RedisScript<Long> MIRROR_SCRIPT = new DefaultRedisScript<>("""
+            local advanced = 0
+            for i = 2, #ARGV, 3 do
+              local current = redis.call('HGET', KEYS[1], ARGV[i])
+              local currentTime = current and tonumber(string.match(current, '|(%d+)$')) or 0
+              if tonumber(ARGV[i + 2]) >= currentTime then
+                redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1])
+                advanced = advanced + 1
+              end
+            end
+            if advanced > 0 and ARGV[1] ~= '' then
+              redis.call('HSET', KEYS[1], 'farm_id', ARGV[1])
+            end
+            return advanced
+            """, Long.class);
+
+    // Nếu InfluxDB chưa sẵn sàng lúc khởi động, thử nạp lại sau khoảng này
+    private static final long WARM_RETRY_INTERVAL_MS = 60_000;
+
+    private final InfluxQueryExecutor queryExecutor;
+    private final InfluxDBConfig influxDBConfig;
+    private final StringRedisTemplate redisTemplate;
+
+    @Value("${sensor.latest.redis-mirror:false}")
+    private boolean redisMirror;
+
+    private final Map<String, DeviceLatest> devices = new ConcurrentHashMap<>();
+    private final Map<Long, Set<String>> devicesByFarm = new ConcurrentHashMap<>();
+
+    private volatile boolean warmed;
+    // Chỉ một lượt nạp chạy tại một thời điểm (lúc khởi động hoặc lượt thử lại định kỳ)
+    private final AtomicBoolean warming = new AtomicBoolean();
+
+    /**
+     * Snapshot bất biến của một thiết bị; times[i] == 0 nghĩa là field chưa có giá trị.
+     */
+    private record DeviceLatest(Long farmId, double[] values, long[] times) {
+
+        DeviceLatest merge(Long newFarmId, double[] newValues, long[] newTimes) {
+            double[] v = values.clone();
+            long[] t = times.clone();
+            boolean changed = !Objects.equals(farmId, newFarmId) && newFarmId != null;
+            for (int i = 0; i < FIELDS.length; i++) {
+                if (newTimes[i] != 0 && newTimes[i] >= t[i]) {
+                    v[i] = newValues[i];
+                    t[i] = newTimes[i];
+                    changed = true;
+                }
+            }
+            return changed ? new DeviceLatest(newFarmId != null ? newFarmId : farmId, v, t) : this;
+        }
+
+        long newestTime() {
+            return Arrays.stream(times).max().orElse(0);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void warmUp() {
+        if (!warming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            load();
+        } finally {
+            warming.set(false);
+        }
+    }
+
+    /**
+     * Thử nạp lại ở luồng scheduler khi lần nạp lúc khởi động thất bại, để
+     * luồng đọc không phải tự chạy lượt quét 30 ngày.
+     */
+    @Scheduled(initialDelay = WARM_RETRY_INTERVAL_MS, fixedDelay = WARM_RETRY_INTERVAL_MS)
+    void retryWarmUp() {
+        if (!warmed) {
+            warmUp();
+        }
+    }
+
+    private void load() {
+        FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                .rangeLast(Duration.ofDays(30))
+                .measurement("sensor_data")
+                .last();
+        try {
+            AtomicInteger records = new AtomicInteger();
+            queryExecutor.stream(query, (cancellable, record) -> {
+                int index = indexOf(record.getField());
+                Object deviceId = record.getValueByKey("device_id");
+                if (index < 0 || deviceId == null || !(record.getValue() instanceof Number value)
+                        || record.getTime() == null) {
+                    return;
+                }
+                double[] values = new double[FIELDS.length];
+                long[] times = new long[FIELDS.length];
+                values[index] = value.doubleValue();
+                times[index] = record.getTime().toEpochMilli();
+                apply(deviceId.toString(), parseFarmId(record.getValueByKey("farm_id")), values, times);
+                records.incrementAndGet();
+            });
+            warmed = true;
+            log.info("Latest sensor value store warmed with {} values for {} devices", records.get(),
+                    devices.size());
+        } catch (Exception e) {
+            log.warn("Could not warm latest sensor value store from InfluxDB: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Cập nhật từ một reading vừa ghi. Field không có trong reading giữ nguyên.
+     */
+    public void update(SensorDataDTO data) {
+        if (data.getDeviceId() == null || data.getTimestamp() == null) {
+            return;
+        }
+        double[] values = new double[FIELDS.length];
+        long[] times = new long[FIELDS.length];
+        long time = data.getTimestamp().toEpochMilli();
+        put(values, times, 0, data.getTemperature(), time);
+        put(values, times, 1, data.getHumidity(), time);
+        put(values, times, 2, data.getSoilMoisture(), time);
+        put(values, times, 3, data.getLightIntensity(), time);
+        put(values, times, 4, data.getSoilPH(), time);
+
+        apply(data.getDeviceId(), data.getFarmId(), values, times);
+        if (redisMirror) {
+            mirrorToRedis(data.getDeviceId(), data.getFarmId(), values, times);
+        }
+    }
+
+    /**
+     * Reading mới nhất của thiết bị (mỗi field là giá trị mới nhất của field đó),
+     * hoặc null nếu chưa có dữ liệu.
+     */
+    public SensorDataDTO getDevice(String deviceId) {
+        DeviceLatest latest = read(deviceId);
+        if (latest == null) {
+            return null;
+        }
+        SensorDataDTO dto = toDTO(latest);
+        dto.setDeviceId(deviceId);
+        return dto;
+    }
+
+    /**
+     * Giá trị mới nhất của từng field trên toàn bộ thiết bị trong danh sách.
+     * deviceId của kết quả là thiết bị có reading mới nhất.
+     */
+    public SensorDataDTO getLatestAcross(Collection<String> deviceIds) {
+        double[] values = new double[FIELDS.length];
+        long[] times = new long[FIELDS.length];
+        String newestDevice = null;
+        long newestTime = 0;
+        Long farmId = null;
+        for (String deviceId : deviceIds) {
+            DeviceLatest latest = read(deviceId);
+            if (latest == null) {
+                continue;
+            }
+            for (int i = 0; i < FIELDS.length; i++) {
+                if (latest.times()[i] > times[i]) {
+                    values[i] = latest.values()[i];
+                    times[i] = latest.times()[i];
+                }
+            }
+            long deviceNewest = latest.newestTime();
+            if (deviceNewest > newestTime) {
+                newestTime = deviceNewest;
+                newestDevice = deviceId;
+                farmId = latest.farmId();
+            }
+        }
+        if (newestDevice == null) {
+            return null;
+        }
+        SensorDataDTO dto = toDTO(new DeviceLatest(farmId, values, times));
+        dto.setDeviceId(newestDevice);
+        return dto;
+    }
+
+    /**
+     * Các thiết bị đã gửi dữ liệu với farmId này.
+     */
+    public Set<String> getDeviceIds(Long farmId) {
+        Set<String> ids = devicesByFarm.getOrDefault(farmId, Set.of());
+        if (redisMirror) {
+            try {
+                Set<String> shared = redisTemplate.opsForSet().members(REDIS_FARM_KEY_PREFIX + farmId);
+                if (shared != null && !shared.isEmpty()) {
+                    Set<String> merged = new HashSet<>(ids);
+                    merged.addAll(shared);
+                    return merged;
+                }
+            } catch (Exception e) {
+                log.debug("Redis mirror unavailable: {}", e.getMessage());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Dạng map theo field như getFarmLatestData(): chỉ gồm field có giá trị
+     * từ sau thời điểm since.
+     */
+    public Map<String, Object> getDeviceFields(String deviceId, Instant since) {
+        DeviceLatest latest = read(deviceId);
+        if (latest == null) {
+            return null;
+        }
+        long sinceMillis = since.toEpochMilli();
+        Map<String, Object> fields = new HashMap<>();
+        long newest = 0;
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (latest.times()[i] != 0 && latest.times()[i] >= sinceMillis) {
+                fields.put(FIELDS[i], latest.values()[i]);
+                newest = Math.max(newest, latest.times()[i]);
+            }
+        }
+        if (fields.isEmpty()) {
+            return null;
+        }
+        fields.put("device_id", deviceId);
+        fields.put("timestamp", Instant.ofEpochMilli(newest));
+        return fields;
+    }
+
+    public boolean isWarmed() {
+        return warmed;
+    }
+
+    public void forget(String deviceId) {
+        DeviceLatest removed = devices.remove(deviceId);
+        if (removed != null && removed.farmId() != null) {
+            devicesByFarm.getOrDefault(removed.farmId(), Set.of()).remove(deviceId);
+        }
+        if (redisMirror) {
+            try {
+                redisTemplate.delete(REDIS_KEY_PREFIX + deviceId);
+                if (removed != null && removed.farmId() != null) {
+                    redisTemplate.opsForSet().remove(REDIS_FARM_KEY_PREFIX + removed.farmId(), deviceId);
+                }
+            } catch (Exception e) {
+                log.debug("Redis mirror unavailable: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void apply(String deviceId, Long farmId, double[] values, long[] times) {
+        DeviceLatest previous = devices.get(deviceId);
+        DeviceLatest updated = devices.compute(deviceId, (id, current) -> current == null
+                ? new DeviceLatest(farmId, values, times)
+                : current.merge(farmId, values, times));
+        Long oldFarm = previous != null ? previous.farmId() : null;
+        if (updated.farmId() != null && !updated.farmId().equals(oldFarm)) {
+            if (oldFarm != null) {
+                devicesByFarm.getOrDefault(oldFarm, Set.of()).remove(deviceId);
+            }
+            devicesByFarm.computeIfAbsent(updated.farmId(), f -> ConcurrentHashMap.newKeySet()).add(deviceId);
+        }
+    }
+
+    private DeviceLatest read(String deviceId) {
+        DeviceLatest local = devices.get(deviceId);
+        if (!redisMirror) {
+            return local;
+        }
+        try {
+            Map<Object, Object> hash = redisTemplate.opsForHash().entries(REDIS_KEY_PREFIX + deviceId);
+            if (hash.isEmpty()) {
+                return local;
+            }
+            double[] values = new double[FIELDS.length];
+            long[] times = new long[FIELDS.length];
+            for (int i = 0; i < FIELDS.length; i++) {
+                Object encoded = hash.get(FIELDS[i]);
+                if (encoded != null) {
+                    String[] parts = encoded.toString().split("\\|", 2);
+                    values[i] = Double.parseDouble(parts[0]);
+                    times[i] = Long.parseLong(parts[1]);
+                }
+            }
+            Long farmId = parseFarmId(hash.get("farm_id"));
+            return local == null ? new DeviceLatest(farmId, values, times) : local.merge(farmId, values, times);
+        } catch (Exception e) {
+            log.debug("Redis mirror unavailable, using local value for {}: {}", deviceId, e.getMessage());
+            return local;
+        }
+    }
+
+    private void mirrorToRedis(String deviceId, Long farmId, double[] values, long[] times) {
+        List<String> args = new ArrayList<>(1 + FIELDS.length * 3);
+        args.add(farmId != null ? farmId.toString() : "");
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (times[i] != 0) {
+                args.add(FIELDS[i]);
+                args.add(values[i] + "|" + times[i]);
+                args.add(Long.toString(times[i]));
+            }
+        }
+        if (args.size() == 1) {
+            return;
+        }
+        try {
+            Long advanced = redisTemplate.execute(MIRROR_SCRIPT, List.of(REDIS_KEY_PREFIX + deviceId),
+                    args.toArray());
+            if (advanced != null && advanced > 0 && farmId != null) {
+                redisTemplate.opsForSet().add(REDIS_FARM_KEY_PREFIX + farmId, deviceId);
+            }
+        } catch (Exception e) {
+            log.debug("Could not mirror latest values of {} to Redis: {}", deviceId, e.getMessage());
+        }
+    }
+
+    private static SensorDataDTO toDTO(DeviceLatest latest) {
+        SensorDataDTO dto = new SensorDataDTO();
+        dto.setFarmId(latest.farmId());
+        long newest = latest.newestTime();
+        dto.setTimestamp(newest != 0 ? Instant.ofEpochMilli(newest) : null);
+        dto.setTemperature(value(latest, 0));
+        dto.setHumidity(value(latest, 1));
+        dto.setSoilMoisture(value(latest, 2));
+        dto.setLightIntensity(value(latest, 3));
+        dto.setSoilPH(value(latest, 4));
+        return dto;
+    }
+
+    private static Double value(DeviceLatest latest, int index) {
+        return latest.times()[index] != 0 ? latest.values()[index] : null;
+    }
+
+    private static void put(double[] values, long[] times, int index, Double value, long time) {
+        if (value != null) {
+            values[index] = value;
+            times[index] = time;
+        }
+    }
+
+    private static int indexOf(String field) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Long parseFarmId(Object value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return null; // tag farm_id = "null" của thiết bị chưa gán farm
+        }
+    }
+}
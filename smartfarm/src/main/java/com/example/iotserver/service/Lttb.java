@@ -0,0 +1,94 @@
+package com.example.iotserver.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Giảm số điểm của một chuỗi thời gian bằng Largest-Triangle-Three-Buckets:
+ * giữ điểm đầu, điểm cuối và ở mỗi bucket chọn điểm tạo tam giác lớn nhất với
+ * điểm đã chọn trước đó và trung bình của bucket kế tiếp. Hình dạng (đỉnh,
+ * đáy) của biểu đồ được giữ lại tốt hơn nhiều so với lấy mẫu đều hay lấy
+ * trung bình.
+ *
+ * Chạy một lượt O(n) trên danh sách gốc, không tạo mảng trung gian; kết quả
+ * là các phần tử gốc được chọn, theo đúng thứ tự.
+ */
+public final class Lttb {
+
+    public static final int MIN_POINTS = 3;
+
+    private Lttb() {
+    }
+
+    /**
+     * Kiểm tra maxPoints trước khi truy vấn dữ liệu, để tham số sai bị từ chối
+     * kể cả khi chuỗi ngắn hơn maxPoints.
+     *
+     * @throws IllegalArgumentException nếu maxPoints nhỏ hơn {@link #MIN_POINTS}
+     */
+    public static void checkMaxPoints(int maxPoints) {
+        if (maxPoints < MIN_POINTS) {
+            throw new IllegalArgumentException("maxPoints phải lớn hơn hoặc bằng " + MIN_POINTS);
+        }
+    }
+
+    /**
+     * @param points    các điểm đã sắp xếp tăng dần theo x
+     * @param maxPoints số điểm tối đa (ít nhất 3)
+     * @param x         trục hoành (thời gian, epoch ms)
+     * @param y         giá trị
+     */
+    public static <T> List<T> downsample(List<T> points, int maxPoints, ToLongFunction<T> x,
+            ToDoubleFunction<T> y) {
+        checkMaxPoints(maxPoints);
+        int n = points.size();
+        if (n <= maxPoints) {
+            return points;
+        }
+
+        List<T> sampled = new ArrayList<>(maxPoints);
+        // x tính tương đối so với điểm đầu để tích không mất độ chính xác
+        long origin = x.applyAsLong(points.get(0));
+        double bucketSize = (double) (n - 2) / (maxPoints - 2);
+        int selected = 0;
+        sampled.add(points.get(0));
+
+        for (int bucket = 0; bucket < maxPoints - 2; bucket++) {
+            // Trung bình của bucket kế tiếp (bucket cuối dùng điểm cuối)
+            int nextStart = (int) ((bucket + 1) * bucketSize) + 1;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, n);
+            double avgX = 0;
+            double avgY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                avgX += x.applyAsLong(points.get(i)) - origin;
+                avgY += y.applyAsDouble(points.get(i));
+            }
+            int nextCount = nextEnd - nextStart;
+            avgX /= nextCount;
+            avgY /= nextCount;
+
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = (int) ((bucket + 1) * bucketSize) + 1;
+            double ax = x.applyAsLong(points.get(selected)) - origin;
+            double ay = y.applyAsDouble(points.get(selected));
+            double maxArea = -1;
+            int best = start;
+            for (int i = start; i < end; i++) {
+                T point = points.get(i);
+                double area = Math.abs((ax - avgX) * (y.applyAsDouble(point) - ay)
+                        - (ax - (x.applyAsLong(point) - origin)) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    best = i;
+                }
+            }
+            sampled.add(points.get(best));
+            selected = best;
+        }
+
+        sampled.add(points.get(n - 1));
+        return sampled;
+    }
+}
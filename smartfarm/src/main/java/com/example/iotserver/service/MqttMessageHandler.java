@@ -4,14 +4,17 @@ package com.example.iotserver.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.dto.SensorReading;
 import com.example.iotserver.entity.Device;
 import com.example.iotserver.entity.Farm;
 import com.example.iotserver.repository.DeviceRepository;
 import com.example.iotserver.repository.FarmRepository;
+import com.example.iotserver.repository.UserRepository;
+import com.example.iotserver.service.IngestMetrics.Stage;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHeaders;
@@ -21,10 +24,16 @@ import com.example.iotserver.enums.DeviceStatus;
 import com.example.iotserver.entity.User;
 import com.example.iotserver.entity.Notification; // <<<< Thêm vào
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 @Service
@@ -33,31 +42,62 @@ import java.util.Map;
 public class MqttMessageHandler {
 
     private final DeviceRepository deviceRepository;
+    private final DeviceRegistry deviceRegistry;
+    private final DeviceLastSeenTracker lastSeenTracker;
+    private final UserRepository userRepository;
     private final SensorDataService sensorDataService;
     private final WebSocketService webSocketService;
     private final ObjectMapper objectMapper;
-    private final PlantHealthService plantHealthService;
+    private final PlantHealthAnalysisScheduler plantHealthAnalysisScheduler;
     // private final EmailService emailService; // <<<< Thêm vào
     // private final FarmRepository farmRepository; // <<<< Thêm vào
     private final NotificationService notificationService; // <<<< THÊM DÒNG NÀY
-    private final SettingService settingService; // Service để lấy ngưỡng cài đặt
-    private final StringRedisTemplate redisTemplate; // Redis để quản lý cooldown
+    private final SensorAlertCache sensorAlertCache; // Ngưỡng + cooldown, cache cục bộ trước Redis
 
-    private static final int SENSOR_NOTIFICATION_COOLDOWN_HOURS = 4;
+    private final SensorPayloadDecoder sensorPayloadDecoder;
+    private final SensorBinaryCodec sensorBinaryCodec;
+    private final IngestMetrics ingestMetrics;
+    private final RuleTriggerService ruleTriggerService;
+
+    private static final Duration NOTIFICATION_COOLDOWN = Duration.ofHours(4);
+
+    // Reading có thời gian thiết bị cũ hơn ngưỡng này được coi là backfill (dữ liệu gửi bù)
+    @Value("${ingest.backfill-threshold-ms:120000}")
+    private long backfillThresholdMs;
+
+    // Thời gian thiết bị vượt quá thời gian server hơn mức này thì bị thay bằng thời gian server
+    @Value("${ingest.max-clock-skew-ms:300000}")
+    private long maxClockSkewMs;
+
+    // Reading cũ hơn mức này (ts=0, bộ đếm uptime bị hiểu là epoch...) bị bỏ thay vì ghi vào quá khứ xa
+    @Value("${ingest.max-backfill-age-ms:2592000000}")
+    private long maxBackfillAgeMs;
+
+    // Mỗi worker MQTT dùng lại một SensorReading, tránh cấp phát theo message
+    private static final ThreadLocal<SensorReading> READING = ThreadLocal.withInitial(SensorReading::new);
 
     @ServiceActivator(inputChannel = "mqttInputChannel")
     public void handleMessage(Message<?> message) {
+        long start = System.nanoTime();
         try {
             MessageHeaders headers = message.getHeaders();
             String topic = (String) headers.get("mqtt_receivedTopic");
-            String payload = message.getPayload().toString();
+            byte[] payload = toBytes(message.getPayload());
 
-            log.info("Received MQTT message - Topic: {}, Payload: {}", topic, payload);
+            if (log.isDebugEnabled()) {
+                log.debug("Received MQTT message - Topic: {}, Payload: {}", topic,
+                        new String(payload, StandardCharsets.UTF_8));
+            }
 
-            if (topic.startsWith("sensor/")) {
+            if (topic.startsWith("sensor/") && topic.endsWith("/batch")) {
+                handleSensorBatch(topic, payload);
+                ingestMetrics.recordMessage("batch", start);
+            } else if (topic.startsWith("sensor/")) {
                 handleSensorData(topic, payload);
+                ingestMetrics.recordMessage(topic.endsWith("/bin") ? "bin" : "data", start);
             } else if (topic.startsWith("device/")) {
                 handleDeviceStatus(topic, payload);
+                ingestMetrics.recordMessage("status", start);
             }
 
         } catch (Exception e) {
@@ -66,59 +106,244 @@ public class MqttMessageHandler {
     }
 
     // <<< DÁN TOÀN BỘ PHƯƠNG THỨC ĐÃ SỬA NÀY VÀO FILE >>>
-    @Transactional
-    private void handleSensorData(String topic, String payload) {
+    private void handleSensorData(String topic, byte[] payload) {
         try {
             String deviceId = topic.split("/")[1];
-            Device device = deviceRepository.findByDeviceIdWithFarmAndOwner(deviceId)
-                    .orElse(null);
+            // Tra cứu từ DeviceRegistry trong bộ nhớ, không query MySQL cho mỗi message
+            long stageStart = System.nanoTime();
+            DeviceRegistry.CachedDevice device = deviceRegistry.get(deviceId);
+            ingestMetrics.recordStage(Stage.DEVICE_LOOKUP, stageStart);
 
             if (device == null) {
+                ingestMetrics.unknownDevice();
                 log.warn("Nhận được dữ liệu từ thiết bị lạ chưa được đăng ký: {}", deviceId);
                 return;
             }
 
             // <<< KIỂM TRA QUAN TRỌNG: Thiết bị đã được "nhận" vào nông trại chưa? >>>
-            if (device.getFarm() == null) {
+            if (device.getFarmId() == null) {
                 log.warn("Nhận được dữ liệu từ thiết bị '{}' chưa được gán vào nông trại. Bỏ qua xử lý.", deviceId);
                 // Cập nhật lastSeen để admin biết thiết bị vẫn đang online và chờ được nhận
-                device.setLastSeen(LocalDateTime.now());
-                deviceRepository.save(device);
+                lastSeenTracker.touch(deviceId, LocalDateTime.now());
                 return; // Dừng xử lý tại đây để tránh lỗi NullPointerException
             }
             // <<< KẾT THÚC KIỂM TRA >>>
 
-            // Từ đây trở đi, chúng ta chắc chắn rằng device.getFarm() không phải là null
-            Long farmId = device.getFarm().getId();
+            Long farmId = device.getFarmId();
 
-            Map<String, Object> data = objectMapper.readValue(payload, Map.class);
-            SensorDataDTO sensorData = SensorDataDTO.fromMqttPayload(deviceId, data);
+            // sensor/{id}/data là JSON, sensor/{id}/bin là định dạng nhị phân gọn; cả hai vào cùng pipeline
+            SensorReading reading = READING.get();
+            stageStart = System.nanoTime();
+            try {
+                if (topic.endsWith("/bin")) {
+                    sensorBinaryCodec.decode(payload, reading);
+                } else {
+                    sensorPayloadDecoder.decode(payload, reading);
+                }
+            } catch (IOException e) {
+                ingestMetrics.parseFailure();
+                log.warn("Payload không hợp lệ từ thiết bị {}: {}", deviceId, e.getMessage());
+                return;
+            }
+            SensorDataDTO sensorData = SensorDataDTO.fromReading(deviceId, reading);
+            ingestMetrics.recordStage(Stage.PARSE, stageStart);
 
             sensorData.setFarmId(farmId);
 
+            if (isExpired(sensorData)) {
+                ingestMetrics.expiredReadings(1);
+                log.warn("Bỏ reading của thiết bị {} có timestamp quá cũ ({})", deviceId, sensorData.getTimestamp());
+                markSeen(device);
+                return;
+            }
+            boolean live = isLive(sensorData);
+            stageStart = System.nanoTime();
             sensorDataService.saveSensorData(sensorData);
+            ingestMetrics.recordStage(Stage.INFLUX_WRITE, stageStart);
+            ingestMetrics.recordReadings(farmId, live, 1);
+
+            markSeen(device);
+            if (live) {
+                publishRealtime(device, sensorData);
+                log.info("Xử lý thành công dữ liệu cảm biến từ thiết bị: {}", deviceId);
+            } else {
+                // Dữ liệu gửi bù: chỉ ghi lịch sử, không đẩy WebSocket/cảnh báo/phân tích
+                log.debug("Ghi dữ liệu backfill từ thiết bị {} tại {}", deviceId, sensorData.getTimestamp());
+            }
+
+        } catch (Exception e) {
+            log.error("Lỗi khi xử lý dữ liệu cảm biến: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Xử lý payload batch từ gateway (topic sensor/{id}/batch): nhiều reading có
+     * thời gian, có thể của nhiều thiết bị cùng nông trại với gateway (reading của
+     * thiết bị ở nông trại khác bị bỏ và đếm). Ghi InfluxDB một lần cho cả batch, tra
+     * registry một lần mỗi thiết bị và chỉ đẩy WebSocket/cảnh báo với reading mới
+     * nhất của từng thiết bị.
+     */
+    private void handleSensorBatch(String topic, byte[] payload) {
+        try {
+            String topicDeviceId = topic.split("/")[1];
+            long stageStart = System.nanoTime();
+            DeviceRegistry.CachedDevice gateway = deviceRegistry.get(topicDeviceId);
+            ingestMetrics.recordStage(Stage.DEVICE_LOOKUP, stageStart);
+            if (gateway == null) {
+                ingestMetrics.unknownDevice();
+                log.warn("Nhận được batch từ gateway lạ chưa được đăng ký: {}", topicDeviceId);
+                return;
+            }
+            if (gateway.getFarmId() == null) {
+                log.warn("Gateway '{}' chưa được gán vào nông trại. Bỏ qua batch.", topicDeviceId);
+                lastSeenTracker.touch(topicDeviceId, LocalDateTime.now());
+                return;
+            }
+            Long farmId = gateway.getFarmId();
+
+            Map<String, List<SensorDataDTO>> readingsByDevice = new LinkedHashMap<>();
+            stageStart = System.nanoTime();
+            int total;
+            try {
+                total = sensorPayloadDecoder.decodeBatch(payload, READING.get(), reading -> {
+                    String deviceId = reading.getDeviceId() != null ? reading.getDeviceId() : topicDeviceId;
+                    readingsByDevice.computeIfAbsent(deviceId, id -> new ArrayList<>())
+                            .add(SensorDataDTO.fromReading(deviceId, reading));
+                });
+            } catch (IOException e) {
+                ingestMetrics.parseFailure();
+                log.warn("Payload batch không hợp lệ từ topic {}: {}", topic, e.getMessage());
+                return;
+            }
+            ingestMetrics.recordStage(Stage.PARSE, stageStart);
+
+            List<SensorDataDTO> accepted = new ArrayList<>(total);
+            Map<DeviceRegistry.CachedDevice, SensorDataDTO> newestByDevice = new LinkedHashMap<>();
+            for (Map.Entry<String, List<SensorDataDTO>> entry : readingsByDevice.entrySet()) {
+                String deviceId = entry.getKey();
+                stageStart = System.nanoTime();
+                DeviceRegistry.CachedDevice device = deviceRegistry.get(deviceId);
+                ingestMetrics.recordStage(Stage.DEVICE_LOOKUP, stageStart);
+                if (device == null) {
+                    ingestMetrics.unknownDevice();
+                    log.warn("Batch chứa {} reading của thiết bị lạ: {}", entry.getValue().size(), deviceId);
+                    continue;
+                }
+                if (!farmId.equals(device.getFarmId())) {
+                    // Gateway chỉ được gửi hộ thiết bị trong cùng nông trại với nó
+                    ingestMetrics.foreignReadings(entry.getValue().size());
+                    log.warn("Bỏ {} reading của thiết bị {} không cùng nông trại với gateway {}",
+                            entry.getValue().size(), deviceId, topicDeviceId);
+                    continue;
+                }
 
-            device.setLastSeen(LocalDateTime.now());
-            if (device.getStatus() != DeviceStatus.ONLINE) {
-                device.setStatus(DeviceStatus.ONLINE);
-                webSocketService.sendDeviceStatus(farmId, deviceId, "ONLINE");
+                List<SensorDataDTO> readings = entry.getValue();
+                int before = readings.size();
+                readings.removeIf(this::isExpired);
+                if (readings.size() < before) {
+                    ingestMetrics.expiredReadings(before - readings.size());
+                    log.warn("Bỏ {} reading của thiết bị {} có timestamp quá cũ", before - readings.size(), deviceId);
+                }
+                if (readings.isEmpty()) {
+                    markSeen(device);
+                    continue;
+                }
+
+                SensorDataDTO newest = null;
+                int liveCount = 0;
+                for (SensorDataDTO data : readings) {
+                    data.setFarmId(farmId);
+                    // isLive() cũng chuẩn hóa timestamp ở tương lai trước khi ghi
+                    if (isLive(data)) {
+                        liveCount++;
+                    }
+                    if (newest == null || !data.getTimestamp().isBefore(newest.getTimestamp())) {
+                        newest = data;
+                    }
+                }
+                accepted.addAll(readings);
+                ingestMetrics.recordReadings(farmId, true, liveCount);
+                ingestMetrics.recordReadings(farmId, false, readings.size() - liveCount);
+                newestByDevice.put(device, newest);
             }
-            deviceRepository.save(device);
 
-            webSocketService.sendSensorData(farmId, sensorData);
-            plantHealthService.analyzeHealth(farmId);
+            stageStart = System.nanoTime();
+            sensorDataService.saveSensorDataBatch(accepted);
+            ingestMetrics.recordStage(Stage.INFLUX_WRITE, stageStart);
 
-            checkForSensorAnomaliesAndNotify(device.getFarm(), device, sensorData);
+            newestByDevice.forEach((device, newest) -> {
+                markSeen(device);
+                // Chỉ reading mới nhất còn "live" mới kích hoạt WebSocket/cảnh báo/phân tích
+                if (isLive(newest)) {
+                    publishRealtime(device, newest);
+                }
+            });
 
-            log.info("Xử lý thành công dữ liệu cảm biến từ thiết bị: {}", deviceId);
+            log.info("Xử lý batch {} reading ({} được ghi) cho {} thiết bị từ topic {}",
+                    total, accepted.size(), newestByDevice.size(), topic);
 
         } catch (Exception e) {
-            log.error("Lỗi khi xử lý dữ liệu cảm biến: {}", e.getMessage(), e);
+            log.error("Lỗi khi xử lý batch dữ liệu cảm biến: {}", e.getMessage(), e);
+        }
+    }
+
+    // Thời gian đo cũ hơn ingest.max-backfill-age-ms: không biểu đồ nào hiển thị, coi là timestamp hỏng
+    private boolean isExpired(SensorDataDTO data) {
+        return data.getTimestamp().isBefore(Instant.now().minusMillis(maxBackfillAgeMs));
+    }
+
+    /**
+     * Phân loại reading theo thời gian đo: true nếu là dữ liệu thời gian thực,
+     * false nếu là backfill. Timestamp ở quá xa trong tương lai (đồng hồ thiết bị
+     * sai) được thay bằng thời gian server và coi là live.
+     */
+    private boolean isLive(SensorDataDTO data) {
+        Instant now = Instant.now();
+        if (data.getTimestamp().isAfter(now.plusMillis(maxClockSkewMs))) {
+            log.warn("Thiết bị {} gửi timestamp ở tương lai ({}), dùng thời gian server",
+                    data.getDeviceId(), data.getTimestamp());
+            data.setTimestamp(now);
+            data.setLocalTime(LocalDateTime.now());
+            return true;
         }
+        return !data.getTimestamp().isBefore(now.minusMillis(backfillThresholdMs));
+    }
+
+    // lastSeen được gom trong bộ nhớ và flush định kỳ, chỉ ghi DB ngay khi đổi trạng thái
+    private void markSeen(DeviceRegistry.CachedDevice device) {
+        LocalDateTime now = LocalDateTime.now();
+        lastSeenTracker.touch(device.getDeviceId(), now);
+        if (device.getStatus() != DeviceStatus.ONLINE) {
+            long stageStart = System.nanoTime();
+            deviceRepository.updateStatusAndLastSeen(device.getDeviceId(), DeviceStatus.ONLINE, now);
+            deviceRegistry.updateStatus(device.getDeviceId(), DeviceStatus.ONLINE);
+            ingestMetrics.recordStage(Stage.MYSQL, stageStart);
+            webSocketService.sendDeviceStatus(device.getFarmId(), device.getDeviceId(), "ONLINE");
+        }
+    }
+
+    private void publishRealtime(DeviceRegistry.CachedDevice device, SensorDataDTO sensorData) {
+        long stageStart = System.nanoTime();
+        webSocketService.sendSensorData(device.getFarmId(), sensorData);
+        ingestMetrics.recordStage(Stage.WEBSOCKET, stageStart);
+
+        // Phân tích được gom theo farm và chạy trên pool riêng, không chặn luồng ingest
+        stageStart = System.nanoTime();
+        plantHealthAnalysisScheduler.trigger(device.getFarmId());
+        ingestMetrics.recordStage(Stage.PLANT_HEALTH, stageStart);
+
+        stageStart = System.nanoTime();
+        checkForSensorAnomaliesAndNotify(device, sensorData);
+        ingestMetrics.recordStage(Stage.ALERTS, stageStart);
+
+        // Quy tắc phụ thuộc vào reading này được đánh giá ngay trên pool riêng
+        stageStart = System.nanoTime();
+        ruleTriggerService.onReading(sensorData);
+        ingestMetrics.recordStage(Stage.RULES, stageStart);
     }
 
     @Transactional // Thêm @Transactional để đảm bảo lưu DB thành công
-    private void handleDeviceStatus(String topic, String payload) {
+    private void handleDeviceStatus(String topic, byte[] payload) {
         try {
             String deviceId = topic.split("/")[1];
             Map<String, Object> statusMap = objectMapper.readValue(payload, Map.class);
@@ -139,7 +364,11 @@ public class MqttMessageHandler {
                 }
 
                 device.setLastSeen(LocalDateTime.now());
+                long stageStart = System.nanoTime();
                 Device updatedDevice = deviceRepository.save(device); // Lưu lại
+                ingestMetrics.recordStage(Stage.MYSQL, stageStart);
+                lastSeenTracker.touch(deviceId, updatedDevice.getLastSeen());
+                deviceRegistry.updateStatus(deviceId, updatedDevice.getStatus());
 
                 log.info("Updated device status: {} - Status: {}, State: {}",
                         deviceId, updatedDevice.getStatus(), updatedDevice.getCurrentState());
@@ -169,71 +398,72 @@ public class MqttMessageHandler {
         }
     }
 
+    private static byte[] toBytes(Object payload) {
+        if (payload instanceof byte[] bytes) {
+            return bytes;
+        }
+        return payload.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
     // VVVV--- ĐÂY LÀ PHẦN LOGIC MỚI ĐƯỢC THÊM VÀO ---VVVV
     /**
      * Kiểm tra các ngưỡng tức thời từ dữ liệu cảm biến và tạo thông báo nếu cần.
      */
-    private void checkForSensorAnomaliesAndNotify(Farm farm, Device device, SensorDataDTO data) {
-        User owner = farm.getOwner();
-        if (owner == null)
+    private void checkForSensorAnomaliesAndNotify(DeviceRegistry.CachedDevice device, SensorDataDTO data) {
+        if (device.getOwnerId() == null)
             return;
+        Long farmId = device.getFarmId();
 
         // 1. Kiểm tra nhiệt độ cao
-        double highTempThreshold = settingService.getDouble("SENSOR_HIGH_TEMP_THRESHOLD", 38.0);
+        double highTempThreshold = sensorAlertCache.getThreshold("SENSOR_HIGH_TEMP_THRESHOLD", 38.0);
         if (data.getTemperature() != null && data.getTemperature() > highTempThreshold) {
             String alertType = "SENSOR_HIGH_TEMP";
-            if (canSendNotification(farm.getId(), alertType, device.getDeviceId())) {
+            if (sensorAlertCache.tryAcquireCooldown(farmId, alertType, device.getDeviceId(), NOTIFICATION_COOLDOWN)) {
                 String title = String.format("Cảnh Báo: Nhiệt độ cao tại %s", device.getName());
                 String message = String.format(
                         "Nhiệt độ đo được là %.1f°C, vượt ngưỡng %.1f°C. Hãy kiểm tra hệ thống làm mát.",
                         data.getTemperature(), highTempThreshold);
-                notificationService.createAndSendNotification(owner, title, message,
+                notificationService.createAndSendNotification(loadOwner(device), title, message,
                         Notification.NotificationType.DEVICE_STATUS, "/devices",
                         true);
-                setNotificationCooldown(farm.getId(), alertType, device.getDeviceId());
             }
         }
 
         // 2. Kiểm tra độ ẩm đất thấp
-        double lowSoilThreshold = settingService.getDouble("SENSOR_LOW_SOIL_MOISTURE_THRESHOLD", 20.0);
+        double lowSoilThreshold = sensorAlertCache.getThreshold("SENSOR_LOW_SOIL_MOISTURE_THRESHOLD", 20.0);
         if (data.getSoilMoisture() != null && data.getSoilMoisture() < lowSoilThreshold) {
             String alertType = "SENSOR_LOW_SOIL";
-            if (canSendNotification(farm.getId(), alertType, device.getDeviceId())) {
+            if (sensorAlertCache.tryAcquireCooldown(farmId, alertType, device.getDeviceId(), NOTIFICATION_COOLDOWN)) {
                 String title = String.format("Cảnh Báo: Độ ẩm đất thấp tại %s", device.getName());
                 String message = String.format("Độ ẩm đất chỉ còn %.1f%%, dưới ngưỡng %.1f%%. Cần tưới nước ngay.",
                         data.getSoilMoisture(), lowSoilThreshold);
-                notificationService.createAndSendNotification(owner, title, message,
+                notificationService.createAndSendNotification(loadOwner(device), title, message,
                         Notification.NotificationType.DEVICE_STATUS, "/devices",
                         true);
-                setNotificationCooldown(farm.getId(), alertType, device.getDeviceId());
             }
         }
 
         // 3. Kiểm tra độ ẩm không khí cao
-        double highHumidityThreshold = settingService.getDouble("SENSOR_HIGH_HUMIDITY_THRESHOLD", 90.0);
+        double highHumidityThreshold = sensorAlertCache.getThreshold("SENSOR_HIGH_HUMIDITY_THRESHOLD", 90.0);
         if (data.getHumidity() != null && data.getHumidity() > highHumidityThreshold) {
             String alertType = "SENSOR_HIGH_HUMIDITY";
-            if (canSendNotification(farm.getId(), alertType, device.getDeviceId())) {
+            if (sensorAlertCache.tryAcquireCooldown(farmId, alertType, device.getDeviceId(), NOTIFICATION_COOLDOWN)) {
                 String title = String.format("Cảnh Báo: Độ ẩm cao tại %s", device.getName());
                 String message = String.format("Độ ẩm không khí là %.1f%%, vượt ngưỡng %.1f%%, có nguy cơ nấm bệnh.",
                         data.getHumidity(), highHumidityThreshold);
-                notificationService.createAndSendNotification(owner, title, message,
+                notificationService.createAndSendNotification(loadOwner(device), title, message,
                         Notification.NotificationType.DEVICE_STATUS, "/devices",
                         true);
-                setNotificationCooldown(farm.getId(), alertType, device.getDeviceId());
             }
         }
     }
 
-    private boolean canSendNotification(Long farmId, String alertType, String deviceId) {
-        String redisKey = "cooldown:notification:" + farmId + ":" + alertType + ":" + deviceId;
-        return !Boolean.TRUE.equals(redisTemplate.hasKey(redisKey));
+    // Chỉ đọc User từ DB khi thực sự có cảnh báo cần gửi
+    private User loadOwner(DeviceRegistry.CachedDevice device) {
+        return userRepository.findById(device.getOwnerId())
+                .orElseThrow(() -> new IllegalStateException("Owner not found for farm " + device.getFarmId()));
     }
 
-    private void setNotificationCooldown(Long farmId, String alertType, String deviceId) {
-        String redisKey = "cooldown:notification:" + farmId + ":" + alertType + ":" + deviceId;
-        redisTemplate.opsForValue().set(redisKey, "sent", Duration.ofHours(SENSOR_NOTIFICATION_COOLDOWN_HOURS));
-    }
     // ^^^^---------------------------------------------------^^^^
 
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+package com.example.iotserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gom các yêu cầu phân tích sức khỏe cây trồng theo từng farm.
+ *
+ * Mỗi reading MQTT chỉ gọi trigger(); lần trigger đầu tiên của một farm sẽ
+ * lên lịch một lần analyzeHealth() sau debounce window, các trigger tiếp theo
+ * trong cửa sổ đó được gộp vào lần chạy đã lên lịch. Việc phân tích chạy trên
+ * pool riêng, mỗi farm có tối đa một tác vụ đang chờ nên hàng đợi bị chặn bởi
+ * số farm.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class PlantHealthAnalysisScheduler {
+
+    private final PlantHealthService plantHealthService;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${plant-health.debounce-window-ms:30000}")
+    private long debounceWindowMs;
+
+    @Value("${plant-health.analysis-threads:2}")
+    private int analysisThreads;
+
+    private final Set<Long> pendingFarms = ConcurrentHashMap.newKeySet();
+
+    private ScheduledThreadPoolExecutor executor;
+    private Counter coalescedCounter;
+    private Counter executedCounter;
+    private Counter failedCounter;
+
+    @PostConstruct
+    void start() {
+        executor = new ScheduledThreadPoolExecutor(analysisThreads, new CustomizableThreadFactory("plant-health-"));
+        executor.setRemoveOnCancelPolicy(true);
+        coalescedCounter = triggerCounter("coalesced");
+        executedCounter = triggerCounter("executed");
+        failedCounter = triggerCounter("failed");
+    }
+
+    @PreDestroy
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Yêu cầu phân tích lại sức khỏe của farm. Không chặn thread gọi.
+     */
+    public void trigger(Long farmId) {
+        if (!pendingFarms.add(farmId)) {
+            coalescedCounter.increment();
+            return;
+        }
+        try {
+            executor.schedule(() -> runAnalysis(farmId), debounceWindowMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Không để farm kẹt trong pending, trigger sau vẫn lên lịch lại được
+            pendingFarms.remove(farmId);
+            failedCounter.increment();
+            log.warn("Plant health analysis for farm {} rejected: {}", farmId, e.getMessage());
+        }
+    }
+
+    private void runAnalysis(Long farmId) {
+        // Gỡ khỏi pending trước khi chạy để reading đến trong lúc phân tích vẫn được lên lịch lần sau
+        pendingFarms.remove(farmId);
+        try {
+            plantHealthService.analyzeHealth(farmId);
+            executedCounter.increment();
+        } catch (Exception e) {
+            failedCounter.increment();
+            log.error("Plant health analysis failed for farm {}: {}", farmId, e.getMessage(), e);
+        }
+    }
+
+    public long getCoalescedCount() {
+        return (long) coalescedCounter.count();
+    }
+
+    public long getExecutedCount() {
+        return (long) executedCounter.count();
+    }
+
+    private Counter triggerCounter(String outcome) {
+        return Counter.builder("plant_health.analysis.triggers")
+                .description("Số lần yêu cầu phân tích sức khỏe cây trồng theo kết quả")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.iotserver.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pool riêng cho việc tạo báo cáo (PDF...), tách khỏi thread request của
+ * Tomcat. Số thread và hàng đợi đều có giới hạn: khi đầy, submit() ném
+ * {@link RejectedExecutionException} (trả về 503) thay vì xếp hàng vô hạn.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class ReportExecutor {
+
+    @FunctionalInterface
+    public interface ReportTask {
+        void run() throws Exception;
+    }
+
+    private final InfluxQueryExecutor queryExecutor;
+
+    @Value("${report.executor.threads:2}")
+    private int threads;
+
+    @Value("${report.executor.queue-capacity:8}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    void start() {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("report-"),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Chạy task trên pool báo cáo. Exception của task được trả qua future.
+     * cancel() trên future ngắt thread đang chạy task và hủy query InfluxDB
+     * nó đang chờ; task còn trong hàng đợi thì không chạy nữa.
+     *
+     * @throws RejectedExecutionException nếu pool và hàng đợi đã đầy
+     */
+    public CompletableFuture<Void> submit(ReportTask task) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        // Thread đang chạy task; khóa chung để không interrupt nhầm task sau trên cùng thread
+        AtomicReference<Thread> worker = new AtomicReference<>();
+        try {
+            executor.execute(() -> {
+                synchronized (worker) {
+                    if (result.isDone()) {
+                        return;
+                    }
+                    worker.set(Thread.currentThread());
+                }
+                try {
+                    task.run();
+                    result.complete(null);
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    synchronized (worker) {
+                        worker.set(null);
+                        Thread.interrupted();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Report executor saturated ({} active, {} queued), rejecting request",
+                    executor.getActiveCount(), executor.getQueue().size());
+            throw new RejectedExecutionException("Hệ thống đang tạo quá nhiều báo cáo, vui lòng thử lại sau", e);
+        }
+        result.whenComplete((ignored, error) -> {
+            if (result.isCancelled()) {
+                synchronized (worker) {
+                    Thread thread = worker.get();
+                    if (thread != null) {
+                        queryExecutor.cancel(thread);
+                        thread.interrupt();
+                    }
+                }
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.iotserver.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Thư mục cache file báo cáo trên đĩa, giới hạn theo tổng dung lượng
+ * (report.cache.max-bytes) và loại bỏ file ít được dùng gần đây nhất (LRU).
+ *
+ * File được ghi vào một file tạm rồi move atomic vào tên cuối cùng, nên
+ * get() không bao giờ trả về file đang ghi dở. File đang được tải (đã mở
+ * bằng open()) được ghim: không bị loại bỏ, và remove() chỉ xóa file khi
+ * lượt tải cuối cùng đóng lại. Khi khởi động, các file còn lại từ lần chạy
+ * trước được nạp lại theo thứ tự lastModified.
+ */
+@Component
+@Slf4j
+public class ReportFileCache {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    @Value("${report.cache.dir:${java.io.tmpdir}/smartfarm-reports}")
+    private String cacheDir;
+
+    @Value("${report.cache.max-bytes:536870912}")
+    private long maxBytes;
+
+    private Path dir;
+
+    // Tên file -> kích thước, theo thứ tự truy cập (cũ nhất đứng đầu)
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    // Tên file -> số lượt tải đang mở
+    private final Map<String, Integer> pins = new HashMap<>();
+    // File đã bị remove() khi đang được tải, xóa khi lượt tải cuối đóng
+    private final Set<String> deleteOnRelease = new HashSet<>();
+
+    /**
+     * Một lượt đọc file đã cache. close() đóng channel và bỏ ghim file.
+     */
+    public final class Download implements Closeable {
+        private final String fileName;
+        private final FileChannel channel;
+        private final long size;
+        private boolean closed;
+
+        private Download(String fileName, FileChannel channel, long size) {
+            this.fileName = fileName;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (ReportFileCache.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                unpinLocked(fileName);
+            }
+            channel.close();
+        }
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        dir = Paths.get(cacheDir).toAbsolutePath();
+        Files.createDirectories(dir);
+        List<Path> existing;
+        try (Stream<Path> files = Files.list(dir)) {
+            existing = files.filter(Files::isRegularFile).toList();
+        }
+        List<Path> reports = existing.stream()
+                .filter(file -> !deleteIfTemp(file))
+                .sorted(Comparator.comparing(ReportFileCache::lastModified))
+                .toList();
+        synchronized (this) {
+            for (Path file : reports) {
+                long size = Files.size(file);
+                entries.put(file.getFileName().toString(), size);
+                totalBytes += size;
+            }
+            evictLocked(null);
+        }
+        log.info("Report file cache at {}: {} files, {} bytes", dir, entries.size(), totalBytes);
+    }
+
+    /**
+     * File đã cache (đánh dấu là vừa được dùng), hoặc null.
+     */
+    public synchronized Path get(String fileName) {
+        if (entries.get(fileName) == null) {
+            return null;
+        }
+        Path file = dir.resolve(fileName);
+        if (!Files.exists(file)) {
+            // Bị xóa từ bên ngoài
+            totalBytes -= entries.remove(fileName);
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Mở file đã cache để gửi cho client và ghim nó cho tới khi Download được
+     * đóng, hoặc null nếu không có.
+     */
+    public synchronized Download open(String fileName) throws IOException {
+        Path file = get(fileName);
+        if (file == null) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        pins.merge(fileName, 1, Integer::sum);
+        return new Download(fileName, channel, channel.size());
+    }
+
+    public Path newTempFile() throws IOException {
+        return Files.createTempFile(dir, "report-", TEMP_SUFFIX);
+    }
+
+    /**
+     * Đưa file tạm vào cache với tên fileName, rồi loại bỏ file cũ nếu vượt
+     * dung lượng. File vừa đưa vào không bị loại kể cả khi lớn hơn giới hạn.
+     */
+    public Path put(String fileName, Path tempFile) throws IOException {
+        Path target = dir.resolve(fileName);
+        long size = Files.size(tempFile);
+        synchronized (this) {
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            // File cũ (nếu đang được tải) đã bị thay thế, không xóa file mới khi lượt tải đó đóng
+            deleteOnRelease.remove(fileName);
+            Long previous = entries.put(fileName, size);
+            totalBytes += size - (previous != null ? previous : 0);
+            evictLocked(fileName);
+        }
+        return target;
+    }
+
+    public synchronized void remove(String fileName) {
+        Long size = entries.remove(fileName);
+        if (size != null) {
+            totalBytes -= size;
+            if (pins.containsKey(fileName)) {
+                deleteOnRelease.add(fileName);
+            } else {
+                delete(dir.resolve(fileName));
+            }
+        }
+    }
+
+    private void unpinLocked(String fileName) {
+        Integer remaining = pins.merge(fileName, -1, Integer::sum);
+        if (remaining != null && remaining <= 0) {
+            pins.remove(fileName);
+            if (deleteOnRelease.remove(fileName)) {
+                delete(dir.resolve(fileName));
+            }
+        }
+    }
+
+    private void evictLocked(String keep) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            // File đang được tải không bị loại bỏ
+            if (eldest.getKey().equals(keep) || pins.containsKey(eldest.getKey())) {
+                continue;
+            }
+            it.remove();
+            totalBytes -= eldest.getValue();
+            delete(dir.resolve(eldest.getKey()));
+            log.debug("Evicted cached report {} ({} bytes)", eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private static boolean deleteIfTemp(Path file) {
+        if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+            delete(file);
+            return true;
+        }
+        return false;
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete cached report {}: {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.dto.ReportJobDTO;
+import com.example.iotserver.enums.ReportFormat;
+import com.example.iotserver.exception.ResourceNotFoundException;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Job tạo báo cáo bất đồng bộ: submit -> poll trạng thái -> download.
+ *
+ * Job chạy trên {@link ReportExecutor}; kết quả được ghi thành file trong
+ * {@link ReportFileCache}, đặt tên theo khóa (tập thiết bị, khoảng thời gian,
+ * định dạng). Khoảng thời gian kết thúc trước report.cache.backfill-horizon-ms
+ * thì dữ liệu coi như không đổi, nên job sau với cùng khóa dùng lại file có
+ * sẵn; khoảng gần hiện tại (còn có thể nhận dữ liệu gửi bù) luôn được tạo mới.
+ * Trạng thái job chỉ giữ trong bộ nhớ và bị xóa sau report.jobs.ttl-ms.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class ReportJobService {
+
+    public enum Status {
+        PENDING, RUNNING, COMPLETED, FAILED
+    }
+
+    private final ReportService reportService;
+    private final ReportExecutor reportExecutor;
+    private final ReportFileCache fileCache;
+
+    @Value("${report.jobs.ttl-ms:3600000}")
+    private long jobTtlMs;
+
+    // Khoảng thời gian kết thúc trước hiện tại hơn chừng này mới coi là không đổi (hết backfill)
+    @Value("${report.cache.backfill-horizon-ms:86400000}")
+    private long backfillHorizonMs;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    // Job đang chạy theo khóa cache, để cùng một người gửi lại không tạo job trùng
+    private final Map<String, Job> runningByKey = new ConcurrentHashMap<>();
+
+    private static final class Job {
+        private final String id = UUID.randomUUID().toString();
+        private final String owner;
+        private final List<String> deviceIds;
+        private final Instant start;
+        private final Instant end;
+        private final ReportFormat format;
+        private final String key;
+        private final String fileName;
+        private final Instant createdAt = Instant.now();
+        private volatile Status status = Status.PENDING;
+        private volatile boolean cached;
+        private volatile Instant finishedAt;
+        private volatile long sizeBytes;
+        private volatile String errorMessage;
+
+        Job(String owner, List<String> deviceIds, Instant start, Instant end, ReportFormat format, String key,
+                String fileName) {
+            this.owner = owner;
+            this.deviceIds = deviceIds;
+            this.start = start;
+            this.end = end;
+            this.format = format;
+            this.key = key;
+            this.fileName = fileName;
+        }
+    }
+
+    /**
+     * Tạo job báo cáo cho người dùng owner. Nếu kết quả đã có trong cache, job
+     * hoàn thành ngay.
+     *
+     * @throws RejectedExecutionException nếu pool báo cáo đã đầy
+     */
+    public ReportJobDTO submit(String owner, List<String> deviceIds, Instant start, Instant end,
+            ReportFormat format) {
+        if (deviceIds.isEmpty()) {
+            throw new IllegalArgumentException("Cần ít nhất một thiết bị");
+        }
+        if (!start.isBefore(end)) {
+            throw new IllegalArgumentException("Thời gian bắt đầu phải trước thời gian kết thúc");
+        }
+        if (format == ReportFormat.PDF && deviceIds.size() > 1) {
+            throw new IllegalArgumentException("Báo cáo PDF chỉ hỗ trợ một thiết bị");
+        }
+        List<String> devices = new ArrayList<>(new TreeSet<>(deviceIds));
+        reportService.requireDevices(devices);
+
+        String key = cacheKey(devices, start, end, format);
+        // Dữ liệu gần hiện tại vẫn có thể được gateway gửi bù, chỉ dùng chung file khi end đủ cũ
+        boolean cacheable = end.isBefore(Instant.now().minusMillis(backfillHorizonMs));
+
+        if (cacheable) {
+            Job running = runningByKey.get(key);
+            if (running != null && running.owner.equals(owner)) {
+                return toDTO(running);
+            }
+        }
+
+        Job job = new Job(owner, devices, start, end, format, key,
+                (cacheable ? key : "job-" + UUID.randomUUID()) + "." + format.getExtension());
+        if (cacheable) {
+            Path existing = fileCache.get(job.fileName);
+            if (existing != null) {
+                job.cached = true;
+                complete(job, existing.toFile().length());
+                jobs.put(job.id, job);
+                log.info("Report job {} served from cache ({})", job.id, job.fileName);
+                return toDTO(job);
+            }
+            runningByKey.put(key, job);
+        }
+
+        jobs.put(job.id, job);
+        try {
+            reportExecutor.submit(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            runningByKey.remove(key, job);
+            throw e;
+        }
+        log.info("Report job {} submitted by {}: {} {} from {} to {}", job.id, owner, format, devices, start, end);
+        return toDTO(job);
+    }
+
+    public ReportJobDTO getJob(String owner, String jobId) {
+        return toDTO(findJob(owner, jobId));
+    }
+
+    /**
+     * Gửi file kết quả của job bằng FileChannel.transferTo sang output stream
+     * của response. File được mở và ghim trong cache trước khi gửi, nên không
+     * bị LRU hay purge xóa mất giữa chừng.
+     */
+    public void sendResult(String owner, String jobId, HttpServletResponse response) throws IOException {
+        Job job = findJob(owner, jobId);
+        if (job.status != Status.COMPLETED) {
+            throw new IllegalStateException("Báo cáo chưa sẵn sàng (trạng thái: " + job.status + ")");
+        }
+        try (ReportFileCache.Download download = fileCache.open(job.fileName)) {
+            if (download == null) {
+                throw new ResourceNotFoundException("File báo cáo đã hết hạn, vui lòng tạo lại");
+            }
+            long size = download.getSize();
+
+            response.setContentType(job.format.getContentType());
+            response.setHeader("Content-Disposition", "attachment; filename=\""
+                    + ReportService.reportBaseName(job.deviceIds) + "." + job.format.getExtension() + "\"");
+            response.setContentLengthLong(size);
+
+            FileChannel channel = download.getChannel();
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    /**
+     * Xóa trạng thái job đã kết thúc quá report.jobs.ttl-ms; file của job
+     * không dùng lại được (khoảng thời gian còn trong backfill horizon) bị xóa theo.
+     */
+    @Scheduled(fixedDelay = 600000)
+    public void purgeExpiredJobs() {
+        Instant cutoff = Instant.now().minusMillis(jobTtlMs);
+        jobs.values().removeIf(job -> {
+            if (job.finishedAt == null || job.finishedAt.isAfter(cutoff)) {
+                return false;
+            }
+            if (job.fileName.startsWith("job-")) {
+                fileCache.remove(job.fileName);
+            }
+            return true;
+        });
+    }
+
+    private void run(Job job) {
+        job.status = Status.RUNNING;
+        Path temp = null;
+        try {
+            temp = fileCache.newTempFile();
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                switch (job.format) {
+                    case CSV -> reportService.writeSensorDataCsv(out, job.deviceIds, job.start, job.end, false);
+                    case CSV_GZIP -> reportService.writeSensorDataCsv(out, job.deviceIds, job.start, job.end, true);
+                    case PDF -> reportService.writeSensorDataPdf(out, job.deviceIds.get(0), job.start, job.end);
+                }
+            }
+            complete(job, Files.size(fileCache.put(job.fileName, temp)));
+            log.info("Report job {} completed: {} bytes", job.id, job.sizeBytes);
+        } catch (Exception e) {
+            job.errorMessage = e.getMessage();
+            job.finishedAt = Instant.now();
+            job.status = Status.FAILED;
+            log.error("Report job {} failed: {}", job.id, e.getMessage(), e);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // file tạm sẽ được dọn khi khởi động lại
+                }
+            }
+        } finally {
+            runningByKey.remove(job.key, job);
+        }
+    }
+
+    private static void complete(Job job, long sizeBytes) {
+        job.sizeBytes = sizeBytes;
+        job.finishedAt = Instant.now();
+        job.status = Status.COMPLETED;
+    }
+
+    private Job findJob(String owner, String jobId) {
+        Job job = jobs.get(jobId);
+        // Không tiết lộ job của người khác
+        if (job == null || !job.owner.equals(owner)) {
+            throw new ResourceNotFoundException("ReportJob", "jobId", jobId);
+        }
+        return job;
+    }
+
+    private static String cacheKey(List<String> sortedDeviceIds, Instant start, Instant end, ReportFormat format) {
+        String raw = String.join(",", sortedDeviceIds) + '|' + start + '|' + end + '|' + format;
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(raw.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ReportJobDTO toDTO(Job job) {
+        return ReportJobDTO.builder()
+                .jobId(job.id)
+                .status(job.status.name())
+                .format(job.format)
+                .deviceIds(job.deviceIds)
+                .start(job.start)
+                .end(job.end)
+                .cached(job.cached)
+                .createdAt(job.createdAt)
+                .finishedAt(job.finishedAt)
+                .sizeBytes(job.status == Status.COMPLETED ? job.sizeBytes : null)
+                .errorMessage(job.errorMessage)
+                .downloadUrl(job.status == Status.COMPLETED ? "/api/reports/jobs/" + job.id + "/download" : null)
+                .build();
+    }
+}
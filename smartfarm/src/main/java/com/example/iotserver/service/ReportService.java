@@ -1,6 +1,5 @@
 package com.example.iotserver.service;
 
-import com.example.iotserver.dto.SensorDataDTO;
 import com.example.iotserver.entity.Device;
 import com.example.iotserver.exception.ResourceNotFoundException;
 import com.example.iotserver.repository.DeviceRepository;
@@ -21,14 +20,21 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -45,6 +51,7 @@ public class ReportService {
     private final RuleRepository ruleRepository;
     private final RuleExecutionLogRepository logRepository;
     private final SensorDataService sensorDataService;
+    private final FarmRollingAggregates farmAggregates;
 
     public Map<String, Object> getDashboardSummary(Long farmId) {
         Map<String, Object> summary = new HashMap<>();
@@ -62,57 +69,15 @@ public class ReportService {
         summary.put("totalRules", totalRules);
         summary.put("enabledRules", enabledRules);
 
-        // Lấy dữ liệu môi trường trung bình (từ service đã có)
+        // Trung bình môi trường 1 giờ qua, lấy từ thống kê trượt cập nhật lúc ingest
         Map<String, Object> avgData = new HashMap<>();
-        try {
-            // Lấy dữ liệu mới nhất của TẤT CẢ thiết bị trong farm
-            Map<String, Map<String, Object>> latestFarmData = sensorDataService.getFarmLatestData(farmId);
-
-            // Lọc ra các giá trị khác null để tính trung bình
-            double avgTemperature = latestFarmData.values().stream()
-                    .filter(data -> data.containsKey("temperature") && data.get("temperature") != null)
-                    .mapToDouble(data -> ((Number) data.get("temperature")).doubleValue())
-                    .average()
-                    .orElse(Double.NaN); // Dùng NaN nếu không có dữ liệu
-
-            double avgHumidity = latestFarmData.values().stream()
-                    .filter(data -> data.containsKey("humidity") && data.get("humidity") != null)
-                    .mapToDouble(data -> ((Number) data.get("humidity")).doubleValue())
-                    .average()
-                    .orElse(Double.NaN);
-
-            double avgLightIntensity = latestFarmData.values().stream()
-                    .filter(data -> data.containsKey("light_intensity") && data.get("light_intensity") != null)
-                    .mapToDouble(data -> ((Number) data.get("light_intensity")).doubleValue())
-                    .average()
-                    .orElse(Double.NaN);
-            double avgSoilMoisture = latestFarmData.values().stream()
-                    .filter(data -> data.containsKey("soil_moisture") && data.get("soil_moisture") != null)
-                    .mapToDouble(data -> ((Number) data.get("soil_moisture")).doubleValue())
-                    .average()
-                    .orElse(Double.NaN);
-            double avgSoilPH = latestFarmData.values().stream()
-                    .filter(data -> data.containsKey("soilPH") && data.get("soilPH") != null)
-                    .mapToDouble(data -> ((Number) data.get("soilPH")).doubleValue())
-                    .average()
-                    .orElse(Double.NaN);
-
-            // Đưa giá trị vào map avgData (chỉ đưa vào nếu nó là số)
-            if (!Double.isNaN(avgTemperature))
-                avgData.put("avgTemperature", Math.round(avgTemperature * 10) / 10.0);
-            if (!Double.isNaN(avgHumidity))
-                avgData.put("avgHumidity", Math.round(avgHumidity * 10) / 10.0);
-            if (!Double.isNaN(avgLightIntensity))
-                avgData.put("avgLightIntensity", Math.round(avgLightIntensity));
-            if (!Double.isNaN(avgSoilMoisture))
-                avgData.put("avgSoilMoisture", Math.round(avgSoilMoisture * 10) / 10.0);
-            if (!Double.isNaN(avgSoilPH))
-                avgData.put("avgSoilPH", Math.round(avgSoilPH * 100) / 100.0); // pH lấy 2 chữ số thập phân
-
-        } catch (Exception e) {
-            // Ghi log lỗi nhưng không làm crash ứng dụng
-            // logger.error("Không thể tính dữ liệu môi trường trung bình", e);
-        }
+        Map<String, FarmRollingAggregates.FieldStats> stats = farmAggregates.getStats(farmId,
+                FarmRollingAggregates.Window.ONE_HOUR);
+        putMean(avgData, "avgTemperature", stats.get("temperature"), 10);
+        putMean(avgData, "avgHumidity", stats.get("humidity"), 10);
+        putMean(avgData, "avgLightIntensity", stats.get("light_intensity"), 1);
+        putMean(avgData, "avgSoilMoisture", stats.get("soil_moisture"), 10);
+        putMean(avgData, "avgSoilPH", stats.get("soilPH"), 100); // pH lấy 2 chữ số thập phân
 
         summary.put("averageEnvironment", avgData);
         // ===================================
@@ -120,57 +85,136 @@ public class ReportService {
         return summary;
     }
 
+    // Chỉ đưa vào nếu field có dữ liệu, làm tròn theo scale (10 -> 1 chữ số thập phân)
+    private static void putMean(Map<String, Object> target, String key, FarmRollingAggregates.FieldStats stats,
+            int scale) {
+        if (stats == null) {
+            return;
+        }
+        if (scale == 1) {
+            target.put(key, Math.round(stats.mean()));
+        } else {
+            target.put(key, Math.round(stats.mean() * scale) / (double) scale);
+        }
+    }
+
     private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter
             .ofPattern("yyyy-MM-dd HH:mm:ss")
             .withZone(ZoneId.systemDefault());
 
+    // Flush sau mỗi chừng này dòng để dữ liệu tới client đều và phát hiện sớm client ngắt kết nối
+    private static final int CSV_FLUSH_EVERY_ROWS = 1000;
+
+    // Số dòng tối đa của bảng PDF trước khi gộp dữ liệu theo cửa sổ thời gian
+    @Value("${report.pdf.max-rows:5000}")
+    private long pdfMaxRows;
+
+    // Số dòng giữa hai lần flush bảng PDF ra response
+    @Value("${report.pdf.flush-rows:200}")
+    private int pdfFlushRows;
+
     /**
-     * Ghi dữ liệu cảm biến vào response dưới dạng file CSV
-     * 
-     * @param response HttpServletResponse để ghi file
-     * @param deviceId ID của thiết bị
-     * @param start    Thời gian bắt đầu
-     * @param end      Thời gian kết thúc
+     * Ghi dữ liệu cảm biến vào response dưới dạng file CSV.
+     * Dữ liệu được stream từ InfluxDB (đã pivot) thẳng ra response, không giữ
+     * toàn bộ khoảng thời gian trong bộ nhớ. Các dòng được đọc và ghi trên
+     * chính thread request, không chiếm thread dispatcher của client InfluxDB
+     * khi client tải chậm. Nếu client ngắt kết nối, query InfluxDB bị hủy ngay.
+     *
+     * @param response  HttpServletResponse để ghi file
+     * @param deviceIds Danh sách thiết bị (nhiều thiết bị thì thêm cột "Thiết bị")
+     * @param start     Thời gian bắt đầu
+     * @param end       Thời gian kết thúc
+     * @param gzip      Nén file bằng gzip (.csv.gz)
      * @throws IOException
      */
-    public void writeSensorDataToCsv(HttpServletResponse response, String deviceId, Instant start, Instant end)
-            throws IOException {
-        log.info("Bắt đầu xuất CSV cho thiết bị {} từ {} đến {}", deviceId, start, end);
-        Device device = deviceRepository.findByDeviceId(deviceId)
-                .orElseThrow(() -> new ResourceNotFoundException("Device", "deviceId", deviceId));
-
-        List<SensorDataDTO> dataList = sensorDataService.getSensorDataRange(deviceId, start, end);
+    public void writeSensorDataToCsv(HttpServletResponse response, List<String> deviceIds, Instant start,
+            Instant end, boolean gzip) throws IOException {
+        log.info("Bắt đầu xuất CSV cho thiết bị {} từ {} đến {}", deviceIds, start, end);
+        requireDevices(deviceIds);
+        String baseName = reportBaseName(deviceIds);
+
+        if (gzip) {
+            response.setContentType("application/gzip");
+            response.setHeader("Content-Disposition", "attachment; filename=\"" + baseName + ".csv.gz\"");
+        } else {
+            response.setContentType("text/csv; charset=UTF-8");
+            response.setHeader("Content-Disposition", "attachment; filename=\"" + baseName + ".csv\"");
+        }
 
-        response.setContentType("text/csv; charset=UTF-8");
-        response.setHeader("Content-Disposition", "attachment; filename=\"report_" + deviceId + ".csv\"");
-        response.setCharacterEncoding("UTF-8"); // Đảm bảo hỗ trợ tiếng Việt
+        try {
+            writeSensorDataCsv(response.getOutputStream(), deviceIds, start, end, gzip);
+        } catch (IOException e) {
+            log.info("Client ngắt kết nối khi đang xuất CSV: {}", e.getMessage());
+        }
+    }
 
-        PrintWriter writer = response.getWriter();
+    /**
+     * Ghi CSV ra một OutputStream bất kỳ (response hoặc file) trên thread gọi.
+     * Stream được đóng khi xong. Lỗi ghi làm hủy query InfluxDB và được ném lại.
+     *
+     * @return số dòng dữ liệu đã ghi
+     */
+    public long writeSensorDataCsv(OutputStream target, List<String> deviceIds, Instant start, Instant end,
+            boolean gzip) throws IOException {
+        boolean multiDevice = deviceIds.size() > 1;
+        OutputStream out = gzip ? new GZIPOutputStream(target, 8192) : target;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
         // Ghi BOM để Excel nhận diện UTF-8
         writer.write('\ufeff');
 
-        try (CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
-                .withHeader("Thời gian", "Nhiệt độ (°C)", "Độ ẩm (%)", "Độ ẩm đất (%)", "Ánh sáng (lux)", "pH đất"))) {
-
-            for (SensorDataDTO data : dataList) {
-                csvPrinter.printRecord(
-                        data.getTimestamp() != null ? DATE_TIME_FORMATTER.format(data.getTimestamp()) : "N/A",
-                        data.getTemperature(),
-                        data.getHumidity(),
-                        data.getSoilMoisture(),
-                        data.getLightIntensity(),
-                        data.getSoilPH());
+        List<String> header = new ArrayList<>();
+        if (multiDevice) {
+            header.add("Thiết bị");
+        }
+        header.addAll(List.of("Thời gian", "Nhiệt độ (°C)", "Độ ẩm (%)", "Độ ẩm đất (%)", "Ánh sáng (lux)", "pH đất"));
+
+        CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT.builder()
+                .setHeader(header.toArray(String[]::new))
+                .build());
+        long[] rows = { 0 };
+        IOException[] writeError = { null };
+        List<Object> record = new ArrayList<>(header.size());
+
+        sensorDataService.streamPivotedRange(deviceIds, start, end, (cancellable, row) -> {
+            record.clear();
+            if (multiDevice) {
+                record.add(row.getValueByKey("device_id"));
             }
-            log.info("Đã xuất thành công {} dòng dữ liệu ra CSV.", dataList.size());
-        } catch (IOException e) {
-            log.error("Lỗi khi ghi file CSV: {}", e.getMessage());
-            throw e;
+            record.add(row.getTime() != null ? DATE_TIME_FORMATTER.format(row.getTime()) : "N/A");
+            record.add(row.getValueByKey("temperature"));
+            record.add(row.getValueByKey("humidity"));
+            record.add(row.getValueByKey("soil_moisture"));
+            record.add(row.getValueByKey("light_intensity"));
+            record.add(row.getValueByKey("soilPH"));
+            try {
+                csvPrinter.printRecord(record);
+                if (++rows[0] % CSV_FLUSH_EVERY_ROWS == 0) {
+                    csvPrinter.flush();
+                }
+            } catch (IOException e) {
+                // Client đã đóng kết nối (hoặc lỗi ghi file): dừng đọc InfluxDB
+                writeError[0] = e;
+                cancellable.cancel();
+            }
+        });
+
+        if (writeError[0] != null) {
+            try {
+                csvPrinter.close(); // giải phóng Deflater của gzip
+            } catch (IOException ignored) {
+                // stream đã hỏng
+            }
+            throw writeError[0];
         }
+        // close() ghi nốt buffer và phần cuối của gzip
+        csvPrinter.close();
+        log.info("Đã xuất thành công {} dòng dữ liệu ra CSV.", rows[0]);
+        return rows[0];
     }
 
     /**
-     * Tạo báo cáo PDF từ dữ liệu cảm biến
-     * 
+     * Tạo báo cáo PDF từ dữ liệu cảm biến.
+     *
      * @param response HttpServletResponse để ghi file
      * @param deviceId ID của thiết bị
      * @param start    Thời gian bắt đầu
@@ -179,55 +223,149 @@ public class ReportService {
      */
     public void createSensorDataPdf(HttpServletResponse response, String deviceId, Instant start, Instant end)
             throws IOException {
+        requireDevices(List.of(deviceId));
+
+        response.setContentType("application/pdf");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + reportBaseName(List.of(deviceId))
+                + ".pdf\"");
+
+        writeSensorDataPdf(response.getOutputStream(), deviceId, start, end);
+    }
+
+    /**
+     * Ghi báo cáo PDF ra một OutputStream bất kỳ; stream được đóng khi xong.
+     * Bảng dùng chế độ large table của iText: các dòng được flush ra stream
+     * theo từng đợt nên bộ nhớ không tăng theo số dòng. Nếu khoảng thời gian
+     * có nhiều hơn report.pdf.max-rows điểm, dữ liệu được gộp trung bình theo
+     * cửa sổ trên InfluxDB (aggregateWindow) để số dòng nằm trong giới hạn.
+     *
+     * @return số dòng của bảng
+     */
+    public long writeSensorDataPdf(OutputStream target, String deviceId, Instant start, Instant end) {
         log.info("Bắt đầu tạo PDF cho thiết bị {} từ {} đến {}", deviceId, start, end);
-        Device device = deviceRepository.findByDeviceId(deviceId)
+        // Chạy ngoài transaction (pool báo cáo): nạp sẵn farm thay vì lazy load
+        Device device = deviceRepository.findByDeviceIdWithFarmAndOwner(deviceId)
                 .orElseThrow(() -> new ResourceNotFoundException("Device", "deviceId", deviceId));
 
-        List<SensorDataDTO> dataList = sensorDataService.getSensorDataRange(deviceId, start, end);
+        long estimatedRows = sensorDataService.countReadings(deviceId, start, end);
+        String window = downsampleWindow(estimatedRows, start, end);
 
-        response.setContentType("application/pdf");
-        response.setHeader("Content-Disposition", "attachment; filename=\"report_" + deviceId + ".pdf\"");
-
-        PdfWriter writer = new PdfWriter(response.getOutputStream());
+        PdfWriter writer = new PdfWriter(target);
         PdfDocument pdf = new PdfDocument(writer);
         Document document = new Document(pdf, PageSize.A4);
+        long[] rows = { 0 };
+        boolean completed = false;
+        try {
+            // --- Tiêu đề ---
+            document.add(new Paragraph("BÁO CÁO DỮ LIỆU CẢM BIẾN")
+                    .setTextAlignment(TextAlignment.CENTER)
+                    .setBold()
+                    .setFontSize(20));
+
+            // --- Thông tin báo cáo ---
+            document.add(new Paragraph("Thiết bị: " + device.getName() + " (" + deviceId + ")"));
+            document.add(new Paragraph("Loại: " + device.getType().name()));
+            document.add(new Paragraph("Nông trại: " + device.getFarm().getName()));
+            document.add(new Paragraph(
+                    "Thời gian: từ " + DATE_TIME_FORMATTER.format(start) + " đến " + DATE_TIME_FORMATTER.format(end)));
+            if (window != null) {
+                document.add(new Paragraph("Dữ liệu (" + estimatedRows + " điểm) được lấy trung bình theo mỗi "
+                        + window + " để giới hạn kích thước báo cáo.").setItalic());
+            }
+
+            // --- Tạo bảng (large table: thêm vào document trước, flush dần) ---
+            float[] columnWidths = { 3, 2, 2, 2, 2, 2 };
+            Table table = new Table(UnitValue.createPercentArray(columnWidths), true);
+            table.setWidth(UnitValue.createPercentValue(100));
+            table.setMarginTop(20);
+
+            // --- Header của bảng ---
+            addTableHeader(table, "Thời gian", "Nhiệt độ (°C)", "Độ ẩm (%)", "Độ ẩm đất (%)", "Ánh sáng (lux)", "pH đất");
+            document.add(table);
+
+            // --- Dữ liệu của bảng ---
+            RuntimeException[] writeError = { null };
+            sensorDataService.streamPivotedRange(List.of(deviceId), start, end, window, (cancellable, row) -> {
+                addTableRow(table,
+                        row.getTime() != null ? DATE_TIME_FORMATTER.format(row.getTime()) : "N/A",
+                        formatPdfValue(row.getValueByKey("temperature")),
+                        formatPdfValue(row.getValueByKey("humidity")),
+                        formatPdfValue(row.getValueByKey("soil_moisture")),
+                        formatPdfValue(row.getValueByKey("light_intensity")),
+                        formatPdfValue(row.getValueByKey("soilPH")));
+                if (++rows[0] % pdfFlushRows == 0) {
+                    try {
+                        table.flush();
+                    } catch (RuntimeException e) {
+                        // iText bọc lỗi ghi (client ngắt kết nối) trong PdfException
+                        writeError[0] = e;
+                        cancellable.cancel();
+                    }
+                }
+            });
+
+            if (writeError[0] != null) {
+                log.info("Dừng tạo PDF sau {} dòng: {}", rows[0], writeError[0].getMessage());
+                throw writeError[0];
+            }
+            table.complete();
+            completed = true;
+        } finally {
+            if (completed) {
+                document.close();
+            } else {
+                closeAfterError(document);
+            }
+        }
+        log.info("Đã tạo thành công file PDF với {} dòng dữ liệu{}.", rows[0],
+                window != null ? " (gộp theo " + window + ")" : "");
+        return rows[0];
+    }
+
+    /**
+     * Đóng document (và PdfWriter bên dưới) khi tạo PDF bị lỗi giữa chừng. Stream
+     * đích thường đã hỏng nên lỗi khi đóng chỉ được ghi log, không che lỗi gốc.
+     */
+    private void closeAfterError(Document document) {
+        try {
+            document.close();
+        } catch (RuntimeException e) {
+            log.debug("Không đóng được PDF sau lỗi: {}", e.getMessage());
+        }
+    }
 
-        // --- Tiêu đề ---
-        document.add(new Paragraph("BÁO CÁO DỮ LIỆU CẢM BIẾN")
-                .setTextAlignment(TextAlignment.CENTER)
-                .setBold()
-                .setFontSize(20));
-
-        // --- Thông tin báo cáo ---
-        document.add(new Paragraph("Thiết bị: " + device.getName() + " (" + deviceId + ")"));
-        document.add(new Paragraph("Loại: " + device.getType().name()));
-        document.add(new Paragraph("Nông trại: " + device.getFarm().getName()));
-        document.add(new Paragraph(
-                "Thời gian: từ " + DATE_TIME_FORMATTER.format(start) + " đến " + DATE_TIME_FORMATTER.format(end)));
-
-        // --- Tạo bảng ---
-        float[] columnWidths = { 3, 2, 2, 2, 2, 2 };
-        Table table = new Table(UnitValue.createPercentArray(columnWidths));
-        table.setWidth(UnitValue.createPercentValue(100));
-        table.setMarginTop(20);
-
-        // --- Header của bảng ---
-        addTableHeader(table, "Thời gian", "Nhiệt độ (°C)", "Độ ẩm (%)", "Độ ẩm đất (%)", "Ánh sáng (lux)", "pH đất");
-
-        // --- Dữ liệu của bảng ---
-        for (SensorDataDTO data : dataList) {
-            addTableRow(table,
-                    data.getTimestamp() != null ? DATE_TIME_FORMATTER.format(data.getTimestamp()) : "N/A",
-                    data.getTemperature() != null ? data.getTemperature().toString() : "",
-                    data.getHumidity() != null ? data.getHumidity().toString() : "",
-                    data.getSoilMoisture() != null ? data.getSoilMoisture().toString() : "",
-                    data.getLightIntensity() != null ? data.getLightIntensity().toString() : "",
-                    data.getSoilPH() != null ? data.getSoilPH().toString() : "");
+    /**
+     * @throws ResourceNotFoundException nếu có thiết bị không tồn tại
+     */
+    public void requireDevices(List<String> deviceIds) {
+        for (String deviceId : deviceIds) {
+            if (!deviceRepository.existsByDeviceId(deviceId)) {
+                throw new ResourceNotFoundException("Device", "deviceId", deviceId);
+            }
         }
+    }
+
+    // Tên file (không có phần mở rộng) của báo cáo
+    public static String reportBaseName(List<String> deviceIds) {
+        return deviceIds.size() > 1 ? "report_" + deviceIds.size() + "_devices" : "report_" + deviceIds.get(0);
+    }
 
-        document.add(table);
-        document.close();
-        log.info("Đã tạo thành công file PDF với {} dòng dữ liệu.", dataList.size());
+    // Cửa sổ gộp (ví dụ "90s") để số dòng không vượt pdfMaxRows, hoặc null nếu không cần gộp
+    private String downsampleWindow(long estimatedRows, Instant start, Instant end) {
+        if (estimatedRows <= pdfMaxRows) {
+            return null;
+        }
+        long rangeSeconds = Math.max(1, Duration.between(start, end).getSeconds());
+        long windowSeconds = Math.max(1, (rangeSeconds + pdfMaxRows - 1) / pdfMaxRows);
+        return windowSeconds + "s";
+    }
+
+    private static String formatPdfValue(Object value) {
+        if (value instanceof Double d) {
+            // Giá trị trung bình sau khi gộp có nhiều chữ số thập phân
+            return String.valueOf(Math.round(d * 100) / 100.0);
+        }
+        return value != null ? value.toString() : "";
     }
 
     // Helper method cho việc tạo bảng PDF
@@ -4,24 +4,36 @@ import com.example.iotserver.dto.SensorDataDTO;
 import com.example.iotserver.dto.WeatherDTO;
 import com.example.iotserver.entity.Notification;
 import com.example.iotserver.entity.Rule;
-import com.example.iotserver.entity.RuleCondition;
 import com.example.iotserver.entity.RuleExecutionLog;
 import com.example.iotserver.entity.User;
-import com.example.iotserver.repository.RuleExecutionLogRepository;
 import com.example.iotserver.repository.RuleRepository;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import com.example.iotserver.entity.Device; // THÊM IMPORT
 import com.example.iotserver.repository.DeviceRepository; // THÊM IMPORT
 
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 import com.example.iotserver.service.EmailService; // <<<< 1. THÊM IMPORT
@@ -32,52 +44,173 @@ import com.example.iotserver.service.EmailService; // <<<< 1. THÊM IMPORT
 public class RuleEngineService {
 
     private final RuleRepository ruleRepository;
-    private final RuleExecutionLogRepository logRepository;
     private final SensorDataService sensorDataService;
     private final DeviceService deviceService;
     private final WebSocketService webSocketService;
-    private final ObjectMapper objectMapper;
     private final WeatherService weatherService;
     // private final EmailService emailService;
     private final NotificationService notificationService; // <<<< THÊM DÒNG NÀY
     private final DeviceRepository deviceRepository; // VVVV--- THÊM DEPENDENCY NÀY ---VVVV
+    private final CompiledRuleCache compiledRuleCache;
+    private final RuleFireGate fireGate;
+    private final RuleExecutionLogWriter logWriter;
+    private final PlatformTransactionManager transactionManager;
+    private final MeterRegistry meterRegistry;
+
+    // Số farm được chạy song song trong lượt quét (mỗi farm giữ một kết nối DB khi chạy)
+    @Value("${rules.sweep.threads:4}")
+    private int sweepThreads;
+
+    // Chờ kết quả một farm tối đa chừng này; quá hạn thì hủy farm đó và tính là farm lỗi
+    @Value("${rules.sweep.farm-timeout-ms:60000}")
+    private long farmTimeoutMs;
+
+    private ExecutorService sweepExecutor;
+    private TransactionTemplate farmTransaction;
+
+    // ruleId -> các điều kiện sai của lần đánh giá gần nhất, khi lần đó là SKIPPED
+    private final Map<Long, BitSet> lastSkipped = new ConcurrentHashMap<>();
+
+    // Dữ liệu cảm biến cũ hơn chừng này thì điều kiện SENSOR_VALUE được coi là sai
+    @Value("${rules.sensor.max-age-hours:24}")
+    private int sensorMaxAgeHours;
+
+    @PostConstruct
+    void start() {
+        sweepExecutor = Executors.newFixedThreadPool(sweepThreads, new CustomizableThreadFactory("rule-sweep-"));
+        farmTransaction = new TransactionTemplate(transactionManager);
+    }
+
+    @PreDestroy
+    void stop() {
+        sweepExecutor.shutdownNow();
+    }
 
     /**
-     * Chạy tất cả quy tắc đang kích hoạt
+     * Kết quả chạy một danh sách quy tắc.
+     */
+    private record RunStats(int success, int skipped, int failed) {
+    }
+
+    /**
+     * Lượt quét định kỳ: chỉ chạy các quy tắc có điều kiện phụ thuộc thời gian,
+     * thời tiết hoặc trạng thái thiết bị. Điều kiện SENSOR_VALUE được đánh giá
+     * ngay khi có reading (xem RuleTriggerService).
+     *
+     * Quy tắc được chia theo farm; mỗi farm chạy trên pool rule-sweep- trong
+     * transaction riêng, nên một farm lỗi (hoặc bị rollback) không ảnh hưởng
+     * farm khác. Dữ liệu cảm biến vẫn được lấy một lần cho cả lượt. Thời gian
+     * của từng farm được ghi vào timer rules.sweep.farm (tag farm_id).
+     *
+     * Farm chạy quá rules.sweep.farm-timeout-ms (ví dụ treo khi gọi thiết bị)
+     * bị hủy (interrupt) và tính là farm lỗi, để lượt quét không chờ mãi.
+     *
+     * Quy tắc cũng có điều kiện SENSOR_VALUE thì được kích hoạt từ cả hai
+     * đường; {@link RuleFireGate} giới hạn tần suất chung cho cả hai.
      */
-    @Transactional
     public void executeAllRules() {
         long startTime = System.currentTimeMillis();
-        List<Rule> enabledRules = ruleRepository.findAllEnabledRules();
-        log.debug("Đang kiểm tra {} quy tắc đang kích hoạt", enabledRules.size());
-
-        // <<<< 1. TẠO CACHE TẠM THỜI >>>>
-        // Lấy tất cả deviceId cần thiết từ tất cả các quy tắc trong 1 lần
-        Set<String> allDeviceIds = enabledRules.stream()
-                .flatMap(rule -> rule.getConditions().stream())
-                .filter(cond -> cond.getType() == RuleCondition.ConditionType.SENSOR_VALUE
-                        && cond.getDeviceId() != null)
-                .map(RuleCondition::getDeviceId)
-                .collect(Collectors.toSet());
+        List<CompiledRule> sweepRules = compiledRuleCache.snapshot().getSweepRules();
+        log.debug("Đang kiểm tra {} quy tắc cần quét định kỳ", sweepRules.size());
+        if (sweepRules.isEmpty()) {
+            return;
+        }
 
-        // Lấy dữ liệu cho tất cả thiết bị cần thiết trong 1 lần lặp
-        Map<String, SensorDataDTO> sensorDataCache = new HashMap<>();
-        for (String deviceId : allDeviceIds) {
-            // Lần gọi này có thể được cache ở tầng service nếu bạn cấu hình @Cacheable
-            // nhưng làm thế này cũng đã giảm đáng kể việc gọi lặp đi lặp lại
-            sensorDataCache.put(deviceId, sensorDataService.getLatestSensorData(deviceId));
+        // Giữ thứ tự priority trong từng farm
+        Map<Long, List<CompiledRule>> byFarm = sweepRules.stream()
+                .collect(Collectors.groupingBy(CompiledRule::getFarmId, LinkedHashMap::new, Collectors.toList()));
+        Map<String, SensorDataDTO> sensorDataCache = prefetchSensorData(sweepRules);
+
+        Map<Long, Future<RunStats>> shards = new LinkedHashMap<>();
+        for (Map.Entry<Long, List<CompiledRule>> farm : byFarm.entrySet()) {
+            shards.put(farm.getKey(),
+                    sweepExecutor.submit(() -> runFarmShard(farm.getKey(), farm.getValue(), sensorDataCache)));
+        }
+
+        int successCount = 0;
+        int skippedCount = 0;
+        int failedCount = 0;
+        int failedFarms = 0;
+        for (Map.Entry<Long, Future<RunStats>> shard : shards.entrySet()) {
+            try {
+                RunStats stats = shard.getValue().get(farmTimeoutMs, TimeUnit.MILLISECONDS);
+                successCount += stats.success();
+                skippedCount += stats.skipped();
+                failedCount += stats.failed();
+            } catch (ExecutionException e) {
+                failedFarms++;
+                failedCount += byFarm.get(shard.getKey()).size();
+                log.error("Lỗi khi chạy quy tắc của farm {}: {}", shard.getKey(), e.getCause().getMessage(),
+                        e.getCause());
+            } catch (TimeoutException e) {
+                shard.getValue().cancel(true);
+                failedFarms++;
+                failedCount += byFarm.get(shard.getKey()).size();
+                log.error("Quy tắc của farm {} chạy quá {}ms, đã hủy", shard.getKey(), farmTimeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                shards.values().forEach(future -> future.cancel(true));
+                log.warn("Rule sweep interrupted");
+                return;
+            }
         }
+
+        long executionTime = System.currentTimeMillis() - startTime;
+        log.info("Hoàn thành kiểm tra {} quy tắc của {} farm: {} thành công, {} bỏ qua, {} lỗi, {} farm lỗi ({}ms)",
+                sweepRules.size(), byFarm.size(), successCount, skippedCount, failedCount, failedFarms,
+                executionTime);
+    }
+
+    /**
+     * Chạy các quy tắc được kích hoạt bởi reading mới (bỏ qua quy tắc đã bị
+     * xóa hoặc tắt). Đường này chạy theo từng reading nên SKIPPED chỉ được ghi
+     * log khi kết quả khác lần đánh giá trước (điều kiện sai khác đi).
+     */
+    @Transactional
+    public void executeRules(Collection<Long> ruleIds) {
+        long startTime = System.currentTimeMillis();
+        List<CompiledRule> rules = compiledRuleCache.snapshot().get(ruleIds);
+        RunStats stats = executeRuleList(rules, prefetchSensorData(rules), true);
+
+        long executionTime = System.currentTimeMillis() - startTime;
+        log.debug("Hoàn thành kiểm tra {} quy tắc: {} thành công, {} bỏ qua, {} lỗi ({}ms)",
+                rules.size(), stats.success(), stats.skipped(), stats.failed(), executionTime);
+    }
+
+    private RunStats runFarmShard(Long farmId, List<CompiledRule> rules, Map<String, SensorDataDTO> sensorDataCache) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            return farmTransaction.execute(status -> executeRuleList(rules, sensorDataCache, false));
+        } finally {
+            long nanos = sample.stop(Timer.builder("rules.sweep.farm")
+                    .description("Thời gian chạy các quy tắc của một farm trong lượt quét định kỳ")
+                    .tag("farm_id", String.valueOf(farmId))
+                    .register(meterRegistry));
+            log.debug("Farm {}: {} quy tắc ({}ms)", farmId, rules.size(), TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+    }
+
+    // Một lần đọc cho mọi thiết bị; độ mới của dữ liệu cũng kiểm tra trên snapshot này
+    private Map<String, SensorDataDTO> prefetchSensorData(List<CompiledRule> rules) {
+        Set<String> allDeviceIds = rules.stream()
+                .flatMap(rule -> rule.getSensorInputs().stream())
+                .map(CompiledRule.SensorInput::deviceId)
+                .collect(Collectors.toSet());
+        Map<String, SensorDataDTO> sensorDataCache = sensorDataService.getLatestSensorData(allDeviceIds);
         log.debug("Đã cache dữ liệu cho {} thiết bị.", sensorDataCache.size());
-        // <<<< KẾT THÚC PHẦN TẠO CACHE >>>>
+        return sensorDataCache;
+    }
 
+    private RunStats executeRuleList(List<CompiledRule> rules, Map<String, SensorDataDTO> sensorDataCache,
+            boolean triggered) {
+        CompiledRule.Inputs inputs = new RuleInputs(sensorDataCache);
         int successCount = 0;
         int skippedCount = 0;
         int failedCount = 0;
 
-        for (Rule rule : enabledRules) {
+        for (CompiledRule rule : rules) {
             try {
-                // <<<< 2. TRUYỀN CACHE VÀO PHƯƠNG THỨC THỰC THI >>>>
-                boolean executed = executeRule(rule, sensorDataCache);
+                boolean executed = executeRule(rule, inputs, triggered);
                 if (executed) {
                     successCount++;
                 } else {
@@ -88,17 +221,18 @@ public class RuleEngineService {
                 log.error("Lỗi khi thực thi quy tắc {}: {}", rule.getName(), e.getMessage());
             }
         }
-
-        long executionTime = System.currentTimeMillis() - startTime;
-        log.info("Hoàn thành kiểm tra quy tắc: {} thành công, {} bỏ qua, {} lỗi ({}ms)",
-                successCount, skippedCount, failedCount, executionTime);
+        return new RunStats(successCount, skippedCount, failedCount);
     }
 
     /**
-     * Thực thi một quy tắc cụ thể
+     * Thực thi một quy tắc đã biên dịch. Entity Rule chỉ được nạp khi điều
+     * kiện thỏa mãn và {@link RuleFireGate} cho phép (để thực hiện hành động
+     * và cập nhật thống kê); quy tắc vừa được kích hoạt thì bỏ qua, không ghi
+     * log. Với triggered = true, SKIPPED giống hệt lần đánh giá trước cũng
+     * không ghi log.
      */
     @Transactional
-    public boolean executeRule(Rule rule, Map<String, SensorDataDTO> sensorDataCache) {
+    public boolean executeRule(CompiledRule rule, CompiledRule.Inputs inputs, boolean triggered) {
         long startTime = System.currentTimeMillis();
 
         log.debug("Đang kiểm tra quy tắc: {}", rule.getName());
@@ -106,32 +240,50 @@ public class RuleEngineService {
         try {
             // Bước 1: Kiểm tra điều kiện
             Map<String, Object> conditionContext = new HashMap<>();
-            boolean allConditionsMet = evaluateConditions(rule, conditionContext, sensorDataCache);
+            BitSet failedConditions = new BitSet();
+            boolean allConditionsMet = rule.test(inputs, conditionContext, failedConditions);
 
             long executionTime = System.currentTimeMillis() - startTime;
 
             // Bước 2: Nếu điều kiện đúng → Thực hiện hành động
             if (allConditionsMet) {
+                lastSkipped.remove(rule.getId());
+                if (!fireGate.tryFire(rule.getId(), System.currentTimeMillis())) {
+                    log.debug("Quy tắc '{}' vừa được kích hoạt, chưa chạy lại", rule.getName());
+                    return false;
+                }
+                Optional<Rule> entity = ruleRepository.findById(rule.getId());
+                if (entity.isEmpty()) {
+                    // Quy tắc vừa bị xóa, cache chưa kịp cập nhật
+                    return false;
+                }
                 log.info("✅ Quy tắc '{}' - Điều kiện ĐÃ THỎA MÃN", rule.getName());
 
-                List<String> performedActions = performActions(rule);
+                List<String> performedActions = performActions(rule, entity.get());
 
                 // Cập nhật thống kê
-                rule.setLastExecutedAt(LocalDateTime.now());
-                rule.setExecutionCount(rule.getExecutionCount() + 1);
-                ruleRepository.save(rule);
+                Rule ruleEntity = entity.get();
+                ruleEntity.setLastExecutedAt(LocalDateTime.now());
+                ruleEntity.setExecutionCount(ruleEntity.getExecutionCount() + 1);
+                ruleRepository.save(ruleEntity);
 
                 // Lưu log thành công
-                saveExecutionLog(rule, RuleExecutionLog.ExecutionStatus.SUCCESS,
-                        true, conditionContext, performedActions, null, executionTime);
+                saveExecutionLog(ruleEntity.getId(), RuleExecutionLog.ExecutionStatus.SUCCESS,
+                        true, conditionContext, failedConditions, performedActions, null, executionTime);
 
                 return true;
             } else {
                 log.debug("⏭️ Quy tắc '{}' - Điều kiện CHƯA THỎA MÃN", rule.getName());
 
+                BitSet previous = lastSkipped.put(rule.getId(), failedConditions);
+                if (triggered && failedConditions.equals(previous)) {
+                    return false;
+                }
+
                 // Lưu log bỏ qua
-                saveExecutionLog(rule, RuleExecutionLog.ExecutionStatus.SKIPPED,
-                        false, conditionContext, Collections.emptyList(), null, executionTime);
+                saveExecutionLog(rule.getId(),
+                        RuleExecutionLog.ExecutionStatus.SKIPPED,
+                        false, conditionContext, failedConditions, Collections.emptyList(), null, executionTime);
 
                 return false;
             }
@@ -139,263 +291,74 @@ public class RuleEngineService {
         } catch (Exception e) {
             long executionTime = System.currentTimeMillis() - startTime;
             log.error("❌ Lỗi khi thực thi quy tắc '{}': {}", rule.getName(), e.getMessage(), e);
+            lastSkipped.remove(rule.getId());
 
             // Lưu log lỗi
-            saveExecutionLog(rule, RuleExecutionLog.ExecutionStatus.FAILED,
-                    null, null, null, e.getMessage(), executionTime);
+            saveExecutionLog(rule.getId(),
+                    RuleExecutionLog.ExecutionStatus.FAILED,
+                    null, null, null, null, e.getMessage(), executionTime);
 
             return false;
         }
     }
 
     /**
-     * Kiểm tra tất cả điều kiện của quy tắc
+     * Nguồn dữ liệu cho một lượt đánh giá: dữ liệu cảm biến đã lấy sẵn (kể cả
+     * kiểm tra độ mới, theo timestamp của reading), trạng thái thiết bị từ
+     * MySQL, thời tiết theo farm. Lỗi khi đọc được coi như không có dữ liệu
+     * (điều kiện tương ứng sai).
      */
-    private boolean evaluateConditions(Rule rule, Map<String, Object> context,
-            Map<String, SensorDataDTO> sensorDataCache) {
-        if (rule.getConditions().isEmpty()) {
-            log.warn("Quy tắc '{}' không có điều kiện nào", rule.getName());
-            return false;
-        }
-
-        // Sắp xếp theo thứ tự
-        List<RuleCondition> sortedConditions = rule.getConditions().stream()
-                .sorted(Comparator.comparing(RuleCondition::getOrderIndex))
-                .collect(Collectors.toList());
-
-        boolean result = true;
-        RuleCondition.LogicalOperator nextOperator = RuleCondition.LogicalOperator.AND;
+    private final class RuleInputs implements CompiledRule.Inputs {
 
-        for (int i = 0; i < sortedConditions.size(); i++) {
-            RuleCondition condition = sortedConditions.get(i);
-            boolean conditionMet = evaluateSingleCondition(condition, context, sensorDataCache);
+        private final Map<String, SensorDataDTO> sensorDataCache;
+        private final Instant freshAfter;
 
-            // Kết hợp với điều kiện trước đó
-            if (i == 0) {
-                result = conditionMet;
-            } else {
-                if (nextOperator == RuleCondition.LogicalOperator.AND) {
-                    result = result && conditionMet;
-                } else {
-                    result = result || conditionMet;
-                }
-            }
-
-            // Lưu operator cho lần tiếp theo
-            nextOperator = condition.getLogicalOperator();
-
-            log.debug("  Điều kiện {}: {} {} {} = {}",
-                    i + 1, condition.getField(), condition.getOperator(),
-                    condition.getValue(), conditionMet);
+        RuleInputs(Map<String, SensorDataDTO> sensorDataCache) {
+            this.sensorDataCache = sensorDataCache;
+            this.freshAfter = Instant.now().minus(Duration.ofHours(sensorMaxAgeHours));
         }
 
-        return result;
-    }
-
-    /**
-     * Kiểm tra một điều kiện đơn
-     */
-    private boolean evaluateSingleCondition(RuleCondition condition, Map<String, Object> context,
-            Map<String, SensorDataDTO> sensorDataCache) {
-        switch (condition.getType()) {
-            case SENSOR_VALUE:
-                return evaluateSensorCondition(condition, context, sensorDataCache);
-            case TIME_RANGE:
-                return evaluateTimeCondition(condition, context);
-            case DEVICE_STATUS:
-                // VVVV--- SỬA LẠI LỜI GỌI HÀM NÀY, BỎ sensorDataCache ---VVVV
-                return evaluateDeviceStatusCondition(condition, context);
-            case WEATHER:
-                return evaluateWeatherCondition(condition, context);
-            default:
-                log.warn("Loại điều kiện không được hỗ trợ: {}", condition.getType());
-                return false;
+        @Override
+        public SensorDataDTO sensorData(String deviceId) {
+            return sensorDataCache.get(deviceId);
         }
-    }
-
-    /**
-     * Kiểm tra điều kiện về giá trị cảm biến
-     */
-    private boolean evaluateSensorCondition(RuleCondition condition, Map<String, Object> context,
-            Map<String, SensorDataDTO> sensorDataCache) {
-        try {
-            String deviceId = condition.getDeviceId();
 
-            log.info("🔍 [Rule Check] deviceId: {}, field: {}, operator: {}, value: {}",
-                    deviceId, condition.getField(), condition.getOperator(), condition.getValue());
-
-            if (deviceId == null || deviceId.isEmpty()) {
-                log.warn("❌ [Rule Check] Thiếu deviceId cho điều kiện cảm biến");
-                return false;
-            }
-
-            // ✅ THÊM: Kiểm tra dữ liệu có tồn tại không
-            if (!sensorDataService.hasRecentData(deviceId, 24)) {
-                log.warn("❌ [Rule Check] Không có dữ liệu 24h gần nhất cho device: {}", deviceId);
-                return false;
-            }
-
-            SensorDataDTO sensorData = sensorDataCache.get(deviceId);
-
-            log.info("🔍 [Rule Check] Sensor data từ InfluxDB: {}", sensorData != null ? "CÓ DỮ LIỆU" : "NULL");
-
-            if (sensorData == null) {
-                log.warn("❌ [Rule Check] Không có dữ liệu cảm biến cho thiết bị: {}", deviceId);
-                return false;
-            }
-
-            Double actualValue = getSensorValue(sensorData, condition.getField());
-
-            log.info("🔍 [Rule Check] actualValue: {}, expectedValue: {}", actualValue, condition.getValue());
-
-            if (actualValue == null) {
-                log.warn("❌ [Rule Check] Không tìm thấy giá trị cho trường: {}", condition.getField());
-                return false;
-            }
-
-            Double expectedValue = Double.parseDouble(condition.getValue());
-            context.put(condition.getField(), actualValue);
-            context.put(condition.getField() + "_expected", expectedValue);
-
-            boolean result = compareValues(actualValue, condition.getOperator(), expectedValue);
-
-            log.info("🔍 [Rule Check] So sánh: {} {} {} = {}",
-                    actualValue, condition.getOperator(), expectedValue, result);
-
-            return result;
-
-        } catch (Exception e) {
-            log.error("❌ [Rule Check] Lỗi: {}", e.getMessage(), e);
-            return false;
+        @Override
+        public boolean hasRecentData(String deviceId) {
+            SensorDataDTO data = sensorDataCache.get(deviceId);
+            return data != null && data.getTimestamp() != null && data.getTimestamp().isAfter(freshAfter);
         }
-    }
-
-    /**
-     * Kiểm tra điều kiện về thời gian
-     */
-    private boolean evaluateTimeCondition(RuleCondition condition, Map<String, Object> context) {
-        try {
-            LocalTime now = LocalTime.now();
-            context.put("current_time", now.toString());
-
-            // Format: "06:00-18:00" hoặc "06:00"
-            String value = condition.getValue();
-
-            if (value.contains("-")) {
-                // Khoảng thời gian
-                String[] parts = value.split("-");
-                LocalTime start = LocalTime.parse(parts[0].trim());
-                LocalTime end = LocalTime.parse(parts[1].trim());
 
-                boolean inRange = now.isAfter(start) && now.isBefore(end);
-                context.put("time_range", value);
-                context.put("in_time_range", inRange);
-
-                return inRange;
-            } else {
-                // Thời gian cụ thể
-                LocalTime target = LocalTime.parse(value.trim());
-                return now.isAfter(target) || now.equals(target);
-            }
-
-        } catch (Exception e) {
-            log.error("Lỗi khi kiểm tra điều kiện thời gian: {}", e.getMessage());
-            return false;
+        @Override
+        public String deviceStatus(String deviceId) {
+            return deviceRepository.findByDeviceId(deviceId)
+                    .map(device -> device.getStatus().name())
+                    .orElse(null);
         }
-    }
 
-    /**
-     * Kiểm tra điều kiện về trạng thái thiết bị (ONLINE/OFFLINE).
-     * Đã tối ưu hóa để chỉ truy vấn MySQL.
-     */
-    // VVVV--- VIẾT LẠI HOÀN TOÀN HÀM NÀY ---VVVV
-    private boolean evaluateDeviceStatusCondition(RuleCondition condition, Map<String, Object> context) {
-        try {
-            String deviceId = condition.getDeviceId();
-            if (deviceId == null || deviceId.isEmpty()) {
-                return false;
-            }
-
-            Optional<Device> deviceOpt = deviceRepository.findByDeviceId(deviceId);
-            if (deviceOpt.isEmpty()) {
-                log.warn("Không tìm thấy thiết bị với ID '{}' cho điều kiện trạng thái.", deviceId);
-                return false;
+        @Override
+        public WeatherDTO weather(Long farmId) {
+            try {
+                return weatherService.getCurrentWeather(farmId);
+            } catch (Exception e) {
+                log.error("Lỗi khi kiểm tra điều kiện thời tiết: {}", e.getMessage());
+                return null;
             }
-
-            String currentStatus = deviceOpt.get().getStatus().name();
-            String expectedStatus = condition.getValue().toUpperCase();
-
-            context.put("device_" + deviceId + "_status", currentStatus);
-            context.put("device_" + deviceId + "_expected_status", expectedStatus);
-
-            boolean result = currentStatus.equals(expectedStatus);
-            log.debug("  Kiểm tra trạng thái thiết bị {}: Hiện tại '{}' == Mong đợi '{}' -> {}", deviceId,
-                    currentStatus, expectedStatus, result);
-
-            return result;
-        } catch (Exception e) {
-            log.error("Lỗi khi kiểm tra trạng thái thiết bị: {}", e.getMessage());
-            return false;
         }
-    }
-    // ^^^^---------------------------------------^^^^
 
-    /**
-     * So sánh giá trị
-     */
-    private boolean compareValues(Double actual, RuleCondition.Operator operator, Double expected) {
-        switch (operator) {
-            case EQUALS:
-                return Math.abs(actual - expected) < 0.01;
-            case NOT_EQUALS:
-                return Math.abs(actual - expected) >= 0.01;
-            case GREATER_THAN:
-                return actual > expected;
-            case GREATER_THAN_OR_EQUAL:
-                return actual >= expected;
-            case LESS_THAN:
-                return actual < expected;
-            case LESS_THAN_OR_EQUAL:
-                return actual <= expected;
-            default:
-                return false;
-        }
-    }
-
-    /**
-     * Lấy giá trị cảm biến theo tên trường
-     */
-    private Double getSensorValue(SensorDataDTO data, String field) {
-        if (field == null || data == null)
-            return null;
-
-        String normalizedField = field.toLowerCase().replace("_", "");
-
-        // ✅ So sánh với các chuỗi đã chuẩn hóa
-        switch (normalizedField) {
-            case "temperature":
-                return data.getTemperature();
-            case "humidity":
-                return data.getHumidity();
-            case "soilmoisture":
-                return data.getSoilMoisture();
-            case "lightintensity":
-                return data.getLightIntensity();
-            case "soilph":
-                return data.getSoilPH();
-            default:
-                log.warn("Trường cảm biến không được hỗ trợ hoặc không có giá trị: {}", field);
-                return null;
+        @Override
+        public LocalTime now() {
+            return LocalTime.now();
         }
     }
 
     /**
      * Thực hiện các hành động
      */
-    private List<String> performActions(Rule rule) {
+    private List<String> performActions(CompiledRule compiled, Rule rule) {
         List<String> performedActions = new ArrayList<>();
 
-        for (Rule.RuleAction action : rule.getActions()) {
+        for (Rule.RuleAction action : compiled.getActions()) {
             try {
                 String result = performSingleAction(rule, action);
                 performedActions.add(result);
@@ -502,82 +465,13 @@ public class RuleEngineService {
     // }
 
     /**
-     * Lưu log thực thi
+     * Lưu log thực thi (bất đồng bộ, xem RuleExecutionLogWriter)
      */
-    private void saveExecutionLog(Rule rule, RuleExecutionLog.ExecutionStatus status,
-            Boolean conditionsMet, Map<String, Object> conditionContext,
+    private void saveExecutionLog(Long ruleId, RuleExecutionLog.ExecutionStatus status,
+            Boolean conditionsMet, Map<String, Object> conditionContext, BitSet failedConditions,
             List<String> actions, String errorMessage, long executionTime) {
-        try {
-            RuleExecutionLog log = RuleExecutionLog.builder()
-                    .rule(rule)
-                    .executedAt(LocalDateTime.now())
-                    .status(status)
-                    .conditionsMet(conditionsMet)
-                    .conditionDetails(
-                            conditionContext != null ? objectMapper.writeValueAsString(conditionContext) : null)
-                    .actionsPerformed(actions != null ? objectMapper.writeValueAsString(actions) : null)
-                    .errorMessage(errorMessage)
-                    .executionTimeMs(executionTime)
-                    .build();
-
-            logRepository.save(log);
-
-        } catch (JsonProcessingException e) {
-            log.error("Lỗi khi lưu execution log: {}", e.getMessage());
-        }
-    }
-
-    private boolean evaluateWeatherCondition(RuleCondition condition, Map<String, Object> context) {
-        try {
-            Long farmId = condition.getRule().getFarm().getId();
-            WeatherDTO weather = weatherService.getCurrentWeather(farmId);
-
-            if (weather == null) {
-                log.warn("Không có dữ liệu thời tiết cho farm {}", farmId);
-                return false;
-            }
-
-            String field = condition.getField().toLowerCase();
-            Double actualValue = null;
-
-            switch (field) {
-                case "rain_amount":
-                case "rain":
-                    actualValue = weather.getRainAmount();
-                    break;
-                case "temperature":
-                    actualValue = weather.getTemperature();
-                    break;
-                case "humidity":
-                    actualValue = weather.getHumidity();
-                    break;
-                case "wind_speed":
-                    actualValue = weather.getWindSpeed();
-                    break;
-                default:
-                    log.warn("Trường thời tiết không được hỗ trợ: {}", field);
-                    return false;
-            }
-
-            if (actualValue == null) {
-                return false;
-            }
-
-            Double expectedValue = Double.parseDouble(condition.getValue());
-            context.put("weather_" + field, actualValue);
-            context.put("weather_" + field + "_expected", expectedValue);
-
-            boolean result = compareValues(actualValue, condition.getOperator(), expectedValue);
-
-            log.info("🌤️ Kiểm tra thời tiết: {} {} {} = {}",
-                    actualValue, condition.getOperator(), expectedValue, result);
-
-            return result;
-
-        } catch (Exception e) {
-            log.error("Lỗi khi kiểm tra điều kiện thời tiết: {}", e.getMessage());
-            return false;
-        }
+        logWriter.submit(new RuleExecutionLogWriter.Entry(ruleId, LocalDateTime.now(), status, conditionsMet,
+                conditionContext, failedConditions, actions, errorMessage, executionTime));
     }
 
     // VVVV--- HỢP NHẤT `sendNotification` VÀ `sendEmailForRule` THÀNH MỘT HÀM DUY
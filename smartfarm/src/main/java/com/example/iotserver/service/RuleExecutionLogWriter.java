@@ -0,0 +1,342 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.entity.RuleExecutionLog;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ghi RuleExecutionLog bất đồng bộ, theo lô.
+ *
+ * Rule engine chỉ gọi submit() (không serialize JSON, không chạm DB); một
+ * thread riêng gom các bản ghi và insert bằng JDBC batch khi đủ batch-size
+ * hoặc hết flush-interval. Kết quả SKIPPED xử lý theo {@link SkippedPolicy}:
+ * mặc định các lần SKIPPED liên tiếp cùng kết quả (cùng conditionsMet, cùng
+ * các điều kiện sai, cùng lỗi; giá trị đọc được như giờ hiện tại hay giá trị
+ * cảm biến thì bỏ qua) của cùng một quy tắc được gộp thành một dòng
+ * (repeat_count, executed_at..last_executed_at, chi tiết điều kiện của lần
+ * đầu và lần cuối), dòng được ghi khi quy tắc có kết quả khác hoặc khoảng gộp
+ * vượt skipped-max-span-ms.
+ *
+ * Hàng đợi có giới hạn; khi đầy bản ghi mới bị bỏ (rule engine không bao giờ
+ * bị chặn vì log). Các dòng SKIPPED đang gộp dở bị mất nếu tiến trình dừng
+ * đột ngột.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class RuleExecutionLogWriter {
+
+    public enum SkippedPolicy {
+        /** Ghi mọi lần SKIPPED. */
+        ALL,
+        /** Gộp các lần SKIPPED liên tiếp của một quy tắc thành một dòng. */
+        COLLAPSE,
+        /** Chỉ ghi ngẫu nhiên một phần (skipped-sample-rate) các lần SKIPPED. */
+        SAMPLE,
+        /** Không ghi SKIPPED. */
+        NONE
+    }
+
+    /**
+     * Một lần thực thi quy tắc cần ghi log. failedConditions là chỉ số các
+     * điều kiện sai (xem CompiledRule.test), không ghi vào DB.
+     * conditionContext, failedConditions và actions không được sửa sau khi
+     * submit.
+     */
+    public record Entry(Long ruleId, LocalDateTime executedAt, RuleExecutionLog.ExecutionStatus status,
+            Boolean conditionsMet, Map<String, Object> conditionContext, BitSet failedConditions,
+            List<String> actions, String errorMessage, long executionTimeMs) {
+    }
+
+    // Đánh thức writer khi tắt, không được ghi
+    private static final Entry WAKE_UP = new Entry(null, null, null, null, null, null, null, null, 0);
+
+    private static final String INSERT_SQL = "INSERT INTO rule_execution_logs (rule_id, executed_at, status,"
+            + " conditions_met, condition_details, actions_performed, error_message, execution_time_ms,"
+            + " repeat_count, last_executed_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${rules.log.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${rules.log.batch-size:200}")
+    private int batchSize;
+
+    @Value("${rules.log.flush-interval-ms:2000}")
+    private long flushIntervalMs;
+
+    @Value("${rules.log.skipped-policy:COLLAPSE}")
+    private SkippedPolicy skippedPolicy;
+
+    @Value("${rules.log.skipped-sample-rate:0.1}")
+    private double skippedSampleRate;
+
+    // Dòng SKIPPED đang gộp được ghi ra khi khoảng gộp dài hơn chừng này
+    @Value("${rules.log.skipped-max-span-ms:600000}")
+    private long skippedMaxSpanMs;
+
+    private BlockingQueue<Entry> queue;
+    private Thread writer;
+    private volatile boolean running;
+
+    // Chỉ thread writer truy cập
+    private final Map<Long, Run> openRuns = new HashMap<>();
+
+    private Counter writtenCounter;
+    private Counter collapsedCounter;
+    private Counter sampledOutCounter;
+    private Counter droppedCounter;
+    private Counter failedCounter;
+
+    /**
+     * Một dòng sẽ ghi: một lần thực thi, hoặc nhiều lần SKIPPED liên tiếp.
+     */
+    private static final class Run {
+        private final Entry first;
+        private Entry last;
+        private int count = 1;
+
+        Run(Entry entry) {
+            this.first = entry;
+            this.last = entry;
+        }
+    }
+
+    @PostConstruct
+    void start() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        writtenCounter = entryCounter("written");
+        collapsedCounter = entryCounter("collapsed");
+        sampledOutCounter = entryCounter("sampled_out");
+        droppedCounter = entryCounter("dropped");
+        failedCounter = entryCounter("failed");
+
+        running = true;
+        writer = new Thread(this::runWriteLoop, "rule-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("Rule execution log writer started: capacity={}, batchSize={}, flushInterval={}ms, skipped={}",
+                queueCapacity, batchSize, flushIntervalMs, skippedPolicy);
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        queue.offer(WAKE_UP);
+        // Cho writer ghi nốt hàng đợi và các dòng SKIPPED đang gộp
+        writer.join(flushIntervalMs * 2);
+        if (writer.isAlive()) {
+            writer.interrupt();
+            log.warn("Rule execution log writer stopped with {} entries still queued", queue.size());
+        }
+    }
+
+    /**
+     * Đưa một lần thực thi vào hàng đợi ghi. Không chặn; bỏ bản ghi nếu hàng đợi đầy.
+     */
+    public void submit(Entry entry) {
+        if (!queue.offer(entry)) {
+            droppedCounter.increment();
+            log.debug("Rule execution log queue full, dropping log of rule {}", entry.ruleId());
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void runWriteLoop() {
+        List<Entry> entries = new ArrayList<>(batchSize);
+        List<Run> rows = new ArrayList<>(batchSize);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+
+        while (running || !queue.isEmpty() || !rows.isEmpty() || !openRuns.isEmpty()) {
+            try {
+                long remaining = deadline - System.nanoTime();
+                Entry entry = remaining > 0 && running ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                if (entry != null) {
+                    entries.add(entry);
+                    queue.drainTo(entries, batchSize - entries.size());
+                    for (Entry e : entries) {
+                        if (e != WAKE_UP) {
+                            accept(e, rows);
+                        }
+                    }
+                    entries.clear();
+                }
+
+                boolean due = System.nanoTime() - deadline >= 0 || !running;
+                if (due) {
+                    closeRuns(rows, !running);
+                }
+                if (rows.size() >= batchSize || (due && !rows.isEmpty())) {
+                    write(rows);
+                    rows = new ArrayList<>(batchSize);
+                }
+                if (due) {
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Unexpected error in rule execution log writer: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private void accept(Entry entry, List<Run> rows) {
+        if (entry.status() != RuleExecutionLog.ExecutionStatus.SKIPPED) {
+            // Kết quả khác kết thúc chuỗi SKIPPED đang gộp của quy tắc
+            Run open = openRuns.remove(entry.ruleId());
+            if (open != null) {
+                rows.add(open);
+            }
+            rows.add(new Run(entry));
+            return;
+        }
+        switch (skippedPolicy) {
+            case ALL -> rows.add(new Run(entry));
+            case COLLAPSE -> {
+                Run open = openRuns.get(entry.ruleId());
+                if (open != null && sameOutcome(open.last, entry)) {
+                    open.last = entry;
+                    open.count++;
+                    collapsedCounter.increment();
+                } else {
+                    // Kết quả SKIPPED khác (điều kiện sai khác, lỗi...) bắt đầu dòng gộp mới
+                    if (open != null) {
+                        rows.add(open);
+                    }
+                    openRuns.put(entry.ruleId(), new Run(entry));
+                }
+            }
+            case SAMPLE -> {
+                if (ThreadLocalRandom.current().nextDouble() < skippedSampleRate) {
+                    rows.add(new Run(entry));
+                } else {
+                    sampledOutCounter.increment();
+                }
+            }
+            case NONE -> sampledOutCounter.increment();
+        }
+    }
+
+    // Cùng kết quả: so trạng thái và các điều kiện sai, không so giá trị trong conditionContext
+    private static boolean sameOutcome(Entry a, Entry b) {
+        return a.status() == b.status()
+                && Objects.equals(a.conditionsMet(), b.conditionsMet())
+                && Objects.equals(a.failedConditions(), b.failedConditions())
+                && Objects.equals(a.errorMessage(), b.errorMessage());
+    }
+
+    // Ghi ra các dòng SKIPPED đã gộp quá lâu (hoặc tất cả khi đang tắt)
+    private void closeRuns(List<Run> rows, boolean all) {
+        LocalDateTime cutoff = LocalDateTime.now().minus(Duration.ofMillis(skippedMaxSpanMs));
+        Iterator<Run> it = openRuns.values().iterator();
+        while (it.hasNext()) {
+            Run run = it.next();
+            if (all || run.first.executedAt().isBefore(cutoff)) {
+                rows.add(run);
+                it.remove();
+            }
+        }
+    }
+
+    private void write(List<Run> rows) {
+        List<Object[]> args = new ArrayList<>(rows.size());
+        for (Run run : rows) {
+            args.add(toArgs(run));
+        }
+        try {
+            jdbcTemplate.batchUpdate(INSERT_SQL, args);
+            writtenCounter.increment(rows.size());
+            log.debug("Wrote {} rule execution logs", rows.size());
+        } catch (Exception e) {
+            // Một dòng lỗi (ví dụ quy tắc vừa bị xóa) không làm mất cả lô: ghi lại từng dòng
+            log.warn("Batch insert of {} rule execution logs failed, retrying row by row: {}", rows.size(),
+                    e.getMessage());
+            for (Object[] row : args) {
+                try {
+                    jdbcTemplate.update(INSERT_SQL, row);
+                    writtenCounter.increment();
+                } catch (Exception rowError) {
+                    failedCounter.increment();
+                    log.debug("Dropping execution log of rule {}: {}", row[0], rowError.getMessage());
+                }
+            }
+        }
+    }
+
+    private Object[] toArgs(Run run) {
+        Entry last = run.last;
+        // Dòng gộp: executed_at là lần đầu, thời gian chạy là của lần cuối, chi tiết điều kiện
+        // gồm cả lần đầu và lần cuối ({"first": ..., "last": ...})
+        Object conditionDetails = last.conditionContext();
+        if (run.count > 1) {
+            Map<String, Object> firstAndLast = new LinkedHashMap<>();
+            firstAndLast.put("first", run.first.conditionContext());
+            firstAndLast.put("last", last.conditionContext());
+            conditionDetails = firstAndLast;
+        }
+        return new Object[] {
+                run.first.ruleId(),
+                Timestamp.valueOf(run.first.executedAt()),
+                last.status().name(),
+                last.conditionsMet(),
+                toJson(conditionDetails),
+                toJson(last.actions()),
+                last.errorMessage(),
+                last.executionTimeMs(),
+                run.count,
+                run.count > 1 ? Timestamp.valueOf(last.executedAt()) : null
+        };
+    }
+
+    private String toJson(Object value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            log.error("Lỗi khi lưu execution log: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private Counter entryCounter(String result) {
+        return Counter.builder("rules.log.entries")
+                .description("Số bản ghi log thực thi quy tắc theo kết quả xử lý")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
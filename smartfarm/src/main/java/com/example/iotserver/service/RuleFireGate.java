@@ -0,0 +1,40 @@
+package com.example.iotserver.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Giới hạn tần suất thực hiện hành động của từng quy tắc.
+ *
+ * Dùng chung cho lượt quét định kỳ và RuleTriggerService: quy tắc vừa có
+ * điều kiện SENSOR_VALUE vừa có điều kiện thời gian/thời tiết/trạng thái nằm
+ * ở cả hai đường, nhưng chỉ được thực hiện hành động lại sau ít nhất
+ * rules.refire-interval-ms kể từ lần trước, dù lần trước đến từ đường nào.
+ */
+@Component
+public class RuleFireGate {
+
+    // Khoảng cách tối thiểu giữa hai lần thực hiện hành động của cùng một quy tắc
+    @Value("${rules.refire-interval-ms:30000}")
+    private long refireIntervalMs;
+
+    // ruleId -> lần thực hiện hành động gần nhất (epoch ms)
+    private final Map<Long, Long> lastFired = new ConcurrentHashMap<>();
+
+    /**
+     * Ghi nhận một lần kích hoạt của quy tắc nếu đã qua refire-interval kể từ
+     * lần trước; trả về false nếu chưa được chạy lại. Hai thread gọi cùng lúc
+     * cho cùng một quy tắc thì chỉ một thread được phép.
+     */
+    boolean tryFire(Long ruleId, long nowMillis) {
+        boolean[] allowed = new boolean[1];
+        lastFired.compute(ruleId, (id, last) -> {
+            allowed[0] = last == null || nowMillis - last >= refireIntervalMs;
+            return allowed[0] ? nowMillis : last;
+        });
+        return allowed[0];
+    }
+}
@@ -30,6 +30,7 @@ public class RuleService {
     private final RuleExecutionLogRepository logRepository;
     private final AuthenticationService authenticationService;
     private final FarmService farmService;
+    private final CompiledRuleCache compiledRuleCache;
 
     // <<<< SỬA: Thêm @Lazy vào constructor parameter >>>>
     public RuleService(
@@ -37,12 +38,14 @@ public class RuleService {
             FarmRepository farmRepository,
             RuleExecutionLogRepository logRepository,
             AuthenticationService authenticationService,
-            @Lazy FarmService farmService) { // <-- THÊM @Lazy VÀO ĐÂY
+            @Lazy FarmService farmService, // <-- THÊM @Lazy VÀO ĐÂY
+            CompiledRuleCache compiledRuleCache) {
         this.ruleRepository = ruleRepository;
         this.farmRepository = farmRepository;
         this.logRepository = logRepository;
         this.authenticationService = authenticationService;
         this.farmService = farmService;
+        this.compiledRuleCache = compiledRuleCache;
     }
 
     /**
@@ -100,6 +103,7 @@ public class RuleService {
         }
 
         Rule saved = ruleRepository.save(rule);
+        compiledRuleCache.refresh(saved.getId());
         log.info("Đã tạo quy tắc: {} cho nông trại: {}", saved.getName(), farmId);
 
         return mapToDTO(saved);
@@ -162,6 +166,7 @@ public class RuleService {
         }
 
         Rule updated = ruleRepository.save(rule);
+        compiledRuleCache.refresh(ruleId);
         log.info("Đã cập nhật quy tắc: {}", updated.getName());
 
         return mapToDTO(updated);
@@ -194,6 +199,7 @@ public class RuleService {
 
         // 2. Sau khi đã xóa hết các bản ghi con, bây giờ mới xóa bản ghi cha
         ruleRepository.delete(rule);
+        compiledRuleCache.refresh(ruleId);
 
         log.info("Đã xóa quy tắc: {} và các log liên quan", rule.getName());
     }
@@ -241,6 +247,7 @@ public class RuleService {
 
         rule.setEnabled(enabled);
         Rule updated = ruleRepository.save(rule);
+        compiledRuleCache.refresh(ruleId);
 
         log.info("Đã {} quy tắc: {}", enabled ? "bật" : "tắt", rule.getName());
         return mapToDTO(updated);
@@ -315,6 +322,8 @@ public class RuleService {
                 .actionsPerformed(log.getActionsPerformed())
                 .errorMessage(log.getErrorMessage())
                 .executionTimeMs(log.getExecutionTimeMs())
+                .repeatCount(log.getRepeatCount())
+                .lastExecutedAt(log.getLastExecutedAt())
                 .build();
     }
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.dto.SensorDataDTO;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Chạy quy tắc ngay khi có reading mới thay vì chờ lượt quét định kỳ.
+ *
+ * Dùng chỉ mục (deviceId, field) -> các quy tắc đang bật có điều kiện
+ * SENSOR_VALUE trên field đó, lấy từ {@link CompiledRuleCache}. Mỗi reading
+ * chỉ kích hoạt đúng các quy tắc phụ thuộc vào nó; việc đánh giá chạy trên
+ * pool riêng, quy tắc đang chờ chạy không bị xếp hàng lần hai.
+ *
+ * Điều kiện vẫn đúng qua nhiều reading liên tiếp thì hành động chỉ được
+ * thực hiện lại sau ít nhất rules.refire-interval-ms kể từ lần trước (xem
+ * {@link RuleFireGate}, dùng chung với lượt quét định kỳ).
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class RuleTriggerService {
+
+    private final RuleEngineService ruleEngineService;
+    private final CompiledRuleCache compiledRuleCache;
+
+    @Value("${rules.trigger.threads:2}")
+    private int triggerThreads;
+
+    private final Set<Long> pendingRules = ConcurrentHashMap.newKeySet();
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    void start() {
+        executor = Executors.newFixedThreadPool(triggerThreads, new CustomizableThreadFactory("rule-trigger-"));
+    }
+
+    @PreDestroy
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Kích hoạt các quy tắc phụ thuộc vào reading. Không chặn thread gọi.
+     */
+    public void onReading(SensorDataDTO data) {
+        Map<String, Set<Long>> byField = compiledRuleCache.snapshot().getTriggers(data.getDeviceId());
+        if (byField == null) {
+            return;
+        }
+        List<Long> triggered = new ArrayList<>();
+        collect(byField, "temperature", data.getTemperature(), triggered);
+        collect(byField, "humidity", data.getHumidity(), triggered);
+        collect(byField, "soilmoisture", data.getSoilMoisture(), triggered);
+        collect(byField, "lightintensity", data.getLightIntensity(), triggered);
+        collect(byField, "soilph", data.getSoilPH(), triggered);
+        if (triggered.isEmpty()) {
+            return;
+        }
+        executor.execute(() -> {
+            // Gỡ khỏi pending trước khi chạy để reading đến trong lúc đánh giá vẫn kích hoạt lần sau
+            pendingRules.removeAll(triggered);
+            try {
+                ruleEngineService.executeRules(triggered);
+            } catch (Exception e) {
+                log.error("Triggered rule evaluation failed for rules {}: {}", triggered, e.getMessage(), e);
+            }
+        });
+    }
+
+    private void collect(Map<String, Set<Long>> byField, String field, Double value, List<Long> triggered) {
+        if (value == null) {
+            return;
+        }
+        Set<Long> ruleIds = byField.get(field);
+        if (ruleIds == null) {
+            return;
+        }
+        for (Long ruleId : ruleIds) {
+            if (pendingRules.add(ruleId)) {
+                triggered.add(ruleId);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.config.RedisPubSubConfig;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache hai tầng cho ngưỡng cảnh báo và cooldown thông báo cảm biến.
+ *
+ * Tầng 1 là map trong bộ nhớ có TTL, tầng 2 là SettingService (ngưỡng) và
+ * Redis (cooldown, dùng chung giữa các instance). Reading không vượt ngưỡng
+ * chỉ đọc tầng 1, không gọi mạng. Khi SettingService.updateSetting() chạy,
+ * key được publish lên Redis và mọi instance xóa ngưỡng tương ứng khỏi tầng 1.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class SensorAlertCache {
+
+    private final SettingService settingService;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    // TTL dự phòng cho trường hợp lỡ mất message invalidation
+    @Value("${alerts.near-cache.threshold-ttl-ms:60000}")
+    private long thresholdTtlMs;
+
+    private final Map<String, CachedThreshold> thresholds = new ConcurrentHashMap<>();
+    // key cooldown Redis -> thời điểm hết cooldown (epoch ms)
+    private final Map<String, Long> cooldownUntil = new ConcurrentHashMap<>();
+
+    private record CachedThreshold(double value, long expiresAt) {
+    }
+
+    @PostConstruct
+    void subscribe() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            thresholds.remove(key);
+            log.debug("Invalidated local threshold cache for setting {}", key);
+        }, new ChannelTopic(RedisPubSubConfig.SETTINGS_INVALIDATION_CHANNEL));
+    }
+
+    /**
+     * Ngưỡng theo key cài đặt, đọc từ bộ nhớ nếu còn hạn.
+     */
+    public double getThreshold(String key, double defaultValue) {
+        long now = System.currentTimeMillis();
+        CachedThreshold cached = thresholds.get(key);
+        if (cached != null && cached.expiresAt() > now) {
+            return cached.value();
+        }
+        double value = settingService.getDouble(key, defaultValue);
+        thresholds.put(key, new CachedThreshold(value, now + thresholdTtlMs));
+        return value;
+    }
+
+    /**
+     * Giữ cooldown cho (farm, loại cảnh báo, thiết bị). Trả về true nếu được
+     * phép gửi thông báo; cooldown được đặt ngay trong cùng lệnh SET NX nên hai
+     * instance không gửi trùng một cảnh báo.
+     */
+    public boolean tryAcquireCooldown(Long farmId, String alertType, String deviceId, Duration cooldown) {
+        String redisKey = "cooldown:notification:" + farmId + ":" + alertType + ":" + deviceId;
+        long now = System.currentTimeMillis();
+        Long until = cooldownUntil.get(redisKey);
+        if (until != null && until > now) {
+            return false;
+        }
+
+        Boolean acquired = redisTemplate.opsForValue().setIfAbsent(redisKey, "sent", cooldown);
+        if (Boolean.TRUE.equals(acquired)) {
+            cooldownUntil.put(redisKey, now + cooldown.toMillis());
+            return true;
+        }
+
+        // Instance khác đã gửi: nhớ thời hạn còn lại để lần sau không hỏi Redis
+        Long ttlMs = redisTemplate.getExpire(redisKey, TimeUnit.MILLISECONDS);
+        if (ttlMs != null && ttlMs > 0) {
+            cooldownUntil.put(redisKey, now + ttlMs);
+        }
+        return false;
+    }
+
+    @Scheduled(fixedDelay = 600000)
+    void purgeExpired() {
+        long now = System.currentTimeMillis();
+        cooldownUntil.values().removeIf(until -> until <= now);
+        thresholds.values().removeIf(cached -> cached.expiresAt() <= now);
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.dto.SensorReading;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Định dạng nhị phân gọn cho topic sensor/{id}/bin.
+ *
+ * <pre>
+ * byte 0      : version (hiện tại = 1)
+ * byte 1      : bitmask các trường có mặt, theo thứ tự bit của SensorReading
+ *               (bit0 temperature, bit1 humidity, bit2 soilMoisture,
+ *                bit3 lightIntensity, bit4 soilPH, bit7 có timestamp)
+ * [8 byte]    : nếu bit7 bật, int64 big-endian = thời điểm đo (epoch mili giây)
+ * tiếp theo   : mỗi trường có mặt là một int32 big-endian = giá trị × 100
+ *               (2 chữ số thập phân), theo thứ tự bit
+ * </pre>
+ *
+ * Một reading đủ 5 trường chỉ tốn 22 byte so với ~100 byte JSON. Decode đọc
+ * thẳng từ byte[] vào SensorReading, không cấp phát.
+ */
+@Component
+public class SensorBinaryCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final int[] FIELDS = {
+            SensorReading.TEMPERATURE,
+            SensorReading.HUMIDITY,
+            SensorReading.SOIL_MOISTURE,
+            SensorReading.LIGHT_INTENSITY,
+            SensorReading.SOIL_PH
+    };
+    private static final int KNOWN_FIELDS_MASK = 0x1F;
+    private static final int TIMESTAMP_FLAG = 0x80;
+    private static final double SCALE = 100.0;
+
+    public void decode(byte[] payload, SensorReading reading) throws IOException {
+        reading.reset();
+        if (payload.length < 2) {
+            throw new IOException("Binary sensor payload too short: " + payload.length + " bytes");
+        }
+        if (payload[0] != VERSION) {
+            throw new IOException("Unsupported binary sensor payload version: " + payload[0]);
+        }
+
+        int mask = payload[1] & 0xFF;
+        if ((mask & ~(KNOWN_FIELDS_MASK | TIMESTAMP_FLAG)) != 0) {
+            throw new IOException("Unknown field bits in binary sensor payload: " + Integer.toBinaryString(mask));
+        }
+        boolean hasTimestamp = (mask & TIMESTAMP_FLAG) != 0;
+        int expected = 2 + (hasTimestamp ? Long.BYTES : 0)
+                + Integer.bitCount(mask & KNOWN_FIELDS_MASK) * Integer.BYTES;
+        if (payload.length != expected) {
+            throw new IOException("Binary sensor payload length " + payload.length + ", expected " + expected);
+        }
+
+        int offset = 2;
+        if (hasTimestamp) {
+            reading.setTimestampMillis((long) readInt(payload, offset) << 32
+                    | (readInt(payload, offset + Integer.BYTES) & 0xFFFFFFFFL));
+            offset += Long.BYTES;
+        }
+        for (int field : FIELDS) {
+            if ((mask & field) != 0) {
+                reading.set(field, readInt(payload, offset) / SCALE);
+                offset += Integer.BYTES;
+            }
+        }
+    }
+
+    /**
+     * Encode reading theo cùng định dạng (dùng cho simulator/gateway và kiểm thử).
+     */
+    public byte[] encode(SensorReading reading) {
+        int mask = 0;
+        for (int field : FIELDS) {
+            if (reading.has(field)) {
+                mask |= field;
+            }
+        }
+
+        int fieldCount = Integer.bitCount(mask);
+        if (reading.hasTimestamp()) {
+            mask |= TIMESTAMP_FLAG;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(2 + (reading.hasTimestamp() ? Long.BYTES : 0)
+                + fieldCount * Integer.BYTES);
+        buffer.put(VERSION).put((byte) mask);
+        if (reading.hasTimestamp()) {
+            buffer.putLong(reading.getTimestampMillis());
+        }
+        for (int field : FIELDS) {
+            if ((mask & field) != 0) {
+                buffer.putInt(Math.toIntExact(Math.round(valueOf(reading, field) * SCALE)));
+            }
+        }
+        return buffer.array();
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24
+                | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8
+                | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static double valueOf(SensorReading reading, int field) {
+        return switch (field) {
+            case SensorReading.TEMPERATURE -> reading.getTemperature();
+            case SensorReading.HUMIDITY -> reading.getHumidity();
+            case SensorReading.SOIL_MOISTURE -> reading.getSoilMoisture();
+            case SensorReading.LIGHT_INTENSITY -> reading.getLightIntensity();
+            case SensorReading.SOIL_PH -> reading.getSoilPH();
+            default -> throw new IllegalArgumentException("Unknown sensor field: " + field);
+        };
+    }
+}
@@ -1,13 +1,11 @@
 package com.example.iotserver.service;
 
-import com.influxdb.client.InfluxDBClient;
-import com.influxdb.client.QueryApi;
-import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.Cancellable;
 import com.influxdb.client.domain.WritePrecision;
 import com.influxdb.client.write.Point;
 import com.influxdb.query.FluxRecord;
-import com.influxdb.query.FluxTable;
 import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.dto.ColumnarSeriesDTO;
 import com.example.iotserver.dto.SensorDataDTO;
 import com.example.iotserver.entity.Device;
 
@@ -15,61 +13,55 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 import com.example.iotserver.repository.DeviceRepository; // Thêm import này
 
-import com.influxdb.query.FluxRecord;
-
 @Service
 @Slf4j
 @RequiredArgsConstructor
 public class SensorDataService {
 
-    private final WriteApiBlocking writeApi;
-    private final InfluxDBClient influxDBClient;
+    private final InfluxWriteBuffer writeBuffer;
+    private final InfluxQueryExecutor queryExecutor;
     private final InfluxDBConfig influxDBConfig;
     private final DeviceRepository deviceRepository; // Inject DeviceRepository
+    private final LatestSensorValueStore latestValues;
+    private final FarmRollingAggregates farmAggregates;
+    private final SensorRollupService rollups;
 
     /**
-     * Save sensor data to InfluxDB
+     * Save sensor data to InfluxDB.
+     * Point được đưa vào {@link InfluxWriteBuffer} và ghi theo batch ở thread riêng.
      */
     public void saveSensorData(SensorDataDTO data) {
         try {
-            Point point = Point.measurement("sensor_data")
-                    .addTag("device_id", data.getDeviceId())
-                    .addTag("sensor_type", data.getSensorType() != null ? data.getSensorType() : "UNKNOWN") // Thêm kiểm
-                                                                                                            // tra null
-                    .addTag("farm_id", String.valueOf(data.getFarmId()))
-                    .time(data.getTimestamp(), WritePrecision.MS);
+            Point point = toPoint(data);
 
             // VVVV--- THÊM LOG DEBUG CHI TIẾT ---VVVV
             log.info(">>>> [INFLUX WRITE] Preparing to write Point for device {}", data.getDeviceId());
             // ^^^^-------------------------------^^^^
 
-            // VVVV--- THÊM ĐẦY ĐỦ CÁC TRƯỜNG ---VVVV
-            if (data.getTemperature() != null)
-                point.addField("temperature", data.getTemperature());
-            if (data.getHumidity() != null)
-                point.addField("humidity", data.getHumidity());
-            if (data.getSoilMoisture() != null)
-                point.addField("soil_moisture", data.getSoilMoisture());
-            if (data.getLightIntensity() != null)
-                point.addField("light_intensity", data.getLightIntensity());
-            if (data.getSoilPH() != null)
-                point.addField("soilPH", data.getSoilPH());
-            // ^^^^-----------------------------^^^^
-
             // Nếu không có field nào được thêm, không ghi để tránh lỗi
             if (point.hasFields()) {
-                writeApi.writePoint(point);
-                log.debug("Saved sensor data for device: {}", data.getDeviceId());
+                writeBuffer.enqueue(point);
+                latestValues.update(data);
+                farmAggregates.record(data);
+                rollups.markDirty(data.getTimestamp());
+                log.debug("Queued sensor data for device: {}", data.getDeviceId());
             } else {
                 log.warn("No fields to write for device {}, skipping InfluxDB write.", data.getDeviceId());
             }
@@ -80,69 +72,144 @@ public class SensorDataService {
         }
     }
 
+    /**
+     * Ghi nhiều reading (batch từ gateway) qua cùng hàng đợi ghi InfluxDB.
+     */
+    public void saveSensorDataBatch(List<SensorDataDTO> dataList) {
+        List<Point> points = new ArrayList<>(dataList.size());
+        for (SensorDataDTO data : dataList) {
+            Point point = toPoint(data);
+            if (point.hasFields()) {
+                points.add(point);
+            }
+        }
+        if (points.isEmpty()) {
+            return;
+        }
+        writeBuffer.enqueueAll(points);
+        for (SensorDataDTO data : dataList) {
+            latestValues.update(data);
+            farmAggregates.record(data);
+            rollups.markDirty(data.getTimestamp());
+        }
+        log.debug("Saved batch of {} sensor readings", points.size());
+    }
+
+    private Point toPoint(SensorDataDTO data) {
+        Point point = Point.measurement("sensor_data")
+                .addTag("device_id", data.getDeviceId())
+                .addTag("sensor_type", data.getSensorType() != null ? data.getSensorType() : "UNKNOWN") // Thêm kiểm
+                                                                                                        // tra null
+                .addTag("farm_id", String.valueOf(data.getFarmId()))
+                .time(data.getTimestamp(), WritePrecision.MS);
+
+        // VVVV--- THÊM ĐẦY ĐỦ CÁC TRƯỜNG ---VVVV
+        if (data.getTemperature() != null)
+            point.addField("temperature", data.getTemperature());
+        if (data.getHumidity() != null)
+            point.addField("humidity", data.getHumidity());
+        if (data.getSoilMoisture() != null)
+            point.addField("soil_moisture", data.getSoilMoisture());
+        if (data.getLightIntensity() != null)
+            point.addField("light_intensity", data.getLightIntensity());
+        if (data.getSoilPH() != null)
+            point.addField("soilPH", data.getSoilPH());
+        // ^^^^-----------------------------^^^^
+        return point;
+    }
+
     // File: SensorDataService.java
 
+    private static final String MEASUREMENT = "sensor_data";
+    private static final Duration LATEST_LOOKBACK = Duration.ofDays(30);
+    // Tên cột của dữ liệu dạng cột theo thứ tự LatestSensorValueStore.FIELDS, giống tên thuộc tính JSON của SensorDataDTO
+    private static final String[] COLUMN_NAMES = { "temperature", "humidity", "soilMoisture", "lightIntensity",
+            "soilPH" };
+    private static final String[] AVG_VALUE_COLUMN = { "avgValue" };
+
     /**
-     * Get latest sensor data for a device by pivoting fields into a single record.
-     * ✅ SỬA: Tăng range lên 24h để đảm bảo có dữ liệu
+     * Get latest sensor data for a device.
+     * Đọc từ {@link LatestSensorValueStore}; chỉ query InfluxDB khi store chưa nạp được.
      */
     public SensorDataDTO getLatestSensorData(String deviceId) {
+        if (latestValues.isWarmed()) {
+            return latestValues.getDevice(deviceId);
+        }
         try {
-            log.info("🔍 [InfluxDB] Getting latest data for device: {}", deviceId);
-
-            // ✅ SỬA ĐỔI QUERY: Thêm pivot() để gộp các fields lại thành một hàng duy nhất
-            String query = String.format(
-                    "from(bucket: \"%s\")\n" +
-                            "  |> range(start: -30d)\n" +
-                            "  |> filter(fn: (r) => r._measurement == \"sensor_data\" and r.device_id == \"%s\")\n" + // <--
-                                                                                                                      // GỘP
-                                                                                                                      // LẠI
-                                                                                                                      // BẰNG
-                                                                                                                      // "and"
-                            "  |> last()\n" +
-                            "  |> pivot(rowKey:[\"_time\"], columnKey: [\"_field\"], valueColumn: \"_value\")",
-                    influxDBConfig.getBucket(), deviceId);
-
-            log.debug("🔍 [InfluxDB] Executing Pivot Query: {}", query);
-
-            QueryApi queryApi = influxDBClient.getQueryApi();
-            List<FluxTable> tables = queryApi.query(query, influxDBConfig.getOrg());
-
-            if (tables.isEmpty() || tables.get(0).getRecords().isEmpty()) {
-                log.warn("❌ [InfluxDB] No data found for device: {} in the last hour.", deviceId);
+            SensorDataDTO data = queryLatest(FluxQuery.from(influxDBConfig.getBucket())
+                    .rangeLast(LATEST_LOOKBACK)
+                    .measurement(MEASUREMENT)
+                    .tagEquals("device_id", deviceId)
+                    .last());
+            if (data == null) {
+                log.warn("❌ [InfluxDB] No data found for device: {}", deviceId);
                 return null;
             }
-
-            // Với pivot(), chúng ta chỉ cần xử lý record đầu tiên
-            FluxRecord record = tables.get(0).getRecords().get(0);
-            Map<String, Object> values = record.getValues();
-
-            SensorDataDTO sensorData = SensorDataDTO.builder()
-                    .deviceId(deviceId)
-                    .timestamp(record.getTime())
-                    .temperature(getDoubleValue(values, "temperature"))
-                    .humidity(getDoubleValue(values, "humidity"))
-                    .soilMoisture(getDoubleValue(values, "soil_moisture"))
-                    .lightIntensity(getDoubleValue(values, "light_intensity"))
-                    .soilPH(getDoubleValue(values, "soilPH"))
-                    .build();
-
-            log.info("✅ [InfluxDB] Successfully retrieved latest data for {}: {}", deviceId, sensorData);
-            return sensorData;
-
+            data.setDeviceId(deviceId);
+            return data;
         } catch (Exception e) {
             log.error("❌ [InfluxDB] Error querying latest sensor data for {}: {}", deviceId, e.getMessage(), e);
             return null; // Trả về null khi có lỗi
         }
     }
 
-    // ✅ THÊM HELPER METHOD NÀY: Lấy giá trị Double từ map một cách an toàn
-    private Double getDoubleValue(Map<String, Object> map, String key) {
-        Object value = map.get(key);
-        if (value instanceof Number) {
-            return ((Number) value).doubleValue();
+    /**
+     * Reading mới nhất của nhiều thiết bị, theo deviceId (thiết bị chưa có dữ
+     * liệu không có trong kết quả). Đọc từ {@link LatestSensorValueStore}; nếu
+     * store chưa nạp được thì dùng một query InfluxDB cho cả danh sách thay vì
+     * một query mỗi thiết bị.
+     */
+    public Map<String, SensorDataDTO> getLatestSensorData(Collection<String> deviceIds) {
+        Map<String, SensorDataDTO> result = new HashMap<>();
+        if (deviceIds.isEmpty()) {
+            return result;
         }
-        return null;
+        if (latestValues.isWarmed()) {
+            for (String deviceId : deviceIds) {
+                SensorDataDTO data = latestValues.getDevice(deviceId);
+                if (data != null) {
+                    result.put(deviceId, data);
+                }
+            }
+            return result;
+        }
+        try {
+            Map<String, Map<String, Instant>> fieldTimes = new HashMap<>();
+            queryExecutor.stream(FluxQuery.from(influxDBConfig.getBucket())
+                    .rangeLast(LATEST_LOOKBACK)
+                    .measurement(MEASUREMENT)
+                    .tagIn("device_id", deviceIds)
+                    .last(), (cancellable, record) -> {
+                        Object deviceId = record.getValueByKey("device_id");
+                        if (deviceId == null || !(record.getValue() instanceof Number value)
+                                || record.getTime() == null) {
+                            return;
+                        }
+                        Map<String, Instant> times = fieldTimes.computeIfAbsent(deviceId.toString(),
+                                id -> new HashMap<>());
+                        Instant previous = times.get(record.getField());
+                        if (previous != null && previous.isAfter(record.getTime())) {
+                            return;
+                        }
+                        SensorDataDTO data = result.computeIfAbsent(deviceId.toString(), id -> {
+                            SensorDataDTO dto = new SensorDataDTO();
+                            dto.setDeviceId(id);
+                            return dto;
+                        });
+                        if (setField(data, record.getField(), value.doubleValue())) {
+                            times.put(record.getField(), record.getTime());
+                            if (data.getTimestamp() == null || record.getTime().isAfter(data.getTimestamp())) {
+                                data.setTimestamp(record.getTime());
+                            }
+                        }
+                    });
+            // Thiết bị chỉ có field không hỗ trợ
+            result.values().removeIf(data -> data.getTimestamp() == null);
+        } catch (Exception e) {
+            log.error("❌ [InfluxDB] Error querying latest sensor data for {} devices: {}", deviceIds.size(),
+                    e.getMessage(), e);
+        }
+        return result;
     }
 
     /**
@@ -152,20 +219,124 @@ public class SensorDataService {
             String deviceId,
             Instant start,
             Instant end) {
-        String flux = String.format(
-                "from(bucket: \"%s\") " +
-                        "|> range(start: %s, stop: %s) " +
-                        "|> filter(fn: (r) => r[\"device_id\"] == \"%s\") " +
-                        "|> sort(columns: [\"_time\"])",
-                influxDBConfig.getBucket(),
-                start.toString(),
-                end.toString(),
-                deviceId);
-
-        List<Map<String, Object>> rawDataList = executeQueryList(flux);
-        return rawDataList.stream()
-                .map(SensorDataDTO::fromInfluxRecord)
-                .collect(Collectors.toList());
+        FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                .range(start, end)
+                .measurement(MEASUREMENT)
+                .tagEquals("device_id", deviceId)
+                .sortByTime(false);
+
+        return queryExecutor.cachedList("range", query, SensorDataService::toFieldDTO);
+    }
+
+    /**
+     * Như trên, nhưng mỗi field được giảm còn tối đa maxPoints điểm bằng LTTB
+     * (maxPoints = null: trả về toàn bộ).
+     */
+    public List<SensorDataDTO> getSensorDataRange(String deviceId, Instant start, Instant end, Integer maxPoints) {
+        List<SensorDataDTO> data = getSensorDataRange(deviceId, start, end);
+        if (maxPoints == null || data.size() <= maxPoints) {
+            return data;
+        }
+        // Kết quả đi theo từng bảng (field, sensor_type): gom theo field rồi sắp theo thời gian
+        Map<String, List<SensorDataDTO>> byField = new LinkedHashMap<>();
+        for (SensorDataDTO dto : data) {
+            String field = fieldOf(dto);
+            if (field != null) {
+                byField.computeIfAbsent(field, k -> new ArrayList<>()).add(dto);
+            }
+        }
+        List<SensorDataDTO> result = new ArrayList<>();
+        for (Map.Entry<String, List<SensorDataDTO>> series : byField.entrySet()) {
+            String field = series.getKey();
+            List<SensorDataDTO> points = series.getValue();
+            points.sort(Comparator.comparing(SensorDataDTO::getTimestamp));
+            result.addAll(Lttb.downsample(points, maxPoints, dto -> dto.getTimestamp().toEpochMilli(),
+                    dto -> fieldValue(dto, field)));
+        }
+        return result;
+    }
+
+    /**
+     * Dữ liệu thô của thiết bị dạng cột: mỗi dòng là một thời điểm, mỗi cột
+     * là một field (null nếu thời điểm đó không có field). Đọc thẳng record đã
+     * pivot vào mảng cột, không qua SensorDataDTO; maxPoints != null thì mỗi
+     * field được giảm còn tối đa maxPoints điểm bằng LTTB.
+     */
+    public ColumnarSeriesDTO getSensorDataRangeColumnar(String deviceId, Instant start, Instant end,
+            Integer maxPoints) {
+        FluxQuery query = pivotedRangeQuery(List.of(deviceId), start, end, null);
+        ColumnarSeriesDTO series = queryExecutor.cached("range-columnar", query, () -> {
+            ColumnarSeriesDTO columns = new ColumnarSeriesDTO(COLUMN_NAMES);
+            queryExecutor.stream(query, (cancellable, record) -> {
+                if (record.getTime() == null) {
+                    return;
+                }
+                int row = columns.addRow(record.getTime().toEpochMilli());
+                for (int i = 0; i < LatestSensorValueStore.FIELDS.length; i++) {
+                    if (record.getValueByKey(LatestSensorValueStore.FIELDS[i]) instanceof Number value) {
+                        columns.set(row, i, value.doubleValue());
+                    }
+                }
+            });
+            return columns;
+        });
+        return maxPoints == null ? series : downsampleColumns(series, COLUMN_NAMES, maxPoints);
+    }
+
+    /**
+     * Stream dữ liệu thô của nhiều thiết bị, đã pivot trên InfluxDB: mỗi record
+     * là một thời điểm của một thiết bị với các field thành cột (temperature,
+     * humidity, soil_moisture, light_intensity, soilPH). Record đi theo từng
+     * thiết bị, trong mỗi thiết bị tăng dần theo thời gian. Không giữ kết quả
+     * trong bộ nhớ; callback chạy trên thread gọi (có thể ghi thẳng ra response)
+     * và có thể hủy query giữa chừng.
+     */
+    public void streamPivotedRange(List<String> deviceIds, Instant start, Instant end,
+            BiConsumer<Cancellable, FluxRecord> onRow) {
+        streamPivotedRange(deviceIds, start, end, null, onRow);
+    }
+
+    /**
+     * Như trên, nhưng nếu window khác null thì mỗi field được gộp trung bình
+     * theo cửa sổ đó (aggregateWindow) trước khi pivot, để giảm số dòng.
+     */
+    public void streamPivotedRange(List<String> deviceIds, Instant start, Instant end, String window,
+            BiConsumer<Cancellable, FluxRecord> onRow) {
+        queryExecutor.stream(pivotedRangeQuery(deviceIds, start, end, window), onRow);
+    }
+
+    private FluxQuery pivotedRangeQuery(List<String> deviceIds, Instant start, Instant end, String window) {
+        FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                .range(start, end)
+                .measurement(MEASUREMENT)
+                .tagIn("device_id", deviceIds);
+        if (window != null) {
+            query.aggregateWindow(window, "mean");
+        }
+        return query.keep("_time", "_field", "_value", "device_id")
+                .group("device_id")
+                .pivotFields()
+                .sortByTime(false);
+    }
+
+    /**
+     * Ước lượng số dòng (sau pivot) của thiết bị trong khoảng thời gian: số
+     * điểm lớn nhất trong các field.
+     */
+    public long countReadings(String deviceId, Instant start, Instant end) {
+        FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                .range(start, end)
+                .measurement(MEASUREMENT)
+                .tagEquals("device_id", deviceId)
+                .count();
+
+        long[] max = { 0 };
+        queryExecutor.stream(query, (cancellable, record) -> {
+            if (record.getValue() instanceof Number count) {
+                max[0] = Math.max(max[0], count.longValue());
+            }
+        });
+        return max[0];
     }
 
     /**
@@ -177,199 +348,98 @@ public class SensorDataService {
             String aggregation, // mean, max, min
             String window // 1m, 5m, 1h, 1d
     ) {
-        String flux = String.format(
-                "from(bucket: \"%s\") " +
-                        "|> range(start: -7d) " +
-                        "|> filter(fn: (r) => r[\"device_id\"] == \"%s\") " +
-                        "|> filter(fn: (r) => r[\"_field\"] == \"%s\") " +
-                        "|> aggregateWindow(every: %s, fn: %s, createEmpty: false)",
-                influxDBConfig.getBucket(),
-                deviceId,
-                field,
-                window,
-                aggregation);
-
-        List<Map<String, Object>> rawDataList = executeQueryList(flux);
-
-        // ✅ THÊM: Log debug
+        FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                .rangeLast(Duration.ofDays(7))
+                .measurement(MEASUREMENT)
+                .tagEquals("device_id", deviceId)
+                .field(field)
+                .aggregateWindow(window, aggregation);
+
+        List<SensorDataDTO> results = queryExecutor.list(query, record -> {
+            SensorDataDTO dto = toFieldDTO(record);
+            if (dto != null) {
+                dto.setAvgValue(((Number) record.getValue()).doubleValue());
+            }
+            return dto;
+        });
+
         log.info("🔍 [Aggregated Query] Device: {}, Field: {}, Window: {}, Results: {}",
-                deviceId, field, window, rawDataList.size());
+                deviceId, field, window, results.size());
 
-        if (rawDataList.isEmpty()) {
+        if (results.isEmpty()) {
             log.warn("⚠️ Không có dữ liệu aggregated cho device: {}, field: {}", deviceId, field);
-            return Collections.emptyList(); // ✅ Trả về list rỗng thay vì lỗi
         }
+        return results;
+    }
 
-        return rawDataList.stream()
-                .map(data -> {
-                    SensorDataDTO dto = SensorDataDTO.fromInfluxRecord(data);
-
-                    // ✅ SỬA: Xử lý null
-                    Object valueObj = data.get("_value");
-                    if (valueObj != null) {
-                        if (valueObj instanceof Number) {
-                            dto.setAvgValue(((Number) valueObj).doubleValue());
-                        } else {
-                            log.warn("⚠️ Value không phải số: {}", valueObj);
-                        }
-                    }
-
-                    return dto;
-                })
-                .filter(dto -> dto.getAvgValue() != null) // ✅ Lọc bỏ các record null
-                .collect(Collectors.toList());
+    /**
+     * Dữ liệu tổng hợp dạng cột {timestamps, <field>}.
+     */
+    public ColumnarSeriesDTO getAggregatedDataColumnar(String deviceId, String field, String aggregation,
+            String window) {
+        return avgValueColumns(getAggregatedData(deviceId, field, aggregation, window), field);
     }
 
     /**
-     * Get all devices data for a farm
+     * Get all devices data for a farm (field có dữ liệu trong 1 giờ qua)
      */
     public Map<String, Map<String, Object>> getFarmLatestData(Long farmId) {
-        String flux = String.format(
-                "from(bucket: \"%s\") " +
-                        "|> range(start: -1h) " +
-                        "|> filter(fn: (r) => r[\"farm_id\"] == \"%s\") " +
-                        "|> last()",
-                influxDBConfig.getBucket(),
-                farmId);
-
-        List<Map<String, Object>> results = executeQueryList(flux);
         Map<String, Map<String, Object>> deviceDataMap = new HashMap<>();
-
-        for (Map<String, Object> record : results) {
-            String deviceId = (String) record.get("device_id");
-            deviceDataMap.putIfAbsent(deviceId, new HashMap<>());
-
-            String field = record.get("_field").toString();
-            Object value = record.get("_value");
-
-            deviceDataMap.get(deviceId).put(field, value);
-            deviceDataMap.get(deviceId).put("device_id", deviceId);
-            deviceDataMap.get(deviceId).put("timestamp", record.get("_time"));
-        }
-
-        return deviceDataMap;
-    }
-
-    // Helper methods
-    private Map<String, Object> executeQuery(String flux) {
-        QueryApi queryApi = influxDBClient.getQueryApi();
-        List<FluxTable> tables = queryApi.query(flux, influxDBConfig.getOrg());
-
-        if (tables.isEmpty() || tables.get(0).getRecords().isEmpty()) {
-            return new HashMap<>();
+        if (latestValues.isWarmed()) {
+            Instant since = Instant.now().minus(1, ChronoUnit.HOURS);
+            for (String deviceId : latestValues.getDeviceIds(farmId)) {
+                Map<String, Object> fields = latestValues.getDeviceFields(deviceId, since);
+                if (fields != null) {
+                    deviceDataMap.put(deviceId, fields);
+                }
+            }
+            return deviceDataMap;
         }
 
-        return fluxRecordToMap(tables.get(0).getRecords().get(0));
-    }
-
-    private List<Map<String, Object>> executeQueryList(String flux) {
+        FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                .rangeLast(Duration.ofHours(1))
+                .tagEquals("farm_id", String.valueOf(farmId))
+                .last();
         try {
-            QueryApi queryApi = influxDBClient.getQueryApi();
-            List<FluxTable> tables = queryApi.query(flux, influxDBConfig.getOrg());
-
-            // ✅ THÊM: Log debug
-            log.debug("🔍 [InfluxDB] Query executed, tables count: {}", tables.size());
-
-            if (tables.isEmpty()) {
-                return Collections.emptyList(); // ✅ Trả về list rỗng
-            }
-
-            List<Map<String, Object>> results = new ArrayList<>();
-            for (FluxTable table : tables) {
-                for (FluxRecord record : table.getRecords()) {
-                    Map<String, Object> data = new HashMap<>();
-
-                    // ✅ SỬA: Xử lý null an toàn
-                    Object value = record.getValue();
-                    if (value != null) {
-                        data.put("_value", value);
-                    } else {
-                        log.warn("⚠️ Record có value null, bỏ qua");
-                        continue; // Skip record này
-                    }
-
-                    data.put("_time", record.getTime());
-                    data.put("_field", record.getField());
-                    data.put("device_id", record.getValueByKey("device_id"));
-
-                    results.add(data);
+            queryExecutor.stream(query, (cancellable, record) -> {
+                String deviceId = (String) record.getValueByKey("device_id");
+                if (deviceId == null || record.getValue() == null) {
+                    return;
                 }
-            }
-
-            return results;
-
+                Map<String, Object> deviceData = deviceDataMap.computeIfAbsent(deviceId, id -> new HashMap<>());
+                deviceData.put(record.getField(), record.getValue());
+                deviceData.put("device_id", deviceId);
+                deviceData.put("timestamp", record.getTime());
+            });
         } catch (Exception e) {
             log.error("❌ [InfluxDB] Lỗi query: {}", e.getMessage(), e);
-            return Collections.emptyList(); // ✅ Trả về list rỗng thay vì throw exception
         }
-    }
-
-    private Map<String, Object> fluxRecordToMap(FluxRecord record) {
-        Map<String, Object> map = new HashMap<>();
-        map.put("_time", record.getTime());
-        map.put("_value", record.getValue());
-        map.put("_field", record.getField());
-        map.putAll(record.getValues());
-        return map;
+        return deviceDataMap;
     }
 
     /**
      * Lấy dữ liệu cảm biến mới nhất theo farmId
      */
     public SensorDataDTO getLatestSensorDataByFarmId(Long farmId) {
+        if (latestValues.isWarmed()) {
+            SensorDataDTO data = latestValues.getLatestAcross(latestValues.getDeviceIds(farmId));
+            if (data != null) {
+                data.setFarmId(farmId);
+            }
+            return data;
+        }
         try {
-            String query = String.format(
-                    "from(bucket: \"%s\") " +
-                            "|> range(start: -30d) " +
-                            "|> filter(fn: (r) => r._measurement == \"sensor_data\" and r.farm_id == \"%s\") ", // Giữ
-                                                                                                                // nguyên
-                                                                                                                // %s
-                    influxDBConfig.getBucket(),
-                    String.valueOf(farmId));
-
-            log.debug("🔍 [InfluxDB] Query for latest farm data {}: {}", farmId, query);
-
-            QueryApi queryApi = influxDBClient.getQueryApi();
-            List<FluxTable> tables = queryApi.query(query);
-
-            if (tables == null || tables.isEmpty()) {
+            SensorDataDTO data = queryLatest(FluxQuery.from(influxDBConfig.getBucket())
+                    .rangeLast(LATEST_LOOKBACK)
+                    .measurement(MEASUREMENT)
+                    .tagEquals("farm_id", String.valueOf(farmId))
+                    .last());
+            if (data == null) {
                 log.warn("⚠️ [InfluxDB] Không có dữ liệu cho farmId: {}", farmId);
                 return null;
             }
-
-            // Parse dữ liệu
-            SensorDataDTO data = new SensorDataDTO();
             data.setFarmId(farmId);
-            data.setTimestamp(Instant.now());
-
-            for (FluxTable table : tables) {
-                for (FluxRecord record : table.getRecords()) {
-                    String field = (String) record.getField();
-                    Object value = record.getValue();
-
-                    switch (field) {
-                        case "temperature":
-                            data.setTemperature(((Number) value).doubleValue());
-                            break;
-                        case "humidity":
-                            data.setHumidity(((Number) value).doubleValue());
-                            break;
-                        case "soil_moisture":
-                            data.setSoilMoisture(((Number) value).doubleValue());
-                            break;
-                        case "light_intensity":
-                            data.setLightIntensity(((Number) value).doubleValue());
-                            break;
-                        case "soilPH":
-                            data.setSoilPH(((Number) value).doubleValue());
-                            break;
-                    }
-                }
-            }
-
-            log.info("✅ [InfluxDB] Lấy dữ liệu thành công cho farmId: {}", farmId);
             return data;
-
         } catch (Exception e) {
             log.error("❌ [InfluxDB] Lỗi khi lấy dữ liệu farmId {}: {}", farmId, e.getMessage());
             return null;
@@ -382,58 +452,19 @@ public class SensorDataService {
      */
     public SensorDataDTO getSensorDataAt(Long farmId, LocalDateTime dateTime) {
         try {
-            String query = String.format(
-                    "from(bucket: \"%s\") " +
-                            "|> range(start: %s, stop: %s) " +
-                            "|> filter(fn: (r) => r[\"_measurement\"] == \"sensor_data\") " +
-                            "|> filter(fn: (r) => r[\"farm_id\"] == \"%s\") " +
-                            "|> last()",
-                    influxDBConfig.getBucket(),
-                    dateTime.minusMinutes(30).toString() + "Z",
-                    dateTime.plusMinutes(30).toString() + "Z",
-                    farmId);
-
-            log.debug("🔍 [InfluxDB] Query for farmId {}: {}", farmId, query);
-
-            QueryApi queryApi = influxDBClient.getQueryApi();
-            List<FluxTable> tables = queryApi.query(query);
-
-            if (tables == null || tables.isEmpty()) {
+            FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                    .range(dateTime.minusMinutes(30).toInstant(ZoneOffset.UTC),
+                            dateTime.plusMinutes(30).toInstant(ZoneOffset.UTC))
+                    .measurement(MEASUREMENT)
+                    .tagEquals("farm_id", String.valueOf(farmId))
+                    .last();
+
+            SensorDataDTO data = queryExecutor.cached("at", query, () -> queryLatest(query));
+            if (data == null) {
                 log.warn("⚠️ [InfluxDB] Không có dữ liệu cho farmId: {}", farmId);
                 return null;
             }
-
-            // Parse dữ liệu
-            SensorDataDTO data = new SensorDataDTO();
             data.setFarmId(farmId);
-            data.setTimestamp(Instant.now());
-
-            for (FluxTable table : tables) {
-                for (FluxRecord record : table.getRecords()) {
-                    String field = (String) record.getField();
-                    Object value = record.getValue();
-
-                    switch (field) {
-                        case "temperature":
-                            data.setTemperature(((Number) value).doubleValue());
-                            break;
-                        case "humidity":
-                            data.setHumidity(((Number) value).doubleValue());
-                            break;
-                        case "soil_moisture":
-                            data.setSoilMoisture(((Number) value).doubleValue());
-                            break;
-                        case "light_intensity":
-                            data.setLightIntensity(((Number) value).doubleValue());
-                            break;
-                        case "soilPh":
-                            data.setSoilPH(((Number) value).doubleValue());
-                            break;
-                    }
-                }
-            }
-
-            log.info("✅ [InfluxDB] Lấy dữ liệu thành công cho farmId: {}", farmId);
             return data;
 
         } catch (Exception e) {
@@ -447,22 +478,17 @@ public class SensorDataService {
      */
     public boolean hasRecentData(String deviceId, int hoursBack) {
         try {
-            String query = String.format(
-                    "from(bucket: \"%s\")\n" +
-                            "  |> range(start: -%dh)\n" +
-                            "  |> filter(fn: (r) => r[\"_measurement\"] == \"sensor_data\")\n" +
-                            "  |> filter(fn: (r) => r[\"device_id\"] == \"%s\")\n" +
-                            "  |> count()",
-                    influxDBConfig.getBucket(), hoursBack, deviceId);
-
-            QueryApi queryApi = influxDBClient.getQueryApi();
-            List<FluxTable> tables = queryApi.query(query, influxDBConfig.getOrg());
-
-            if (!tables.isEmpty() && !tables.get(0).getRecords().isEmpty()) {
-                Object count = tables.get(0).getRecords().get(0).getValue();
-                long recordCount = count != null ? ((Number) count).longValue() : 0;
+            FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                    .rangeLast(Duration.ofHours(hoursBack))
+                    .measurement(MEASUREMENT)
+                    .tagEquals("device_id", deviceId)
+                    .count();
+
+            Double count = queryExecutor.firstDouble(query);
+            long recordCount = count != null ? count.longValue() : 0;
+            if (recordCount > 0) {
                 log.info("🔍 Device {} có {} bản ghi trong {}h qua", deviceId, recordCount, hoursBack);
-                return recordCount > 0;
+                return true;
             }
 
             log.warn("⚠️ Không có dữ liệu nào cho device {} trong {}h qua", deviceId, hoursBack);
@@ -476,26 +502,16 @@ public class SensorDataService {
 
     // VVVV--- THÊM PHƯƠNG THỨC DEBUG NÀY VÀO CUỐI CLASS ---VVVV
     public List<Map<String, Object>> getRawInfluxDataForDebug() {
-        String query = String.format(
-                "from(bucket: \"%s\")\n" +
-                        "  |> range(start: -30d)\n" +
-                        "  |> filter(fn: (r) => r._measurement == \"sensor_data\")\n" +
-                        "  |> limit(n: 10)\n" +
-                        "  |> sort(columns: [\"_time\"], desc: true)",
-                influxDBConfig.getBucket());
+        FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                .rangeLast(LATEST_LOOKBACK)
+                .measurement(MEASUREMENT)
+                .limit(10)
+                .sortByTime(true);
 
         log.info(">>>> [DEBUG_INFLUX] Executing raw query: {}", query);
 
         try {
-            QueryApi queryApi = influxDBClient.getQueryApi();
-            List<FluxTable> tables = queryApi.query(query);
-
-            List<Map<String, Object>> results = new ArrayList<>();
-            for (FluxTable table : tables) {
-                for (FluxRecord record : table.getRecords()) {
-                    results.add(record.getValues());
-                }
-            }
+            List<Map<String, Object>> results = queryExecutor.list(query, FluxRecord::getValues);
             log.info(">>>> [DEBUG_INFLUX] Found {} raw records.", results.size());
             return results;
         } catch (Exception e) {
@@ -508,80 +524,27 @@ public class SensorDataService {
     // VVVV--- THÊM HÀM MỚI NÀY ---VVVV
     public SensorDataDTO getLatestSensorDataForFarmDevices(Long farmId) {
         // 1. Lấy danh sách deviceId từ MySQL (giữ nguyên)
-        List<String> deviceIds = deviceRepository.findByFarmId(farmId)
-                .stream()
-                .map(Device::getDeviceId)
-                .collect(Collectors.toList());
+        List<String> deviceIds = findFarmDeviceIds(farmId);
 
         if (deviceIds.isEmpty()) {
             log.warn("Farm {} không có thiết bị nào.", farmId);
             return null;
         }
 
-        String deviceIdFilter = deviceIds.stream()
-                .map(id -> String.format("r.device_id == \"%s\"", id))
-                .collect(Collectors.joining(" or "));
-
-        // 2. Câu query Flux (giữ nguyên, nó đã đúng)
-        String query = String.format(
-                "from(bucket: \"%s\") " +
-                        "|> range(start: -30d) " +
-                        "|> filter(fn: (r) => r._measurement == \"sensor_data\" and (%s)) " +
-                        "|> last()", // Bỏ pivot đi để xử lý thô cho chắc chắn
-                influxDBConfig.getBucket(),
-                deviceIdFilter);
-
-        log.debug("🔍 [InfluxDB] Query for latest farm devices data: {}", query);
+        if (latestValues.isWarmed()) {
+            return latestValues.getLatestAcross(deviceIds);
+        }
 
         try {
-            QueryApi queryApi = influxDBClient.getQueryApi();
-            List<FluxTable> tables = queryApi.query(query);
-
-            if (tables.isEmpty()) {
-                log.warn("❌ [InfluxDB] Query không trả về bảng nào cho các thiết bị của farm: {}", farmId);
-                return null;
+            SensorDataDTO data = queryLatest(FluxQuery.from(influxDBConfig.getBucket())
+                    .rangeLast(LATEST_LOOKBACK)
+                    .measurement(MEASUREMENT)
+                    .tagIn("device_id", deviceIds)
+                    .last());
+            if (data == null) {
+                log.warn("❌ [InfluxDB] Không có record nào cho các thiết bị của farm: {}", farmId);
             }
-
-            // 3. Logic xử lý kết quả MỚI và AN TOÀN
-            var dtoBuilder = SensorDataDTO.builder();
-            boolean hasData = false;
-
-            // Duyệt qua tất cả các bảng (mỗi bảng cho một _field)
-            for (FluxTable table : tables) {
-                // Duyệt qua tất cả các record trong bảng
-                for (FluxRecord record : table.getRecords()) {
-                    hasData = true; // Đánh dấu là đã tìm thấy dữ liệu
-
-                    // Lấy các thông tin chung từ record đầu tiên tìm thấy
-                    if (dtoBuilder.build().getDeviceId() == null) {
-                        dtoBuilder.deviceId((String) record.getValueByKey("device_id"));
-                        dtoBuilder.timestamp(record.getTime());
-                    }
-
-                    String field = record.getField();
-                    Object value = record.getValue();
-
-                    if (field != null && value instanceof Number) {
-                        switch (field) {
-                            case "temperature" -> dtoBuilder.temperature(((Number) value).doubleValue());
-                            case "humidity" -> dtoBuilder.humidity(((Number) value).doubleValue());
-                            case "soil_moisture" -> dtoBuilder.soilMoisture(((Number) value).doubleValue());
-                            case "light_intensity" -> dtoBuilder.lightIntensity(((Number) value).doubleValue());
-                            case "soilPH" -> dtoBuilder.soilPH(((Number) value).doubleValue());
-                        }
-                    }
-                }
-            }
-
-            if (!hasData) {
-                log.warn("❌ [InfluxDB] Query trả về bảng nhưng không có record nào cho farm: {}", farmId);
-                return null;
-            }
-
-            SensorDataDTO finalDto = dtoBuilder.build();
-            log.info("✅ [InfluxDB] Đã xử lý thành công dữ liệu thô thành DTO: {}", finalDto);
-            return finalDto;
-
+            return data;
         } catch (Exception e) {
             log.error("❌ [InfluxDB] Lỗi nghiêm trọng khi xử lý kết quả query cho farm {}: {}", farmId, e.getMessage(),
                     e);
@@ -608,112 +571,322 @@ public class SensorDataService {
             return Collections.emptyMap();
         }
 
-        // Tạo các chuỗi filter cho Flux query
-        String deviceIdFilter = deviceIds.stream()
-                .map(id -> String.format("r.device_id == \"%s\"", id))
-                .collect(Collectors.joining(" or "));
-
-        String fieldFilter = fields.stream()
-                .map(field -> String.format("r._field == \"%s\"", field))
-                .collect(Collectors.joining(" or "));
-
-        String query = String.format(
-                "from(bucket: \"%s\")\n" +
-                        "  |> range(start: %s, stop: %s)\n" +
-                        "  |> filter(fn: (r) => r._measurement == \"sensor_data\")\n" +
-                        "  |> filter(fn: (r) => %s)\n" + // Filter theo device_id
-                        "  |> filter(fn: (r) => %s)\n" + // Filter theo _field
-                        "  |> aggregateWindow(every: %s, fn: mean, createEmpty: false)\n" +
-                        "  |> yield(name: \"mean\")",
-                influxDBConfig.getBucket(),
-                start.toString(),
-                end.toString(),
-                deviceIdFilter,
-                fieldFilter,
-                window);
-
-        log.info("Executing multi-series query for {} devices and {} fields.", deviceIds.size(), fields.size());
-
-        QueryApi queryApi = influxDBClient.getQueryApi();
-        List<FluxTable> tables = queryApi.query(query, influxDBConfig.getOrg());
-
-        // Nhóm kết quả lại theo "deviceId_field"
+        SensorRollupService.Plan plan = rollups.plan(start, end, window);
+        List<FluxQuery> segments = multiSeriesSegments(deviceIds, fields, start, end, window, plan);
+        return queryExecutor.cached(multiSeriesCacheName("multi-series", plan, end), segments.get(0), () -> {
+            // Nhóm kết quả lại theo "deviceId_field"; các segment nối tiếp nhau theo thời gian
+            Map<String, List<SensorDataDTO>> result = new HashMap<>();
+            for (FluxQuery segment : segments) {
+                queryExecutor.stream(segment, (cancellable, record) -> {
+                    String key = record.getValueByKey("device_id") + "_" + record.getField();
+                    SensorDataDTO dto = SensorDataDTO.builder()
+                            .timestamp(record.getTime())
+                            .avgValue(record.getValue() instanceof Number value ? value.doubleValue() : null)
+                            .build();
+                    result.computeIfAbsent(key, k -> new ArrayList<>()).add(dto);
+                });
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Như trên, nhưng mỗi chuỗi được giảm còn tối đa maxPoints điểm bằng LTTB
+     * (maxPoints = null: trả về toàn bộ).
+     */
+    public Map<String, List<SensorDataDTO>> getMultiSeriesData(List<String> deviceIds, List<String> fields,
+            Instant start, Instant end, String window, Integer maxPoints) {
+        Map<String, List<SensorDataDTO>> data = getMultiSeriesData(deviceIds, fields, start, end, window);
+        if (maxPoints == null) {
+            return data;
+        }
         Map<String, List<SensorDataDTO>> result = new HashMap<>();
-        for (FluxTable table : tables) {
-            for (FluxRecord record : table.getRecords()) {
-                String deviceId = (String) record.getValueByKey("device_id");
-                String field = record.getField();
-                String key = deviceId + "_" + field;
+        data.forEach((key, points) -> {
+            // Kết quả có thể nằm trong cache, không sửa list gốc
+            List<SensorDataDTO> valid = points;
+            if (points.stream().anyMatch(dto -> dto.getAvgValue() == null)) {
+                valid = points.stream().filter(dto -> dto.getAvgValue() != null).toList();
+            }
+            result.put(key, Lttb.downsample(valid, maxPoints, dto -> dto.getTimestamp().toEpochMilli(),
+                    SensorDataDTO::getAvgValue));
+        });
+        return result;
+    }
 
-                result.putIfAbsent(key, new ArrayList<>());
+    /**
+     * Như getMultiSeriesData(..., maxPoints) nhưng mỗi chuỗi ở dạng cột
+     * {timestamps, avgValue}. Record được ghi thẳng vào mảng cột, không qua
+     * SensorDataDTO.
+     */
+    public Map<String, ColumnarSeriesDTO> getMultiSeriesColumnar(List<String> deviceIds, List<String> fields,
+            Instant start, Instant end, String window, Integer maxPoints) {
+        if (deviceIds == null || deviceIds.isEmpty() || fields == null || fields.isEmpty()) {
+            return Collections.emptyMap();
+        }
 
-                SensorDataDTO dto = SensorDataDTO.builder()
-                        .timestamp(record.getTime())
-                        .avgValue(
-                                record.getValue() instanceof Number ? ((Number) record.getValue()).doubleValue() : null)
-                        .build();
+        SensorRollupService.Plan plan = rollups.plan(start, end, window);
+        List<FluxQuery> segments = multiSeriesSegments(deviceIds, fields, start, end, window, plan);
+        Map<String, ColumnarSeriesDTO> data = queryExecutor.cached(multiSeriesCacheName("multi-series-columnar", plan,
+                end), segments.get(0), () -> {
+                    Map<String, ColumnarSeriesDTO> result = new HashMap<>();
+                    for (FluxQuery segment : segments) {
+                        queryExecutor.stream(segment, (cancellable, record) -> {
+                            if (record.getTime() == null) {
+                                return;
+                            }
+                            ColumnarSeriesDTO series = result.computeIfAbsent(
+                                    record.getValueByKey("device_id") + "_" + record.getField(),
+                                    k -> new ColumnarSeriesDTO(AVG_VALUE_COLUMN));
+                            int row = series.addRow(record.getTime().toEpochMilli());
+                            if (record.getValue() instanceof Number value) {
+                                series.set(row, 0, value.doubleValue());
+                            }
+                        });
+                    }
+                    return result;
+                });
+        if (maxPoints == null) {
+            return data;
+        }
+        // Kết quả có thể nằm trong cache, downsampleColumns tạo chuỗi mới
+        Map<String, ColumnarSeriesDTO> result = new HashMap<>();
+        data.forEach((key, series) -> result.put(key, downsampleColumns(series, AVG_VALUE_COLUMN, maxPoints)));
+        return result;
+    }
 
-                result.get(key).add(dto);
+    /**
+     * Các query đọc một lượt multi-series, nối tiếp nhau theo thời gian: phần
+     * đã rollup đọc từ bucket rollup, phần đầu/cuối không thẳng hàng với window
+     * hoặc chưa được rollup đọc dữ liệu thô.
+     */
+    private List<FluxQuery> multiSeriesSegments(List<String> deviceIds, List<String> fields, Instant start,
+            Instant end, String window, SensorRollupService.Plan plan) {
+        List<FluxQuery> segments = new ArrayList<>();
+        if (plan == null) {
+            segments.add(multiSeriesQuery(influxDBConfig.getBucket(), deviceIds, fields, start, end, window, false));
+        } else {
+            if (start.isBefore(plan.rollupStart())) {
+                segments.add(multiSeriesQuery(influxDBConfig.getBucket(), deviceIds, fields, start,
+                        plan.rollupStart(), window, false));
+            }
+            segments.add(multiSeriesQuery(plan.bucket(), deviceIds, fields, plan.rollupStart(), plan.rollupEnd(),
+                    window, true));
+            if (plan.rollupEnd().isBefore(end)) {
+                segments.add(multiSeriesQuery(influxDBConfig.getBucket(), deviceIds, fields, plan.rollupEnd(), end,
+                        window, false));
             }
         }
-        return result;
+
+        log.info("Executing multi-series query for {} devices and {} fields ({}).", deviceIds.size(), fields.size(),
+                plan != null ? "rollup " + plan.level().getLabel() : "raw");
+        return segments;
+    }
+
+    // Khóa cache theo segment đầu, cộng thêm ranh giới của các segment còn lại
+    private static String multiSeriesCacheName(String name, SensorRollupService.Plan plan, Instant end) {
+        return name + "|" + (plan != null ? plan.rollupStart() + "|" + plan.rollupEnd() + "|" + end : "");
     }
-    // ^^^^---------------------------------------------------^^^^
 
-    // <<< DÁN 2 PHƯƠ-NG THỨC MỚI NÀY VÀO CUỐI FILE SensorDataService.java >>>
+    // Gộp trung bình theo window; với bucket rollup cần lọc thêm stat trước khi gộp
+    private static FluxQuery multiSeriesQuery(String bucket, List<String> deviceIds, List<String> fields,
+            Instant start, Instant end, String window, boolean rollup) {
+        FluxQuery query = FluxQuery.from(bucket)
+                .range(start, end)
+                .measurement(MEASUREMENT)
+                .tagIn("device_id", deviceIds)
+                .fieldIn(fields);
+        if (rollup) {
+            query.tagEquals("stat", "mean");
+        }
+        return query.aggregateWindow(window, "mean");
+    }
+    // ^^^^---------------------------------------------------^^^^
 
     /**
      * Lấy giá trị trung bình của một trường dữ liệu trong một khoảng thời gian.
      */
     public Double getAverageValueInRange(Long farmId, String field, Instant start, Instant end) {
-        String deviceIdFilter = deviceRepository.findByFarmId(farmId).stream()
-                .map(d -> String.format("r.device_id == \"%s\"", d.getDeviceId()))
-                .collect(Collectors.joining(" or "));
-        if (deviceIdFilter.isEmpty())
+        List<String> deviceIds = findFarmDeviceIds(farmId);
+        if (deviceIds.isEmpty())
             return null;
 
-        String query = String.format(
-                "from(bucket: \"%s\")\n" +
-                        "  |> range(start: %s, stop: %s)\n" +
-                        "  |> filter(fn: (r) => r._measurement == \"sensor_data\")\n" +
-                        "  |> filter(fn: (r) => r._field == \"%s\")\n" +
-                        "  |> filter(fn: (r) => %s)\n" +
-                        "  |> mean()",
-                influxDBConfig.getBucket(), start.toString(), end.toString(), field, deviceIdFilter);
+        FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                .range(start, end)
+                .measurement(MEASUREMENT)
+                .field(field)
+                .tagIn("device_id", deviceIds)
+                .mean();
 
-        List<FluxTable> tables = influxDBClient.getQueryApi().query(query);
-        if (!tables.isEmpty() && !tables.get(0).getRecords().isEmpty()) {
-            Object value = tables.get(0).getRecords().get(0).getValue();
-            return value instanceof Number ? ((Number) value).doubleValue() : null;
-        }
-        return null;
+        return queryExecutor.cached("first-value", query, () -> queryExecutor.firstDouble(query));
     }
 
     /**
-     * Lấy giá trị gần nhất trước một thời điểm cụ thể.
+     * Lấy giá trị gần nhất trước một thời điểm cụ thể (tìm trong 30 ngày trước đó).
      */
     public Double getLatestValueBefore(Long farmId, String field, Instant time) {
-        String deviceIdFilter = deviceRepository.findByFarmId(farmId).stream()
-                .map(d -> String.format("r.device_id == \"%s\"", d.getDeviceId()))
-                .collect(Collectors.joining(" or "));
-        if (deviceIdFilter.isEmpty())
+        List<String> deviceIds = findFarmDeviceIds(farmId);
+        if (deviceIds.isEmpty())
             return null;
 
-        String query = String.format(
-                "from(bucket: \"%s\")\n" +
-                        "  |> range(start: -30d, stop: %s)\n" + // Tìm trong 30 ngày qua cho đến thời điểm 'time'
-                        "  |> filter(fn: (r) => r._measurement == \"sensor_data\")\n" +
-                        "  |> filter(fn: (r) => r._field == \"%s\")\n" +
-                        "  |> filter(fn: (r) => %s)\n" +
-                        "  |> last()",
-                influxDBConfig.getBucket(), time.toString(), field, deviceIdFilter);
+        FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                .range(time.minus(LATEST_LOOKBACK), time)
+                .measurement(MEASUREMENT)
+                .field(field)
+                .tagIn("device_id", deviceIds)
+                .last();
+
+        return queryExecutor.cached("first-value", query, () -> queryExecutor.firstDouble(query));
+    }
+
+    private List<String> findFarmDeviceIds(Long farmId) {
+        return deviceRepository.findByFarmId(farmId).stream()
+                .map(Device::getDeviceId)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Gộp kết quả last() (mỗi bảng một field) thành một DTO; field nào có
+     * nhiều giá trị thì lấy giá trị mới nhất. Trả về null nếu không có record.
+     */
+    private SensorDataDTO queryLatest(FluxQuery query) {
+        SensorDataDTO data = new SensorDataDTO();
+        Map<String, Instant> fieldTimes = new HashMap<>();
+        queryExecutor.stream(query, (cancellable, record) -> {
+            if (!(record.getValue() instanceof Number value) || record.getTime() == null) {
+                return;
+            }
+            Instant previous = fieldTimes.get(record.getField());
+            if (previous != null && previous.isAfter(record.getTime())) {
+                return;
+            }
+            if (setField(data, record.getField(), value.doubleValue())) {
+                fieldTimes.put(record.getField(), record.getTime());
+                if (data.getTimestamp() == null || record.getTime().isAfter(data.getTimestamp())) {
+                    data.setTimestamp(record.getTime());
+                    data.setDeviceId((String) record.getValueByKey("device_id"));
+                }
+            }
+        });
+        return fieldTimes.isEmpty() ? null : data;
+    }
 
-        List<FluxTable> tables = influxDBClient.getQueryApi().query(query);
-        if (!tables.isEmpty() && !tables.get(0).getRecords().isEmpty()) {
-            Object value = tables.get(0).getRecords().get(0).getValue();
-            return value instanceof Number ? ((Number) value).doubleValue() : null;
+    /**
+     * Một record (một field) thành DTO, giống SensorDataDTO.fromInfluxRecord
+     * nhưng đọc thẳng từ FluxRecord. Record không có giá trị trả về null.
+     */
+    private static SensorDataDTO toFieldDTO(FluxRecord record) {
+        if (!(record.getValue() instanceof Number value)) {
+            return null;
+        }
+        SensorDataDTO dto = new SensorDataDTO();
+        dto.setDeviceId((String) record.getValueByKey("device_id"));
+        dto.setSensorType((String) record.getValueByKey("sensor_type"));
+        Object farmId = record.getValueByKey("farm_id");
+        if (farmId != null) {
+            try {
+                dto.setFarmId(Long.parseLong(farmId.toString()));
+            } catch (NumberFormatException ignored) {
+                // farm_id = "null" với thiết bị chưa gán farm
+            }
+        }
+        dto.setTimestamp(record.getTime());
+        setField(dto, record.getField(), value.doubleValue());
+        return dto;
+    }
+
+    /**
+     * Giảm mỗi cột còn tối đa maxPoints điểm (bỏ qua ô trống) bằng LTTB. Trả
+     * về chuỗi mới chỉ gồm các ô được chọn; chuỗi gốc (có thể nằm trong cache)
+     * không bị sửa.
+     */
+    private static ColumnarSeriesDTO downsampleColumns(ColumnarSeriesDTO series, String[] columns, int maxPoints) {
+        int rows = series.size();
+        boolean[][] selected = new boolean[columns.length][rows];
+        boolean[] selectedRows = new boolean[rows];
+        for (int c = 0; c < columns.length; c++) {
+            int column = c;
+            List<Integer> present = new ArrayList<>();
+            for (int r = 0; r < rows; r++) {
+                if (!Double.isNaN(series.get(r, c))) {
+                    present.add(r);
+                }
+            }
+            for (int r : Lttb.downsample(present, maxPoints, series::timestamp, r -> series.get(r, column))) {
+                selected[c][r] = true;
+                selectedRows[r] = true;
+            }
+        }
+        ColumnarSeriesDTO result = new ColumnarSeriesDTO(columns);
+        for (int r = 0; r < rows; r++) {
+            if (!selectedRows[r]) {
+                continue;
+            }
+            int row = result.addRow(series.timestamp(r));
+            for (int c = 0; c < columns.length; c++) {
+                if (selected[c][r]) {
+                    result.set(row, c, series.get(r, c));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static ColumnarSeriesDTO avgValueColumns(List<SensorDataDTO> points, String column) {
+        ColumnarSeriesDTO series = new ColumnarSeriesDTO(column);
+        for (SensorDataDTO dto : points) {
+            int row = series.addRow(dto.getTimestamp().toEpochMilli());
+            if (dto.getAvgValue() != null) {
+                series.set(row, 0, dto.getAvgValue());
+            }
+        }
+        return series;
+    }
+
+    // Tên field InfluxDB của DTO một-field (do toFieldDTO tạo), null nếu không có
+    private static String fieldOf(SensorDataDTO dto) {
+        if (dto.getTemperature() != null) {
+            return "temperature";
+        }
+        if (dto.getHumidity() != null) {
+            return "humidity";
+        }
+        if (dto.getSoilMoisture() != null) {
+            return "soil_moisture";
+        }
+        if (dto.getLightIntensity() != null) {
+            return "light_intensity";
+        }
+        if (dto.getSoilPH() != null) {
+            return "soilPH";
         }
         return null;
     }
 
+    private static double fieldValue(SensorDataDTO dto, String field) {
+        return switch (field) {
+            case "temperature" -> dto.getTemperature();
+            case "humidity" -> dto.getHumidity();
+            case "soil_moisture" -> dto.getSoilMoisture();
+            case "light_intensity" -> dto.getLightIntensity();
+            default -> dto.getSoilPH();
+        };
+    }
+
+    private static boolean setField(SensorDataDTO dto, String field, double value) {
+        if (field == null) {
+            return false;
+        }
+        switch (field) {
+            case "temperature" -> dto.setTemperature(value);
+            case "humidity" -> dto.setHumidity(value);
+            case "soil_moisture" -> dto.setSoilMoisture(value);
+            case "light_intensity" -> dto.setLightIntensity(value);
+            case "soilPH" -> dto.setSoilPH(value);
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
@@ -0,0 +1,184 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.dto.SensorReading;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Đọc payload JSON của topic sensor/{id}/data trực tiếp từ byte[] vào
+ * {@link SensorReading}, không qua Map/String trung gian.
+ *
+ * Payload mẫu từ ESP32:
+ * {"temperature":28.5,"humidity":70.1,"soilMoisture":41,"lightIntensity":820,"soilPH":6.4}
+ * Giá trị dạng chuỗi số ("28.5") vẫn được chấp nhận như parser cũ; các trường
+ * lạ bị bỏ qua. "ts" (epoch giây/mili giây hoặc ISO-8601) là thời điểm đo
+ * trên thiết bị, "deviceId" chỉ dùng trong payload batch.
+ *
+ * Payload batch (topic sensor/{id}/batch), mảng trần hoặc bọc trong "readings":
+ * {"readings":[{"deviceId":"A1","ts":1718000000000,"temperature":28.5}, ...]}
+ */
+@Component
+public class SensorPayloadDecoder {
+
+    // Nhỏ hơn ngưỡng này thì "ts" được hiểu là epoch giây (ESP32 thường gửi giây)
+    private static final long EPOCH_SECONDS_LIMIT = 100_000_000_000L;
+
+    private final JsonFactory jsonFactory;
+
+    /**
+     * Nhận từng reading của batch. Reading được tái sử dụng cho phần tử kế
+     * tiếp nên không được giữ tham chiếu sau khi accept() trả về.
+     */
+    @FunctionalInterface
+    public interface ReadingSink {
+        void accept(SensorReading reading);
+    }
+
+    public SensorPayloadDecoder(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    /**
+     * Decode payload vào reading (reading được reset trước khi ghi).
+     *
+     * @throws IOException nếu payload không phải một JSON object hợp lệ
+     */
+    public void decode(byte[] payload, SensorReading reading) throws IOException {
+        reading.reset();
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Sensor payload must be a JSON object");
+            }
+            readFields(parser, reading);
+        }
+    }
+
+    /**
+     * Decode payload batch, gọi sink cho từng reading theo thứ tự trong payload.
+     *
+     * @return số reading đã đọc
+     */
+    public int decodeBatch(byte[] payload, SensorReading reading, ReadingSink sink) throws IOException {
+        int count = 0;
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                // Tìm mảng "readings", bỏ qua các trường khác của envelope
+                while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    token = parser.nextToken();
+                    if ("readings".equals(name) && token == JsonToken.START_ARRAY) {
+                        count += readArray(parser, reading, sink);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if (token == JsonToken.START_ARRAY) {
+                count = readArray(parser, reading, sink);
+            } else {
+                throw new IOException("Batch payload must be a JSON array or an object with \"readings\"");
+            }
+        }
+        return count;
+    }
+
+    private int readArray(JsonParser parser, SensorReading reading, ReadingSink sink) throws IOException {
+        int count = 0;
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+            reading.reset();
+            readFields(parser, reading);
+            sink.accept(reading);
+            count++;
+        }
+        if (token != JsonToken.END_ARRAY) {
+            throw new IOException("Unexpected token in batch payload: " + token);
+        }
+        return count;
+    }
+
+    /**
+     * Đọc các trường của object hiện tại (parser đang đứng sau START_OBJECT)
+     * cho tới END_OBJECT tương ứng.
+     */
+    void readFields(JsonParser parser, SensorReading reading) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (name) {
+                case "temperature" -> readDouble(parser, value, reading, SensorReading.TEMPERATURE);
+                case "humidity" -> readDouble(parser, value, reading, SensorReading.HUMIDITY);
+                case "soilMoisture" -> readDouble(parser, value, reading, SensorReading.SOIL_MOISTURE);
+                case "lightIntensity" -> readDouble(parser, value, reading, SensorReading.LIGHT_INTENSITY);
+                case "soilPH" -> readDouble(parser, value, reading, SensorReading.SOIL_PH);
+                case "sensorType" -> {
+                    String text = readScalar(parser, value);
+                    if (text != null) {
+                        reading.setSensorType(text);
+                    }
+                }
+                case "deviceId" -> {
+                    String text = readScalar(parser, value);
+                    if (text != null) {
+                        reading.setDeviceId(text);
+                    }
+                }
+                case "ts", "timestamp" -> readTimestamp(parser, value, reading);
+                default -> parser.skipChildren();
+            }
+        }
+        if (token != JsonToken.END_OBJECT) {
+            throw new IOException("Unexpected token in sensor payload: " + token);
+        }
+    }
+
+    // Giá trị dạng chuỗi/số/bool; object hoặc mảng được bỏ qua hết (không làm lệch parser)
+    private static String readScalar(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        return value == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+    }
+
+    private static void readTimestamp(JsonParser parser, JsonToken value, SensorReading reading)
+            throws IOException {
+        switch (value) {
+            case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> {
+                long ts = parser.getLongValue();
+                reading.setTimestampMillis(ts < EPOCH_SECONDS_LIMIT ? ts * 1000 : ts);
+            }
+            case VALUE_STRING -> {
+                try {
+                    reading.setTimestampMillis(Instant.parse(parser.getText()).toEpochMilli());
+                } catch (DateTimeParseException ignored) {
+                    // Thời gian không hợp lệ -> dùng thời gian server
+                }
+            }
+            default -> parser.skipChildren();
+        }
+    }
+
+    private static void readDouble(JsonParser parser, JsonToken value, SensorReading reading, int field)
+            throws IOException {
+        switch (value) {
+            case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> reading.set(field, parser.getDoubleValue());
+            case VALUE_STRING -> {
+                try {
+                    reading.set(field, Double.parseDouble(parser.getText()));
+                } catch (NumberFormatException ignored) {
+                    // Giữ hành vi cũ: giá trị không phải số thì coi như không có
+                }
+            }
+            default -> parser.skipChildren();
+        }
+    }
+}
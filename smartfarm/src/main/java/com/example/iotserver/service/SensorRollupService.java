@@ -0,0 +1,412 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.influxdb.client.BucketsApi;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.domain.BucketRetentionRules;
+import com.influxdb.client.domain.Organization;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Duy trì các chuỗi rollup (mean/min/max theo 1m, 1h, 1d) của sensor_data
+ * trong các bucket riêng ({bucket}_rollup_1m, ...).
+ *
+ * Job định kỳ chạy aggregateWindow + to() ngay trên InfluxDB cho các cửa sổ
+ * vừa đóng (chừa report lag để đón dữ liệu đến trễ), nên dữ liệu không đi qua
+ * ứng dụng. Mỗi điểm rollup có tag stat = mean|min|max và _time là thời điểm
+ * BẮT ĐẦU cửa sổ. Ghi lại cùng cửa sổ là idempotent (ghi đè cùng series/thời
+ * điểm).
+ *
+ * Dữ liệu đến trễ hơn lag (gateway gửi bù) được ghi nhận qua
+ * {@link #markDirty}: cửa sổ đã rollup chứa nó bị đánh dấu và được rollup lại
+ * ở lần chạy sau. Job chạy trên thread riêng, không chiếm thread scheduler
+ * chung của Spring (lần chạy đầu có thể phải backfill nhiều ngày).
+ *
+ * {@link #plan} chọn level thô nhất chia hết window của query và đã phủ
+ * khoảng thời gian; phần đầu/cuối không thẳng hàng hoặc chưa được rollup vẫn
+ * đọc từ dữ liệu thô.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class SensorRollupService {
+
+    public enum Level {
+        ONE_MINUTE("1m", Duration.ofMinutes(1), Duration.ofDays(90), Duration.ofDays(1)),
+        ONE_HOUR("1h", Duration.ofHours(1), Duration.ofDays(730), Duration.ofDays(7)),
+        ONE_DAY("1d", Duration.ofDays(1), null, Duration.ofDays(30));
+
+        private final String label;
+        private final Duration duration;
+        private final Duration retention; // null = giữ vĩnh viễn
+        private final Duration chunk; // độ dài tối đa của một lần downsample
+
+        Level(String label, Duration duration, Duration retention, Duration chunk) {
+            this.label = label;
+            this.duration = duration;
+            this.retention = retention;
+            this.chunk = chunk;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * Kế hoạch đọc: [rollupStart, rollupEnd) lấy từ bucket rollup, phần còn
+     * lại của khoảng query lấy từ dữ liệu thô.
+     */
+    public record Plan(Level level, String bucket, Instant rollupStart, Instant rollupEnd) {
+    }
+
+    private static final String MEASUREMENT = "sensor_data";
+    private static final List<String> STATS = List.of("mean", "min", "max");
+    private static final Pattern WINDOW = Pattern.compile("(\\d+)(s|m|h|d|w)");
+
+    private final InfluxDBClient influxDBClient;
+    private final InfluxDBConfig influxDBConfig;
+    private final InfluxQueryExecutor queryExecutor;
+
+    @Value("${influxdb.rollup.enabled:true}")
+    private boolean enabled;
+
+    // Chờ thêm chừng này sau khi cửa sổ đóng rồi mới rollup, để đón dữ liệu đến trễ
+    @Value("${influxdb.rollup.lag-ms:60000}")
+    private long lagMs;
+
+    // Lần chạy đầu tiên (bucket rollup trống hoặc đã quá cũ) chỉ downsample lùi lại chừng này
+    @Value("${influxdb.rollup.max-backfill-days:30}")
+    private int maxBackfillDays;
+
+    private final Map<Level, LevelState> states = new EnumMap<>(Level.class);
+    private volatile boolean provisioned;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private ExecutorService executor;
+
+    private static final class LevelState {
+        // Rollup đầy đủ trong [coveredFrom, watermark)
+        private volatile Instant coveredFrom;
+        private volatile Instant watermark;
+        // Cửa sổ đã rollup nhưng nhận thêm dữ liệu đến trễ -> lần đánh dấu gần nhất
+        private final Map<Instant, Instant> dirty = new ConcurrentHashMap<>();
+    }
+
+    @PostConstruct
+    void start() {
+        executor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("sensor-rollup-"));
+    }
+
+    @PreDestroy
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Đưa lượt downsample vào thread rollup; bỏ qua nếu lượt trước (ví dụ
+     * backfill lần đầu) chưa xong.
+     */
+    @Scheduled(initialDelayString = "${influxdb.rollup.initial-delay-ms:30000}",
+            fixedDelayString = "${influxdb.rollup.interval-ms:60000}")
+    public void scheduleRollups() {
+        if (!enabled || !running.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                runRollups();
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    /**
+     * Downsample các cửa sổ vừa đóng và rollup lại các cửa sổ bị đánh dấu của
+     * mọi level. Lần đầu tạo bucket rollup (nếu chưa có) và backfill.
+     */
+    void runRollups() {
+        try {
+            if (!provisioned) {
+                provision();
+            }
+            Instant now = Instant.now();
+            for (Level level : Level.values()) {
+                expire(level, now);
+                rollUp(level, now);
+                rollUpDirty(level, now);
+            }
+        } catch (Exception e) {
+            log.error("Sensor rollup run failed: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Ghi nhận một reading vừa được ghi với thời điểm time. Nếu nó rơi vào cửa
+     * sổ đã rollup (dữ liệu gửi bù, trễ hơn lag), cửa sổ đó được rollup lại.
+     */
+    public void markDirty(Instant time) {
+        if (!provisioned || time == null) {
+            return;
+        }
+        Instant now = Instant.now();
+        for (Level level : Level.values()) {
+            LevelState state = states.get(level);
+            if (time.isBefore(state.watermark) && !time.isBefore(state.coveredFrom)) {
+                state.dirty.put(floor(time, level.duration), now);
+            }
+        }
+    }
+
+    /**
+     * Kế hoạch đọc rollup cho query gộp theo window trong [start, end), hoặc
+     * null nếu không có rollup phù hợp (window không phải bội số của level
+     * nào, rollup chưa phủ khoảng thời gian...).
+     */
+    public Plan plan(Instant start, Instant end, String window) {
+        if (!enabled || !provisioned) {
+            return null;
+        }
+        Duration every = parseWindow(window);
+        if (every == null) {
+            return null;
+        }
+        // aggregateWindow căn cửa sổ theo epoch, nên cắt tại bội số của window
+        Instant alignedStart = ceil(start, every);
+        for (int i = Level.values().length - 1; i >= 0; i--) {
+            Level level = Level.values()[i];
+            if (every.compareTo(level.duration) < 0 || every.toMillis() % level.duration.toMillis() != 0) {
+                continue;
+            }
+            LevelState state = states.get(level);
+            if (state == null || state.watermark == null
+                    || retainedFrom(level, state, Instant.now()).isAfter(alignedStart)) {
+                continue;
+            }
+            Instant rollupEnd = floor(min(end, state.watermark), every);
+            if (rollupEnd.isAfter(alignedStart)) {
+                return new Plan(level, rollupBucket(level), alignedStart, rollupEnd);
+            }
+        }
+        return null;
+    }
+
+    public String rollupBucket(Level level) {
+        return influxDBConfig.getBucket() + "_rollup_" + level.label;
+    }
+
+    private void provision() {
+        String orgId = influxDBClient.getOrganizationsApi().findOrganizations().stream()
+                .filter(org -> influxDBConfig.getOrg().equals(org.getName()))
+                .map(Organization::getId)
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("InfluxDB org not found: " + influxDBConfig.getOrg()));
+        BucketsApi bucketsApi = influxDBClient.getBucketsApi();
+        Instant now = Instant.now();
+
+        for (Level level : Level.values()) {
+            String bucket = rollupBucket(level);
+            if (bucketsApi.findBucketByName(bucket) == null) {
+                if (level.retention != null) {
+                    bucketsApi.createBucket(bucket,
+                            new BucketRetentionRules().everySeconds((int) level.retention.getSeconds()), orgId);
+                } else {
+                    bucketsApi.createBucket(bucket, orgId);
+                }
+                log.info("Created rollup bucket {}", bucket);
+            }
+
+            // Tiếp tục từ điểm rollup cuối cùng nếu còn trong giới hạn backfill
+            Instant backfillFrom = floor(now.minus(Duration.ofDays(maxBackfillDays)), level.duration);
+            Instant first = rollupTime(bucket, now, false);
+            Instant last = rollupTime(bucket, now, true);
+            LevelState state = new LevelState();
+            if (last != null && !last.isBefore(backfillFrom)) {
+                state.coveredFrom = first;
+                state.watermark = last; // cửa sổ cuối được ghi lại để chắc chắn đầy đủ
+            } else {
+                state.coveredFrom = backfillFrom;
+                state.watermark = backfillFrom;
+            }
+            states.put(level, state);
+            log.info("Rollup {} covers {} - {}", bucket, state.coveredFrom, state.watermark);
+        }
+        provisioned = true;
+    }
+
+    /**
+     * Dời coveredFrom qua phần bucket rollup đã bị retention xoá, để plan không
+     * đọc rollup cho khoảng thời gian không còn dữ liệu.
+     */
+    private void expire(Level level, Instant now) {
+        LevelState state = states.get(level);
+        Instant retainedFrom = retainedFrom(level, state, now);
+        if (!retainedFrom.isAfter(state.coveredFrom)) {
+            return;
+        }
+        state.coveredFrom = retainedFrom;
+        if (state.watermark.isBefore(retainedFrom)) {
+            state.watermark = retainedFrom;
+        }
+        state.dirty.keySet().removeIf(window -> window.isBefore(retainedFrom));
+        log.debug("Rollup {} now covers from {}", level.label, retainedFrom);
+    }
+
+    // Đầu khoảng rollup còn dữ liệu: coveredFrom, nhưng không sớm hơn giới hạn retention của bucket
+    private static Instant retainedFrom(Level level, LevelState state, Instant now) {
+        if (level.retention == null) {
+            return state.coveredFrom;
+        }
+        Instant retained = ceil(now.minus(level.retention), level.duration);
+        return retained.isAfter(state.coveredFrom) ? retained : state.coveredFrom;
+    }
+
+    private void rollUp(Level level, Instant now) {
+        LevelState state = states.get(level);
+        Instant target = floor(now.minusMillis(lagMs), level.duration);
+        // Chạy lại cửa sổ gần nhất để nhận dữ liệu đến trễ hơn lag
+        Instant from = state.watermark.minus(level.duration);
+        if (!target.isAfter(state.watermark)) {
+            return;
+        }
+        if (from.isBefore(state.coveredFrom)) {
+            from = state.coveredFrom;
+        }
+        while (from.isBefore(target)) {
+            Instant to = min(from.plus(level.chunk), target);
+            rollUpRange(level, from, to);
+            state.watermark = to;
+            from = to;
+        }
+    }
+
+    /**
+     * Rollup lại các cửa sổ bị đánh dấu từ ít nhất lag trước (để point đã rời
+     * hàng đợi ghi), gộp các cửa sổ liền nhau thành một khoảng.
+     */
+    private void rollUpDirty(Level level, Instant now) {
+        LevelState state = states.get(level);
+        Instant settled = now.minusMillis(lagMs);
+        List<Instant> windows = new ArrayList<>();
+        state.dirty.forEach((window, markedAt) -> {
+            // Gỡ theo giá trị: cửa sổ được đánh dấu lại trong lúc này giữ nguyên cho lần sau
+            if (!markedAt.isAfter(settled) && state.dirty.remove(window, markedAt)) {
+                windows.add(window);
+            }
+        });
+        if (windows.isEmpty()) {
+            return;
+        }
+        windows.sort(null);
+        try {
+            Instant from = windows.get(0);
+            Instant to = from.plus(level.duration);
+            for (Instant window : windows.subList(1, windows.size())) {
+                if (!window.equals(to)) {
+                    rollUpRange(level, from, to);
+                    from = window;
+                }
+                to = window.plus(level.duration);
+            }
+            rollUpRange(level, from, to);
+        } catch (RuntimeException e) {
+            // Thử lại ở lần chạy sau (ghi lại cửa sổ đã xong cũng không sao)
+            windows.forEach(window -> state.dirty.putIfAbsent(window, settled));
+            throw e;
+        }
+        log.debug("Re-rolled {} late {} windows", windows.size(), level.label);
+    }
+
+    private void rollUpRange(Level level, Instant from, Instant target) {
+        while (from.isBefore(target)) {
+            Instant to = min(from.plus(level.chunk), target);
+            for (String stat : STATS) {
+                FluxQuery query = FluxQuery.from(influxDBConfig.getBucket())
+                        .range(from, to)
+                        .measurement(MEASUREMENT)
+                        .aggregateWindow(level.label, stat, true)
+                        .set("stat", stat)
+                        .to(rollupBucket(level), influxDBConfig.getOrg())
+                        .group()
+                        .count();
+                queryExecutor.stream(query, (cancellable, record) -> {
+                });
+            }
+            log.debug("Rolled up {} for {} - {}", level.label, from, to);
+            from = to;
+        }
+    }
+
+    // Thời điểm điểm rollup đầu tiên (hoặc cuối cùng) trong bucket, null nếu trống
+    private Instant rollupTime(String bucket, Instant now, boolean latest) {
+        FluxQuery query = FluxQuery.from(bucket)
+                .range(Instant.EPOCH, now.plusSeconds(1))
+                .measurement(MEASUREMENT)
+                .tagEquals("stat", "mean");
+        query = latest ? query.last() : query.first();
+        AtomicReference<Instant> result = new AtomicReference<>();
+        queryExecutor.stream(query.keep("_time"), (cancellable, record) -> {
+            Instant time = record.getTime();
+            Instant current = result.get();
+            if (time != null && (current == null || (latest ? time.isAfter(current) : time.isBefore(current)))) {
+                result.set(time);
+            }
+        });
+        return result.get();
+    }
+
+    // "10m", "1h", "1d"... Đơn vị theo lịch (mo, y) hay ghép (1h30m) trả về null
+    static Duration parseWindow(String window) {
+        Matcher matcher = WINDOW.matcher(window);
+        if (!matcher.matches()) {
+            return null;
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        if (amount <= 0) {
+            return null;
+        }
+        return switch (matcher.group(2)) {
+            case "s" -> Duration.ofSeconds(amount);
+            case "m" -> Duration.ofMinutes(amount);
+            case "h" -> Duration.ofHours(amount);
+            case "d" -> Duration.ofDays(amount);
+            default -> Duration.ofDays(7 * amount);
+        };
+    }
+
+    private static Instant floor(Instant time, Duration step) {
+        long stepMs = step.toMillis();
+        return Instant.ofEpochMilli(Math.floorDiv(time.toEpochMilli(), stepMs) * stepMs);
+    }
+
+    private static Instant ceil(Instant time, Duration step) {
+        Instant floor = floor(time, step);
+        return floor.equals(time) ? floor : floor.plus(step);
+    }
+
+    private static Instant min(Instant a, Instant b) {
+        return a.isBefore(b) ? a : b;
+    }
+}
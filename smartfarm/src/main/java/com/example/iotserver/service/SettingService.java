@@ -1,11 +1,13 @@
 package com.example.iotserver.service;
 
+import com.example.iotserver.config.RedisPubSubConfig;
 import com.example.iotserver.entity.SystemSetting;
 import com.example.iotserver.repository.SystemSettingRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -13,6 +15,7 @@ import org.springframework.stereotype.Service;
 @RequiredArgsConstructor
 public class SettingService {
     private final SystemSettingRepository settingRepository;
+    private final StringRedisTemplate redisTemplate;
 
     @Cacheable(value = "settings", key = "#key")
     public String getString(String key, String defaultValue) {
@@ -45,5 +48,11 @@ public class SettingService {
         setting.setValue(value);
         settingRepository.save(setting);
         log.info("Updated setting '{}' to '{}'", key, value);
+        // Báo các instance xóa ngưỡng đang cache cục bộ (SensorAlertCache)
+        try {
+            redisTemplate.convertAndSend(RedisPubSubConfig.SETTINGS_INVALIDATION_CHANNEL, key);
+        } catch (Exception e) {
+            log.warn("Could not publish invalidation for setting '{}': {}", key, e.getMessage());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package com.example.iotserver.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FluxQueryTest {
+
+    @Test
+    void escapesStringLiterals() {
+        assertEquals("\"plain\"", FluxQuery.string("plain"));
+        assertEquals("\"a\\\"b\"", FluxQuery.string("a\"b"));
+        assertEquals("\"a\\\\b\"", FluxQuery.string("a\\b"));
+        assertEquals("\"\\${x}\"", FluxQuery.string("${x}"));
+        assertEquals("\"cost $5\"", FluxQuery.string("cost $5"));
+        assertEquals("\"a\\nb\"", FluxQuery.string("a\nb"));
+    }
+
+    @Test
+    void injectionStaysInsideLiteral() {
+        String text = FluxQuery.from("bucket")
+                .rangeLast(Duration.ofHours(1))
+                .tagEquals("device_id", "x\") |> drop(columns: [\"_value\"]) //")
+                .text();
+
+        assertTrue(text.contains("r[\"device_id\"] == \"x\\\") |> drop(columns: [\\\"_value\\\"]) //\")"));
+        // Chỉ có đúng hai stage do builder tạo ra
+        assertEquals(3, text.split("\n  \\|> ").length);
+    }
+
+    @Test
+    void emitsTimeAndDurationLiterals() {
+        String text = FluxQuery.from("sensors")
+                .range(Instant.parse("2024-06-10T06:13:20Z"), Instant.parse("2024-06-11T00:00:00Z"))
+                .measurement("sensor_data")
+                .aggregateWindow("1h", "mean", true)
+                .limit(10)
+                .text();
+
+        assertEquals("from(bucket: \"sensors\")"
+                + "\n  |> range(start: 2024-06-10T06:13:20Z, stop: 2024-06-11T00:00:00Z)"
+                + "\n  |> filter(fn: (r) => r[\"_measurement\"] == \"sensor_data\")"
+                + "\n  |> aggregateWindow(every: 1h, fn: mean, createEmpty: false, timeSrc: \"_start\")"
+                + "\n  |> limit(n: 10)", text);
+        assertEquals("from(bucket: \"sensors\")\n  |> range(start: -3600s)",
+                FluxQuery.from("sensors").rangeLast(Duration.ofHours(1)).text());
+    }
+
+    @Test
+    void tagInIsOrderIndependent() {
+        FluxQuery a = FluxQuery.from("b").range(Instant.EPOCH, Instant.EPOCH.plusSeconds(60))
+                .tagIn("device_id", List.of("D2", "D1"));
+        FluxQuery b = FluxQuery.from("b").range(Instant.EPOCH, Instant.EPOCH.plusSeconds(60))
+                .tagIn("device_id", List.of("D1", "D2", "D1"));
+
+        assertEquals(a.cacheKey(), b.cacheKey());
+        assertTrue(a.text().endsWith("contains(value: r[\"device_id\"], set: [\"D1\", \"D2\"]))"));
+        assertTrue(a.isCacheable());
+        assertFalse(FluxQuery.from("b").rangeLast(Duration.ofMinutes(5)).isCacheable());
+    }
+
+    @Test
+    void rejectsInvalidIdentifiersDurationsAndAggregates() {
+        FluxQuery query = FluxQuery.from("b");
+        assertThrows(IllegalArgumentException.class, () -> query.tagEquals("device_id\"]", "x"));
+        assertThrows(IllegalArgumentException.class, () -> query.aggregateWindow("1h) |> drop()", "mean"));
+        assertThrows(IllegalArgumentException.class, () -> query.aggregateWindow("1h", "mean) |> drop("));
+        assertThrows(IllegalArgumentException.class, () -> query.keep("_time", "a b"));
+        query.aggregateWindow("1h30m", "max");
+        assertTrue(query.text().contains("every: 1h30m"));
+    }
+}
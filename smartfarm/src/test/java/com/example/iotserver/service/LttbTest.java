@@ -0,0 +1,84 @@
+package com.example.iotserver.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LttbTest {
+
+    private record Point(long x, double y) {
+    }
+
+    private static List<Point> sine(int n) {
+        List<Point> points = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            points.add(new Point(i, Math.sin(i / 10.0)));
+        }
+        return points;
+    }
+
+    private static List<Point> downsample(List<Point> points, int maxPoints) {
+        return Lttb.downsample(points, maxPoints, Point::x, Point::y);
+    }
+
+    @Test
+    void returnsInputWhenNotLongerThanMaxPoints() {
+        List<Point> points = sine(10);
+
+        assertSame(points, downsample(points, 10));
+        assertSame(points, downsample(points, 50));
+    }
+
+    @Test
+    void keepsEndpointsAndReturnsMaxPoints() {
+        List<Point> points = sine(1000);
+
+        List<Point> sampled = downsample(points, 50);
+
+        assertEquals(50, sampled.size());
+        assertSame(points.get(0), sampled.get(0));
+        assertSame(points.get(999), sampled.get(49));
+    }
+
+    @Test
+    void picksOnePointInsideEachBucketInOrder() {
+        int n = 1000;
+        int maxPoints = 37;
+        List<Point> sampled = downsample(sine(n), maxPoints);
+
+        // x = chỉ số trong danh sách gốc
+        double bucketSize = (double) (n - 2) / (maxPoints - 2);
+        for (int bucket = 0; bucket < maxPoints - 2; bucket++) {
+            long index = sampled.get(bucket + 1).x();
+            long start = (long) (bucket * bucketSize) + 1;
+            long end = (long) ((bucket + 1) * bucketSize) + 1;
+            assertTrue(index >= start && index < end,
+                    "bucket " + bucket + ": index " + index + " outside [" + start + ", " + end + ")");
+        }
+    }
+
+    @Test
+    void keepsIsolatedSpike() {
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            points.add(new Point(i * 1000L, i == 321 ? 100 : 20));
+        }
+
+        List<Point> sampled = downsample(points, 10);
+
+        assertTrue(sampled.contains(points.get(321)));
+    }
+
+    @Test
+    void rejectsMaxPointsBelowThreeEvenForShortSeries() {
+        assertThrows(IllegalArgumentException.class, () -> downsample(sine(1), 2));
+        assertThrows(IllegalArgumentException.class, () -> downsample(sine(100), 2));
+        assertThrows(IllegalArgumentException.class, () -> Lttb.checkMaxPoints(0));
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.entity.RuleExecutionLog.ExecutionStatus;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+class RuleExecutionLogWriterTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    // Các dòng đã insert: {rule_id, executed_at, status, conditions_met, condition_details, ..., repeat_count, ...}
+    private final List<Object[]> rows = Collections.synchronizedList(new ArrayList<>());
+    private RuleExecutionLogWriter writer;
+
+    private void start(long flushIntervalMs, long skippedMaxSpanMs) {
+        doAnswer(invocation -> {
+            List<Object[]> batch = invocation.getArgument(1);
+            rows.addAll(batch);
+            return new int[batch.size()];
+        }).when(jdbcTemplate).batchUpdate(anyString(), anyList());
+
+        writer = new RuleExecutionLogWriter(jdbcTemplate, new ObjectMapper(), new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(writer, "queueCapacity", 100);
+        ReflectionTestUtils.setField(writer, "batchSize", 50);
+        ReflectionTestUtils.setField(writer, "flushIntervalMs", flushIntervalMs);
+        ReflectionTestUtils.setField(writer, "skippedPolicy", RuleExecutionLogWriter.SkippedPolicy.COLLAPSE);
+        ReflectionTestUtils.setField(writer, "skippedMaxSpanMs", skippedMaxSpanMs);
+        writer.start();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (writer != null) {
+            writer.stop();
+        }
+    }
+
+    private static BitSet failed(int... conditions) {
+        BitSet failed = new BitSet();
+        for (int condition : conditions) {
+            failed.set(condition);
+        }
+        return failed;
+    }
+
+    private static RuleExecutionLogWriter.Entry skipped(long ruleId, LocalDateTime at, double value) {
+        return new RuleExecutionLogWriter.Entry(ruleId, at, ExecutionStatus.SKIPPED, false,
+                Map.of("temperature", value), failed(0), List.of(), null, 1);
+    }
+
+    // Điều kiện khung giờ "06:00-18:00" sai; current_time khác nhau ở mỗi lần đánh giá
+    private static RuleExecutionLogWriter.Entry outsideTimeRange(long ruleId, LocalDateTime at, BitSet failed) {
+        return new RuleExecutionLogWriter.Entry(ruleId, at, ExecutionStatus.SKIPPED, false,
+                Map.of("current_time", at.toLocalTime().toString(), "time_range", "06:00-18:00",
+                        "in_time_range", false),
+                failed, List.of(), null, 1);
+    }
+
+    private static RuleExecutionLogWriter.Entry success(long ruleId, LocalDateTime at) {
+        return new RuleExecutionLogWriter.Entry(ruleId, at, ExecutionStatus.SUCCESS, true,
+                Map.of("temperature", 40.0), failed(), List.of("TURN_ON_DEVICE pump-1"), null, 1);
+    }
+
+    @Test
+    void successBreaksSkippedRun() throws InterruptedException {
+        start(60000, 600000);
+        LocalDateTime now = LocalDateTime.now();
+        writer.submit(skipped(1, now, 20));
+        writer.submit(skipped(1, now.plusSeconds(1), 20));
+        writer.submit(skipped(1, now.plusSeconds(2), 20));
+        writer.submit(success(1, now.plusSeconds(3)));
+        writer.submit(skipped(1, now.plusSeconds(4), 20));
+
+        writer.stop();
+
+        assertEquals(3, rows.size());
+        assertEquals("SKIPPED", rows.get(0)[2]);
+        assertEquals(3, rows.get(0)[8]);
+        assertEquals("SUCCESS", rows.get(1)[2]);
+        assertEquals(1, rows.get(1)[8]);
+        assertNull(rows.get(1)[9]);
+        assertEquals("SKIPPED", rows.get(2)[2]);
+        assertEquals(1, rows.get(2)[8]);
+    }
+
+    @Test
+    void timeRangeSkippedRunIsCollapsed() throws InterruptedException {
+        start(60000, 600000);
+        LocalDateTime first = LocalDateTime.of(2024, 1, 1, 20, 0, 0, 123_456_789);
+        for (int i = 0; i < 5; i++) {
+            writer.submit(outsideTimeRange(1, first.plusSeconds(30L * i).plusNanos(i), failed(0)));
+        }
+        LocalDateTime last = first.plusSeconds(120).plusNanos(4);
+
+        writer.stop();
+
+        assertEquals(1, rows.size());
+        assertEquals(5, rows.get(0)[8]);
+        // Dòng gộp giữ chi tiết điều kiện của lần đầu và lần cuối
+        String details = (String) rows.get(0)[4];
+        assertTrue(details.contains("\"first\"") && details.contains("\"last\""), details);
+        assertTrue(details.contains(first.toLocalTime().toString()), details);
+        assertTrue(details.contains(last.toLocalTime().toString()), details);
+    }
+
+    @Test
+    void differentFailedConditionsStartNewRun() throws InterruptedException {
+        start(60000, 600000);
+        LocalDateTime now = LocalDateTime.now();
+        writer.submit(outsideTimeRange(1, now, failed(0)));
+        writer.submit(outsideTimeRange(1, now.plusSeconds(1), failed(0)));
+        writer.submit(outsideTimeRange(1, now.plusSeconds(2), failed(0, 1)));
+
+        writer.stop();
+
+        assertEquals(2, rows.size());
+        assertEquals(2, rows.get(0)[8]);
+        assertEquals(1, rows.get(1)[8]);
+    }
+
+    @Test
+    void runLongerThanMaxSpanIsWrittenWithoutShutdown() {
+        start(50, 1000);
+        LocalDateTime now = LocalDateTime.now();
+        writer.submit(skipped(1, now.minusSeconds(5), 20));
+        writer.submit(skipped(1, now.minusSeconds(4), 20));
+        writer.submit(skipped(2, now, 20));
+
+        verify(jdbcTemplate, timeout(2000)).batchUpdate(anyString(), anyList());
+
+        // Chỉ dòng của quy tắc 1 đã quá skipped-max-span-ms; quy tắc 2 vẫn đang gộp
+        assertEquals(1, rows.size());
+        assertEquals(1L, rows.get(0)[0]);
+        assertEquals(2, rows.get(0)[8]);
+    }
+
+    @Test
+    void shutdownFlushesOpenRunsPromptly() throws InterruptedException {
+        start(60000, 600000);
+        LocalDateTime now = LocalDateTime.now();
+        writer.submit(skipped(1, now, 20));
+        writer.submit(skipped(1, now.plusSeconds(1), 20));
+        writer.submit(skipped(2, now, 25));
+
+        long started = System.nanoTime();
+        writer.stop();
+        long elapsedMs = (System.nanoTime() - started) / 1_000_000;
+
+        assertTrue(elapsedMs < 5000, "stop() took " + elapsedMs + "ms");
+        assertEquals(2, rows.size());
+        int total = rows.stream().mapToInt(row -> (Integer) row[8]).sum();
+        assertEquals(3, total);
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.iotserver.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RuleFireGateTest {
+
+    private final RuleFireGate gate = new RuleFireGate();
+
+    RuleFireGateTest() {
+        ReflectionTestUtils.setField(gate, "refireIntervalMs", 30000L);
+    }
+
+    @Test
+    void refiresOnlyAfterInterval() {
+        assertTrue(gate.tryFire(1L, 1_000));
+        assertFalse(gate.tryFire(1L, 1_000));
+        assertFalse(gate.tryFire(1L, 30_999));
+        assertTrue(gate.tryFire(1L, 31_000));
+        assertFalse(gate.tryFire(1L, 31_001));
+    }
+
+    @Test
+    void intervalIsPerRule() {
+        assertTrue(gate.tryFire(1L, 1_000));
+        assertTrue(gate.tryFire(2L, 1_001));
+        assertFalse(gate.tryFire(1L, 1_002));
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.entity.Farm;
+import com.example.iotserver.entity.Rule;
+import com.example.iotserver.entity.RuleCondition;
+import com.example.iotserver.entity.RuleExecutionLog;
+import com.example.iotserver.repository.DeviceRepository;
+import com.example.iotserver.repository.RuleRepository;
+import com.influxdb.query.FluxRecord;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Lượt quét định kỳ đọc dữ liệu cảm biến đúng một lần, bất kể số quy tắc,
+ * số farm và số điều kiện.
+ */
+class RuleSweepQueryTest {
+
+    private static final int RULES = 12;
+    private static final int CONDITIONS = 4;
+    private static final int DEVICES = 5;
+
+    private final InfluxQueryExecutor queryExecutor = mock(InfluxQueryExecutor.class);
+    private final CompiledRuleCache cache = mock(CompiledRuleCache.class);
+    private final RuleExecutionLogWriter logWriter = mock(RuleExecutionLogWriter.class);
+    private final RuleRepository ruleRepository = mock(RuleRepository.class);
+    private final WeatherService weatherService = mock(WeatherService.class);
+    private final AtomicInteger queries = new AtomicInteger();
+
+    private RuleEngineService engine;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        InfluxDBConfig influxDBConfig = mock(InfluxDBConfig.class);
+        when(influxDBConfig.getBucket()).thenReturn("sensors");
+        LatestSensorValueStore latestValues = mock(LatestSensorValueStore.class);
+        when(latestValues.isWarmed()).thenReturn(false);
+
+        // Mỗi query trả về reading mới nhất của mọi thiết bị
+        doAnswer(invocation -> {
+            queries.incrementAndGet();
+            BiConsumer<Object, FluxRecord> onRecord = invocation.getArgument(1);
+            for (int device = 0; device < DEVICES; device++) {
+                FluxRecord record = new FluxRecord(device);
+                record.getValues().put("device_id", "dev-" + device);
+                record.getValues().put("_field", "temperature");
+                record.getValues().put("_value", 20.0 + device);
+                record.getValues().put("_time", Instant.now());
+                onRecord.accept(null, record);
+            }
+            return null;
+        }).when(queryExecutor).stream(any(), any());
+
+        SensorDataService sensorDataService = new SensorDataService(mock(InfluxWriteBuffer.class), queryExecutor,
+                influxDBConfig, mock(DeviceRepository.class), latestValues, mock(FarmRollingAggregates.class),
+                mock(SensorRollupService.class));
+
+        Map<Long, CompiledRule> rules = new HashMap<>();
+        for (long id = 1; id <= RULES; id++) {
+            rules.put(id, rule(id));
+        }
+        when(cache.snapshot()).thenReturn(new CompiledRuleCache.Snapshot(1, rules));
+
+        RuleFireGate fireGate = new RuleFireGate();
+        ReflectionTestUtils.setField(fireGate, "refireIntervalMs", 30000L);
+
+        engine = new RuleEngineService(ruleRepository, sensorDataService, mock(DeviceService.class),
+                mock(WebSocketService.class), weatherService, mock(NotificationService.class),
+                mock(DeviceRepository.class), cache, fireGate, logWriter, mock(PlatformTransactionManager.class),
+                new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(engine, "sweepThreads", 2);
+        ReflectionTestUtils.setField(engine, "sensorMaxAgeHours", 24);
+        ReflectionTestUtils.setField(engine, "farmTimeoutMs", 60000L);
+        engine.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        engine.stop();
+    }
+
+    // Quy tắc ở một trong 3 farm: điều kiện thời gian (để vào lượt quét) và CONDITIONS điều kiện cảm biến
+    private static CompiledRule rule(long id) {
+        return rule(id, "100");
+    }
+
+    private static CompiledRule rule(long id, String threshold) {
+        Farm farm = new Farm();
+        farm.setId(id % 3);
+        Rule rule = Rule.builder().id(id).name("rule-" + id).farm(farm).build();
+        rule.getConditions().add(RuleCondition.builder()
+                .rule(rule)
+                .type(RuleCondition.ConditionType.TIME_RANGE)
+                .value("00:00")
+                .build());
+        for (int i = 0; i < CONDITIONS; i++) {
+            rule.getConditions().add(RuleCondition.builder()
+                    .rule(rule)
+                    .type(RuleCondition.ConditionType.SENSOR_VALUE)
+                    .deviceId("dev-" + ((id + i) % DEVICES))
+                    .field("temperature")
+                    .operator(RuleCondition.Operator.GREATER_THAN)
+                    .value(threshold)
+                    .orderIndex(i + 1)
+                    .build());
+        }
+        return CompiledRule.compile(rule);
+    }
+
+    @Test
+    void sweepIssuesOneInfluxQuery() {
+        engine.executeAllRules();
+
+        assertEquals(1, queries.get());
+        verify(queryExecutor, times(1)).stream(any(), any());
+    }
+
+    @Test
+    void everyRuleIsEvaluatedAgainstPrefetchedData() {
+        engine.executeAllRules();
+
+        ArgumentCaptor<RuleExecutionLogWriter.Entry> entries =
+                ArgumentCaptor.forClass(RuleExecutionLogWriter.Entry.class);
+        verify(logWriter, times(RULES)).submit(entries.capture());
+        List<RuleExecutionLogWriter.Entry> logged = entries.getAllValues();
+        for (RuleExecutionLogWriter.Entry entry : logged) {
+            assertEquals(RuleExecutionLog.ExecutionStatus.SKIPPED, entry.status());
+            // Giá trị cảm biến đã được so sánh, không phải bị bỏ qua vì thiếu dữ liệu
+            assertTrue(entry.conditionContext().containsKey("temperature"), entry.conditionContext().toString());
+        }
+    }
+
+    @Test
+    void sweepDoesNotRefireRuleJustFiredByTrigger() {
+        // Điều kiện luôn đúng; quy tắc nằm ở cả lượt quét lẫn chỉ mục trigger
+        when(cache.snapshot()).thenReturn(new CompiledRuleCache.Snapshot(2, Map.of(1L, rule(1, "0"))));
+        Rule entity = Rule.builder().id(1L).name("rule-1").build();
+        when(ruleRepository.findById(1L)).thenReturn(Optional.of(entity));
+
+        engine.executeRules(List.of(1L));
+        engine.executeAllRules();
+
+        // Chỉ lần kích hoạt từ reading thực hiện hành động và cập nhật thống kê
+        verify(ruleRepository, times(1)).findById(1L);
+        verify(ruleRepository, times(1)).save(entity);
+        assertEquals(1L, entity.getExecutionCount());
+    }
+
+    @Test
+    void triggeredPathLogsUnchangedSkippedOutcomeOnce() {
+        engine.executeRules(List.of(1L));
+        engine.executeRules(List.of(1L));
+        engine.executeRules(List.of(1L));
+        verify(logWriter, times(1)).submit(any());
+
+        // Lượt quét vẫn ghi mọi lần (writer gộp các dòng SKIPPED)
+        engine.executeAllRules();
+        verify(logWriter, times(1 + RULES)).submit(any());
+    }
+
+    @Test
+    void stuckFarmIsCancelledAfterTimeout() throws InterruptedException {
+        ReflectionTestUtils.setField(engine, "farmTimeoutMs", 200L);
+        // Farm 99 treo khi đọc thời tiết; quy tắc 1 ở farm khác
+        Farm stuckFarm = new Farm();
+        stuckFarm.setId(99L);
+        Rule stuck = Rule.builder().id(99L).name("stuck").farm(stuckFarm).build();
+        stuck.getConditions().add(RuleCondition.builder()
+                .rule(stuck)
+                .type(RuleCondition.ConditionType.WEATHER)
+                .field("temperature")
+                .operator(RuleCondition.Operator.GREATER_THAN)
+                .value("30")
+                .build());
+        when(cache.snapshot()).thenReturn(new CompiledRuleCache.Snapshot(2,
+                Map.of(99L, CompiledRule.compile(stuck), 1L, rule(1))));
+        CountDownLatch interrupted = new CountDownLatch(1);
+        when(weatherService.getCurrentWeather(99L)).thenAnswer(invocation -> {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return null;
+        });
+
+        long started = System.nanoTime();
+        engine.executeAllRules();
+        long elapsedMs = (System.nanoTime() - started) / 1_000_000;
+
+        assertTrue(elapsedMs < 5000, "sweep took " + elapsedMs + "ms");
+        // Farm bị hủy được interrupt; farm còn lại vẫn chạy xong
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+        verify(logWriter, atLeastOnce()).submit(argThat(entry -> entry.ruleId().equals(1L)));
+    }
+
+    @Test
+    void eachSweepQueriesOnce() {
+        engine.executeAllRules();
+        engine.executeAllRules();
+        engine.executeAllRules();
+
+        assertEquals(3, queries.get());
+    }
+}
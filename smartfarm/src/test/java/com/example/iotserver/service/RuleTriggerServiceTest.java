@@ -0,0 +1,77 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.entity.Farm;
+import com.example.iotserver.entity.Rule;
+import com.example.iotserver.entity.RuleCondition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collection;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RuleTriggerServiceTest {
+
+    private final RuleEngineService engine = mock(RuleEngineService.class);
+    private final CompiledRuleCache cache = mock(CompiledRuleCache.class);
+    private final RuleTriggerService service = new RuleTriggerService(engine, cache);
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(service, "triggerThreads", 1);
+        service.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.stop();
+    }
+
+    private static CompiledRule sensorRule(long id) {
+        Farm farm = new Farm();
+        farm.setId(1L);
+        Rule rule = Rule.builder().id(id).name("rule-" + id).farm(farm).build();
+        rule.getConditions().add(RuleCondition.builder()
+                .rule(rule)
+                .type(RuleCondition.ConditionType.SENSOR_VALUE)
+                .deviceId("dev-1")
+                .field("temperature")
+                .operator(RuleCondition.Operator.GREATER_THAN)
+                .value("30")
+                .build());
+        return CompiledRule.compile(rule);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void readingTriggersDependentRules() {
+        when(cache.snapshot()).thenReturn(new CompiledRuleCache.Snapshot(1, Map.of(7L, sensorRule(7L))));
+
+        service.onReading(SensorDataDTO.builder().deviceId("dev-1").temperature(35.0).build());
+
+        ArgumentCaptor<Collection<Long>> ruleIds = ArgumentCaptor.forClass(Collection.class);
+        verify(engine, timeout(1000)).executeRules(ruleIds.capture());
+        assertTrue(ruleIds.getValue().contains(7L));
+    }
+
+    @Test
+    void readingOfUnrelatedDeviceTriggersNothing() throws InterruptedException {
+        when(cache.snapshot()).thenReturn(new CompiledRuleCache.Snapshot(1, Map.of(7L, sensorRule(7L))));
+
+        service.onReading(SensorDataDTO.builder().deviceId("dev-2").temperature(35.0).build());
+
+        Thread.sleep(100);
+        verify(engine, never()).executeRules(anyCollection());
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.dto.SensorReading;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SensorBinaryCodecTest {
+
+    private final SensorBinaryCodec codec = new SensorBinaryCodec();
+
+    @Test
+    void roundTripsAllFields() throws IOException {
+        SensorReading reading = new SensorReading();
+        reading.set(SensorReading.TEMPERATURE, 28.5);
+        reading.set(SensorReading.HUMIDITY, 70.1);
+        reading.set(SensorReading.SOIL_MOISTURE, 41);
+        reading.set(SensorReading.LIGHT_INTENSITY, 820.25);
+        reading.set(SensorReading.SOIL_PH, 6.4);
+
+        byte[] payload = codec.encode(reading);
+        assertEquals(22, payload.length);
+
+        SensorReading decoded = new SensorReading();
+        codec.decode(payload, decoded);
+
+        assertEquals(28.5, decoded.getTemperature());
+        assertEquals(70.1, decoded.getHumidity());
+        assertEquals(41.0, decoded.getSoilMoisture());
+        assertEquals(820.25, decoded.getLightIntensity());
+        assertEquals(6.4, decoded.getSoilPH());
+        assertArrayEquals(payload, codec.encode(decoded));
+    }
+
+    @Test
+    void decodesOnlyPresentFields() throws IOException {
+        SensorReading reading = new SensorReading();
+        reading.set(SensorReading.SOIL_MOISTURE, -3.25);
+
+        SensorReading decoded = new SensorReading();
+        decoded.set(SensorReading.TEMPERATURE, 99);
+        codec.decode(codec.encode(reading), decoded);
+
+        assertTrue(decoded.has(SensorReading.SOIL_MOISTURE));
+        assertFalse(decoded.has(SensorReading.TEMPERATURE));
+        assertEquals(-3.25, decoded.getSoilMoisture());
+    }
+
+    @Test
+    void roundTripsDeviceTimestamp() throws IOException {
+        SensorReading reading = new SensorReading();
+        reading.set(SensorReading.TEMPERATURE, 21.75);
+        reading.setTimestampMillis(1_718_000_000_123L);
+
+        byte[] payload = codec.encode(reading);
+        assertEquals(14, payload.length);
+
+        SensorReading decoded = new SensorReading();
+        codec.decode(payload, decoded);
+
+        assertTrue(decoded.hasTimestamp());
+        assertEquals(1_718_000_000_123L, decoded.getTimestampMillis());
+        assertEquals(21.75, decoded.getTemperature());
+    }
+
+    @Test
+    void rejectsMalformedPayloads() {
+        SensorReading reading = new SensorReading();
+        assertThrows(IOException.class, () -> codec.decode(new byte[] { 1 }, reading));
+        assertThrows(IOException.class, () -> codec.decode(new byte[] { 2, 0 }, reading));
+        assertThrows(IOException.class, () -> codec.decode(new byte[] { 1, 1, 0, 0 }, reading));
+        assertThrows(IOException.class, () -> codec.decode(new byte[] { 1, (byte) 0x40 }, reading));
+        assertThrows(IOException.class, () -> codec.decode(new byte[] { 1, (byte) 0x80, 0, 0 }, reading));
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.iotserver.service;
+
+import com.example.iotserver.dto.SensorReading;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SensorPayloadDecoderTest {
+
+    private final SensorPayloadDecoder decoder = new SensorPayloadDecoder(new ObjectMapper());
+
+    private SensorReading decode(String json) throws IOException {
+        SensorReading reading = new SensorReading();
+        decoder.decode(json.getBytes(StandardCharsets.UTF_8), reading);
+        return reading;
+    }
+
+    @Test
+    void decodesNumbers() throws IOException {
+        SensorReading reading = decode(
+                "{\"temperature\":28.5,\"humidity\":70,\"soilMoisture\":41,\"lightIntensity\":820.25,\"soilPH\":6.4}");
+
+        assertEquals(28.5, reading.getTemperature());
+        assertEquals(70.0, reading.getHumidity());
+        assertEquals(41.0, reading.getSoilMoisture());
+        assertEquals(820.25, reading.getLightIntensity());
+        assertEquals(6.4, reading.getSoilPH());
+        assertFalse(reading.hasTimestamp());
+    }
+
+    @Test
+    void decodesNumericStringsAndIgnoresNonNumericOnes() throws IOException {
+        SensorReading reading = decode("{\"temperature\":\"28.5\",\"humidity\":\"n/a\"}");
+
+        assertEquals(28.5, reading.getTemperature());
+        assertFalse(reading.has(SensorReading.HUMIDITY));
+    }
+
+    @Test
+    void skipsUnknownAndNestedFields() throws IOException {
+        SensorReading reading = decode("{\"meta\":{\"fw\":\"1.2\",\"tags\":[1,2,{\"a\":3}]},"
+                + "\"temperature\":{\"value\":99},\"rssi\":-60,\"humidity\":55}");
+
+        assertFalse(reading.has(SensorReading.TEMPERATURE));
+        assertEquals(55.0, reading.getHumidity());
+    }
+
+    @Test
+    void nonScalarIdentifiersDoNotDesynchroniseParser() throws IOException {
+        SensorReading reading = decode("{\"deviceId\":{\"id\":\"X\",\"temperature\":1},"
+                + "\"sensorType\":[\"a\",{\"b\":2}],\"temperature\":21.5}");
+
+        assertNull(reading.getDeviceId());
+        assertNull(reading.getSensorType());
+        assertEquals(21.5, reading.getTemperature());
+    }
+
+    @Test
+    void readsScalarIdentifiersAndTimestamps() throws IOException {
+        SensorReading reading = decode("{\"deviceId\":\"A1\",\"sensorType\":\"DHT22\",\"ts\":1718000000}");
+
+        assertEquals("A1", reading.getDeviceId());
+        assertEquals("DHT22", reading.getSensorType());
+        assertEquals(1_718_000_000_000L, reading.getTimestampMillis());
+
+        reading = decode("{\"timestamp\":\"2024-06-10T06:13:20Z\"}");
+        assertEquals(1_718_000_000_000L, reading.getTimestampMillis());
+    }
+
+    @Test
+    void rejectsMalformedJson() {
+        assertThrows(IOException.class, () -> decode("[1,2]"));
+        assertThrows(IOException.class, () -> decode("{\"temperature\":28.5"));
+        assertThrows(IOException.class, () -> decode("{\"temperature\":}"));
+        assertThrows(IOException.class, () -> decode("not json"));
+    }
+
+    @Test
+    void decodesBatchEnvelopeAndBareArray() throws IOException {
+        List<String> devices = new ArrayList<>();
+        List<Double> temperatures = new ArrayList<>();
+        SensorPayloadDecoder.ReadingSink sink = reading -> {
+            devices.add(reading.getDeviceId());
+            temperatures.add(reading.getTemperature());
+        };
+
+        int count = decoder.decodeBatch(("{\"gateway\":{\"v\":1},\"readings\":[{\"deviceId\":\"A1\",\"temperature\":1},"
+                + "{\"deviceId\":\"A2\",\"temperature\":2}]}").getBytes(StandardCharsets.UTF_8),
+                new SensorReading(), sink);
+        count += decoder.decodeBatch("[{\"deviceId\":\"A3\",\"temperature\":3}]".getBytes(StandardCharsets.UTF_8),
+                new SensorReading(), sink);
+
+        assertEquals(3, count);
+        assertEquals(List.of("A1", "A2", "A3"), devices);
+        assertEquals(List.of(1.0, 2.0, 3.0), temperatures);
+    }
+
+    @Test
+    void resetsReadingBetweenBatchElements() throws IOException {
+        List<Boolean> hasTemperature = new ArrayList<>();
+        decoder.decodeBatch("[{\"temperature\":1},{\"humidity\":2}]".getBytes(StandardCharsets.UTF_8),
+                new SensorReading(), reading -> hasTemperature.add(reading.has(SensorReading.TEMPERATURE)));
+
+        assertEquals(List.of(true, false), hasTemperature);
+        assertTrue(hasTemperature.get(0));
+    }
+}